@@ -0,0 +1,737 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the checks of several {@link RevocationChecker}s, typically CRL and
+ * OCSP, concurrently, so that the latency of a check is that of the slowest
+ * source rather than the sum of all. How the answers are combined is set by
+ * the policy:
+ *
+ * <ul>
+ * <li>{@link #ALL_MUST_PASS}: the certificate is valid if all sources answer
+ * {@link RevocationChecker#GOOD}; the first other answer or failure settles
+ * the check</li>
+ * <li>{@link #FIRST_DEFINITIVE_ANSWER}: the first source to answer
+ * {@link RevocationChecker#GOOD} or {@link RevocationChecker#REVOKED}
+ * settles the check; failures only count when no source answers</li>
+ * </ul>
+ *
+ * A primary checker may be layered in front of the sources, so that they
+ * are only asked when it defers; see
+ * {@link #setPrimaryChecker(RevocationChecker)}.
+ *
+ * <p>Once the check is settled, the checks still running are cancelled without
+ * interrupting them: their thread may be running a CRL download or OCSP
+ * lookup that other requests wait on, so they run to completion and their
+ * answer is ignored.
+ *
+ * <p>A whole certificate chain can be checked as well, one certificate per
+ * check, all at once. The checks of certificates other than the first are
+ * shared, by issuer and serial, with all chains containing them, and their
+ * outcome is kept for a TTL; signatures by different signers under the same
+ * intermediate CAs only check these once.
+ */
+public class AsyncRevocationChecker {
+
+    public static final int ALL_MUST_PASS = 1;
+
+    public static final int FIRST_DEFINITIVE_ANSWER = 2;
+
+    private static final Log logger = LogFactory.getLog(AsyncRevocationChecker.class);
+
+    private final RevocationChecker[] checkers;
+
+    /**
+     * @param checkers the sources to ask at once
+     */
+    public AsyncRevocationChecker(RevocationChecker[] checkers) {
+        this.checkers = checkers.clone();
+    }
+
+    /**
+     * @param crlHelper the {@link X509CRLHelper}; may be null
+     * @param ocspHelper the {@link OCSPHelper}; may be null
+     */
+    public AsyncRevocationChecker(X509CRLHelper crlHelper, OCSPHelper ocspHelper) {
+        this(toCheckers(crlHelper, ocspHelper));
+    }
+
+    private static RevocationChecker[] toCheckers(X509CRLHelper crlHelper, OCSPHelper ocspHelper) {
+        List<RevocationChecker> checkers = new ArrayList<RevocationChecker>();
+        if (crlHelper != null) {
+            checkers.add(new CRLRevocationChecker(crlHelper));
+        }
+        if (ocspHelper != null) {
+            checkers.add(new OCSPRevocationChecker(ocspHelper));
+        }
+
+        return checkers.toArray(new RevocationChecker[checkers.size()]);
+    }
+
+    // default: the behavior of the sequential checks
+    private int policy = ALL_MUST_PASS;
+
+    public void setPolicy(int policy) {
+        if (policy != ALL_MUST_PASS && policy != FIRST_DEFINITIVE_ANSWER) {
+            throw new ConfigurationException("Unknown revocation policy; policy=" + policy);
+        }
+
+        this.policy = policy;
+    }
+
+    private RevocationChecker primaryChecker;
+
+    /**
+     * @param primaryChecker a checker asked before the sources, e.g. a
+     * {@link CompositeRevocationChecker} over a local revocation list; the
+     * sources are only asked when it defers, as the layers of a
+     * {@link CompositeRevocationChecker} do. Its answer settles the check
+     * whatever the policy
+     */
+    public void setPrimaryChecker(RevocationChecker primaryChecker) {
+        this.primaryChecker = primaryChecker;
+    }
+
+    // default: a network failure of the primary checker is no answer
+    private boolean deferOnNetworkError = true;
+
+    /**
+     * @param deferOnNetworkError whether the sources are asked when the
+     * primary checker fails with a {@link NetworkAccessException}; its
+     * failure is reported if none of them answers
+     */
+    public void setDeferOnNetworkError(boolean deferOnNetworkError) {
+        this.deferOnNetworkError = deferOnNetworkError;
+    }
+
+    // default: no cap besides the timeouts of the sources
+    private long chainTimeoutMillis = 0;
+
+    /**
+     * @param chainTimeoutMillis how long {@link #isChainValid(X509Certificate[])}
+     * waits for all certificates of a chain; 0 for no limit
+     */
+    public void setChainTimeoutMillis(long chainTimeoutMillis) {
+        this.chainTimeoutMillis = chainTimeoutMillis;
+    }
+
+    // default cache size: 1000 certificates
+    private int cacheSize = 1000;
+
+    /**
+     * @param cacheSize the maximum number of shared checks kept; the least
+     * recently used ones are evicted first. 0 disables sharing
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    // default cache TTL: 5min
+    private long cacheTtlMillis = 5*60*1000L;
+
+    /**
+     * @param cacheTtlMillis how long the outcome of a shared check is reused
+     */
+    public void setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    /** A map from issuer and serial to SharedCheck, in access order */
+    private final Map<String, SharedCheck> sharedCheckMap =
+            new LinkedHashMap<String, SharedCheck>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, SharedCheck> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /** The pool of checkers without one of their own; created on first use */
+    private static ExecutorService defaultExecutorService;
+
+    private static synchronized ExecutorService getDefaultExecutorService() {
+        if (defaultExecutorService == null) {
+            defaultExecutorService = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AsyncRevocationChecker-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return defaultExecutorService;
+    }
+
+    private ExecutorService executorService;
+
+    /**
+     * @param executorService the pool to run checks on; when not set, a
+     * cached pool of daemon threads shared by all checkers is used. Its idle
+     * threads expire on their own, so it is never shut down
+     */
+    public synchronized void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        return executorService != null ?
+                executorService :
+                getDefaultExecutorService();
+    }
+
+    /**
+     * Start checking a certificate with all sources at once
+     *
+     * @param certificate an {@link X509Certificate} object
+     * @param chain the certificate chain, used to find the OCSP issuer; may be
+     * null
+     * @return a {@link Future} of Boolean.TRUE if the certificate is valid,
+     * Boolean.FALSE otherwise. It fails with {@link NetworkAccessException}
+     * or {@link VerificationException} as the sources do
+     */
+    public Future<Boolean> check(X509Certificate certificate, X509Certificate[] chain) {
+        return newSettlement(certificate, chain);
+    }
+
+    private Settlement newSettlement(final X509Certificate certificate, final X509Certificate[] chain) {
+        final Settlement settlement = new Settlement(policy, checkers.length);
+        final RevocationChecker primaryChecker = this.primaryChecker;
+        if (primaryChecker == null) {
+            if (checkers.length == 0) {
+                settlement.settle(Boolean.TRUE);
+            } else {
+                startChecks(settlement, certificate, chain);
+            }
+
+            return settlement;
+        }
+
+        getExecutorService().execute(new Runnable() {
+            public void run() {
+                if (settlement.isDone()) {
+                    return;
+                }
+
+                int status;
+                try {
+                    status = primaryChecker.check(certificate, chain);
+                } catch (NetworkAccessException e) {
+                    if (!deferOnNetworkError) {
+                        settlement.fail(e);
+                        return;
+                    }
+
+                    logger.warn("Revocation checker failed; deferring to the sources" +
+                            "; checker=" + primaryChecker.getClass().getName(), e);
+                    settlement.deferFailure(e);
+                    status = RevocationChecker.UNKNOWN;
+                } catch (Throwable t) {
+                    settlement.fail(t);
+                    return;
+                }
+
+                if (status != RevocationChecker.UNKNOWN) {
+                    settlement.settle(Boolean.valueOf(status == RevocationChecker.GOOD));
+                } else if (checkers.length == 0) {
+                    settlement.settleUndecided();
+                } else {
+                    startChecks(settlement, certificate, chain);
+                }
+            }
+        });
+
+        return settlement;
+    }
+
+    private void startChecks(
+            Settlement settlement, final X509Certificate certificate, final X509Certificate[] chain) {
+        SourceCheck[] checks = new SourceCheck[checkers.length];
+        for (int i=0; i<checks.length; i++) {
+            final RevocationChecker checker = checkers[i];
+            checks[i] = new SourceCheck(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return new Integer(checker.check(certificate, chain));
+                }
+            }, settlement);
+        }
+        settlement.checks = checks;
+        if (settlement.isDone()) {
+            // Cancelled while the primary checker was asked
+            return;
+        }
+
+        ExecutorService executor = getExecutorService();
+        for (int i=0; i<checks.length; i++) {
+            executor.execute(checks[i]);
+        }
+    }
+
+    /**
+     * Check a certificate with all sources at once, and wait for the outcome
+     *
+     * @param certificate an {@link X509Certificate} object
+     * @param chain the certificate chain, used to find the OCSP issuer; may be
+     * null
+     * @return true if the certificate is valid; false otherwise
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an error occurs while checking
+     */
+    public boolean isValid(X509Certificate certificate, X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException {
+        return await(check(certificate, chain));
+    }
+
+    /**
+     * Start checking all certificates of a chain at once, except for a
+     * self-signed last one, which can only be trusted as an anchor
+     *
+     * @param chain the certificate chain, starting with the end entity
+     * @return a {@link Future} of Boolean.TRUE if all certificates are valid,
+     * Boolean.FALSE otherwise. It fails with {@link NetworkAccessException}
+     * or {@link VerificationException} as the sources do
+     */
+    public Future<Boolean> checkChain(X509Certificate[] chain) {
+        int length = chain.length;
+        if (length > 1 && chain[length - 1].getSubjectX500Principal().equals(
+                chain[length - 1].getIssuerX500Principal())) {
+            length--;
+        }
+
+        Settlement[] settlements = new Settlement[length];
+        for (int i=0; i<length; i++) {
+            settlements[i] = i == 0 ?
+                    newSettlement(chain[i], chain) :
+                    getSharedSettlement(chain[i], chain);
+        }
+
+        ChainSettlement chainSettlement = new ChainSettlement(settlements[0], length);
+        for (int i=0; i<length; i++) {
+            settlements[i].addDependent(chainSettlement);
+        }
+
+        return chainSettlement;
+    }
+
+    /**
+     * Check all certificates of a chain at once, as in
+     * {@link #checkChain(X509Certificate[])}, and wait for the outcome no
+     * longer than the chain timeout
+     *
+     * @param chain the certificate chain, starting with the end entity
+     * @return true if all certificates are valid; false otherwise
+     * @throws NetworkAccessException when any network access issues occur, or
+     * the chain timeout expires
+     * @throws VerificationException when an error occurs while checking
+     */
+    public boolean isChainValid(X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException {
+        return await(checkChain(chain), chainTimeoutMillis);
+    }
+
+    private Settlement getSharedSettlement(X509Certificate certificate, X509Certificate[] chain) {
+        String key =
+                certificate.getIssuerX500Principal().getName() + "#" +
+                certificate.getSerialNumber().toString(16);
+
+        synchronized (sharedCheckMap) {
+            SharedCheck sharedCheck = sharedCheckMap.get(key);
+            if (sharedCheck != null && sharedCheck.isReusable()) {
+                logger.debug("Sharing revocation check; key=" + key);
+
+                return sharedCheck.settlement;
+            }
+
+            Settlement settlement = newSettlement(certificate, chain);
+            if (cacheSize > 0) {
+                sharedCheckMap.put(key, new SharedCheck(
+                        settlement, System.currentTimeMillis() + cacheTtlMillis));
+            }
+
+            return settlement;
+        }
+    }
+
+    /**
+     * Wait for a check, unwrapping its failure
+     *
+     * @param future a {@link Future} of Boolean, as returned by
+     * {@link #check(X509Certificate, X509Certificate[])}
+     * @return true if the certificate is valid; false otherwise
+     * @throws NetworkAccessException when any network access issues occur, or
+     * the wait is interrupted
+     * @throws VerificationException when an error occurs while checking
+     */
+    public static boolean await(Future<Boolean> future)
+    throws NetworkAccessException, VerificationException {
+        return await(future, 0);
+    }
+
+    /**
+     * Wait for a check for a limited time, unwrapping its failure; the check
+     * is cancelled if the time runs out
+     *
+     * @param future a {@link Future} of Boolean, as returned by
+     * {@link #check(X509Certificate, X509Certificate[])} or
+     * {@link #checkChain(X509Certificate[])}
+     * @param timeoutMillis how long to wait; 0 for no limit
+     * @return true if the certificate is valid; false otherwise
+     * @throws NetworkAccessException when any network access issues occur,
+     * the wait is interrupted, or the time runs out
+     * @throws VerificationException when an error occurs while checking
+     */
+    public static boolean await(Future<Boolean> future, long timeoutMillis)
+    throws NetworkAccessException, VerificationException {
+        try {
+            Boolean valid = timeoutMillis > 0 ?
+                    future.get(timeoutMillis, TimeUnit.MILLISECONDS) :
+                    future.get();
+
+            return valid.booleanValue();
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new NetworkAccessException(
+                    "Revocation check timed out; timeoutMillis=" + timeoutMillis, e);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new NetworkAccessException("Interrupted while waiting for revocation check", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkAccessException) {
+                throw (NetworkAccessException) cause;
+            } else if (cause instanceof VerificationException) {
+                throw (VerificationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new VerificationException("Revocation check failed", cause);
+        }
+    }
+
+    /** The check of a single source, reporting to the settlement when done */
+    private static class SourceCheck extends FutureTask<Integer> {
+
+        private final Settlement settlement;
+
+        private SourceCheck(Callable<Integer> callable, Settlement settlement) {
+            super(callable);
+            this.settlement = settlement;
+        }
+
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+
+            try {
+                settlement.onAnswer(get().intValue());
+            } catch (ExecutionException e) {
+                settlement.onFailure(e.getCause());
+            } catch (InterruptedException e) {
+                // Cannot happen; the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /** The combined outcome of the source checks, as handed to the caller */
+    private static class Settlement extends FutureTask<Boolean> {
+
+        private static final Callable<Boolean> UNUSED = new Callable<Boolean>() {
+            public Boolean call() {
+                throw new IllegalStateException("Settled explicitly only");
+            }
+        };
+
+        private final int policy;
+
+        private int pending;
+
+        private Throwable failure;
+
+        private volatile SourceCheck[] checks;
+
+        /** The chain checks waiting for this check */
+        private final List<ChainSettlement> dependents = new ArrayList<ChainSettlement>();
+
+        private Settlement(int policy, int pending) {
+            super(UNUSED);
+            this.policy = policy;
+            this.pending = pending;
+        }
+
+        // Settling notifies dependents, which take their own locks; so the
+        // outcome is decided while holding the lock, and set after releasing it
+
+        private void onAnswer(int status) {
+            Boolean valid = null;
+            boolean undecided = false;
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+
+                pending--;
+                if (policy == ALL_MUST_PASS) {
+                    if (status != RevocationChecker.GOOD) {
+                        valid = Boolean.FALSE;
+                    } else if (pending == 0) {
+                        valid = Boolean.TRUE;
+                    }
+                } else if (status != RevocationChecker.UNKNOWN) {
+                    valid = Boolean.valueOf(status == RevocationChecker.GOOD);
+                } else if (pending == 0) {
+                    undecided = true;
+                }
+            }
+
+            if (valid != null) {
+                settle(valid);
+            } else if (undecided) {
+                settleUndecided();
+            }
+        }
+
+        private void onFailure(Throwable t) {
+            boolean failed = false;
+            boolean undecided = false;
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+
+                pending--;
+                if (failure == null) {
+                    failure = t;
+                }
+                if (policy == ALL_MUST_PASS) {
+                    failed = true;
+                } else if (pending == 0) {
+                    undecided = true;
+                }
+            }
+
+            if (failed) {
+                setException(t);
+                cancelChecks();
+            } else if (undecided) {
+                settleUndecided();
+            } else {
+                logger.debug("Revocation source failed; waiting for the others", t);
+            }
+        }
+
+        private void settle(Boolean valid) {
+            set(valid);
+            cancelChecks();
+        }
+
+        /** The primary checker failed; the sources are not asked */
+        private void fail(Throwable t) {
+            setException(t);
+        }
+
+        /** The primary checker deferred on failure; reported if no source answers */
+        private synchronized void deferFailure(Throwable t) {
+            failure = t;
+        }
+
+        /** No source gave a definitive answer; report a failure, if any */
+        private void settleUndecided() {
+            Throwable failure;
+            synchronized (this) {
+                failure = this.failure;
+            }
+
+            if (failure != null) {
+                setException(failure);
+            } else {
+                set(Boolean.FALSE);
+            }
+        }
+
+        private void addDependent(ChainSettlement dependent) {
+            synchronized (dependents) {
+                if (!isDone()) {
+                    dependents.add(dependent);
+                    return;
+                }
+            }
+
+            dependent.onSettled(this);
+        }
+
+        protected void done() {
+            List<ChainSettlement> dependents;
+            synchronized (this.dependents) {
+                dependents = new ArrayList<ChainSettlement>(this.dependents);
+                this.dependents.clear();
+            }
+
+            for (int i=0; i<dependents.size(); i++) {
+                dependents.get(i).onSettled(this);
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            cancelChecks();
+
+            return cancelled;
+        }
+
+        private void cancelChecks() {
+            SourceCheck[] checks = this.checks;
+            if (checks == null) {
+                return;
+            }
+
+            for (int i=0; i<checks.length; i++) {
+                checks[i].cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * The combined outcome of the checks of a chain; all certificates must
+     * be valid
+     */
+    private static class ChainSettlement extends FutureTask<Boolean> {
+
+        private static final Callable<Boolean> UNUSED = new Callable<Boolean>() {
+            public Boolean call() {
+                throw new IllegalStateException("Settled explicitly only");
+            }
+        };
+
+        /** The check of the end entity, owned by this chain check alone */
+        private final Settlement own;
+
+        private int pending;
+
+        private ChainSettlement(Settlement own, int pending) {
+            super(UNUSED);
+            this.own = own;
+            this.pending = pending;
+        }
+
+        private void onSettled(Settlement settlement) {
+            Boolean valid = null;
+            Throwable failure = null;
+            try {
+                valid = settlement.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (CancellationException e) {
+                failure = new NetworkAccessException("Revocation check cancelled", e);
+            } catch (InterruptedException e) {
+                // Cannot happen; the settlement is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+
+                pending--;
+                if (failure == null && valid.booleanValue() && pending > 0) {
+                    return;
+                }
+            }
+
+            if (failure != null) {
+                setException(failure);
+            } else {
+                set(valid);
+            }
+            own.cancel(false);
+        }
+
+        /**
+         * Only the check of the end entity is cancelled; shared checks are
+         * left to complete for the other chains
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            own.cancel(false);
+
+            return cancelled;
+        }
+
+    }
+
+    private static class SharedCheck {
+
+        private final Settlement settlement;
+
+        private final long expiresAt;
+
+        private SharedCheck(Settlement settlement, long expiresAt) {
+            this.settlement = settlement;
+            this.expiresAt = expiresAt;
+        }
+
+        /** Failed checks are retried, rather than shared */
+        private boolean isReusable() {
+            if (expiresAt <= System.currentTimeMillis()) {
+                return false;
+            }
+            if (!settlement.isDone()) {
+                return true;
+            }
+
+            try {
+                settlement.get();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+    }
+
+}
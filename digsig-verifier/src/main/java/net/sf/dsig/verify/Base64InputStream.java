@@ -0,0 +1,196 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * An {@link InputStream} decoding Base64 text as it is read, such as the
+ * signature form field filled in by the dsig applet; neither the text nor
+ * the decoded bytes are held in full. Whitespace is skipped, and decoding
+ * stops at the first padding character.
+ */
+public class Base64InputStream extends InputStream {
+
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i=0; i<DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i=0; i<alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final Reader reader;
+
+    private final CharSequence sequence;
+
+    private int sequenceIndex = 0;
+
+    private final char[] chars = new char[4096];
+
+    /** Decoded bytes; up to 3 per 4 characters, plus a trailing partial quantum */
+    private final byte[] bytes = new byte[chars.length / 4 * 3 + 2];
+
+    private int bytesPosition = 0;
+
+    private int bytesLimit = 0;
+
+    /** The bits of the partial quantum decoded so far */
+    private int quantum = 0;
+
+    private int quantumLength = 0;
+
+    private boolean finished = false;
+
+    public Base64InputStream(Reader reader) {
+        this.reader = reader;
+        this.sequence = null;
+    }
+
+    public Base64InputStream(CharSequence sequence) {
+        this.reader = null;
+        this.sequence = sequence;
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        return bytes[bytesPosition++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int count = Math.min(len, bytesLimit - bytesPosition);
+        System.arraycopy(bytes, bytesPosition, b, off, count);
+        bytesPosition += count;
+
+        return count;
+    }
+
+    public int available() {
+        return bytesLimit - bytesPosition;
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return false if no decoded bytes remain
+     */
+    private boolean fill() throws IOException {
+        while (bytesPosition == bytesLimit) {
+            if (finished) {
+                return false;
+            }
+
+            bytesPosition = 0;
+            bytesLimit = 0;
+
+            int length = readChars();
+            if (length == -1) {
+                finish();
+            } else {
+                decode(length);
+            }
+        }
+
+        return true;
+    }
+
+    private int readChars() throws IOException {
+        if (reader != null) {
+            return reader.read(chars, 0, chars.length);
+        }
+
+        if (sequenceIndex == sequence.length()) {
+            return -1;
+        }
+
+        int length = Math.min(chars.length, sequence.length() - sequenceIndex);
+        for (int i=0; i<length; i++) {
+            chars[i] = sequence.charAt(sequenceIndex++);
+        }
+
+        return length;
+    }
+
+    private void decode(int length) throws IOException {
+        for (int i=0; i<length; i++) {
+            char c = chars[i];
+            if (c == '=') {
+                finish();
+                return;
+            }
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                continue;
+            }
+
+            int value = c < DECODE.length ? DECODE[c] : -1;
+            if (value == -1) {
+                throw new IOException("Invalid Base64 character; char=" + (int) c);
+            }
+
+            quantum = (quantum << 6) | value;
+            if (++quantumLength == 4) {
+                bytes[bytesLimit++] = (byte) (quantum >> 16);
+                bytes[bytesLimit++] = (byte) (quantum >> 8);
+                bytes[bytesLimit++] = (byte) quantum;
+                quantum = 0;
+                quantumLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Decode the trailing partial quantum, if any
+     */
+    private void finish() throws IOException {
+        finished = true;
+
+        switch (quantumLength) {
+        case 0:
+            break;
+        case 2:
+            bytes[bytesLimit++] = (byte) (quantum >> 4);
+            break;
+        case 3:
+            bytes[bytesLimit++] = (byte) (quantum >> 10);
+            bytes[bytesLimit++] = (byte) (quantum >> 2);
+            break;
+        default:
+            throw new IOException("Truncated Base64 input");
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+/**
+ * Receives the outcome of each input of a batch run by
+ * {@link XmldsigBatchVerifier}. Callbacks are always invoked on the thread
+ * that started the batch, one at a time.
+ */
+public interface BatchVerificationListener {
+
+    /**
+     * @param index the zero-based position of the input in the batch
+     * @param result the {@link VerificationResult} of the input
+     */
+    void verified(int index, VerificationResult result);
+
+    /**
+     * @param index the zero-based position of the input in the batch
+     * @param e the exception raised while verifying the input; usually a
+     * {@link VerificationException} or a {@link NetworkAccessException}
+     */
+    void failed(int index, Exception e);
+
+}
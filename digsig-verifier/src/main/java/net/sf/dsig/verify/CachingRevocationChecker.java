@@ -0,0 +1,117 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An in-memory cache in front of another {@link RevocationChecker}. Definitive
+ * answers are kept per issuer and serial for a TTL, in a bounded map from
+ * which the least recently used entries are evicted; {@link #UNKNOWN} answers
+ * and failures are not cached, so they are retried on the next check.
+ */
+public class CachingRevocationChecker implements RevocationChecker {
+
+    private static final Log logger = LogFactory.getLog(CachingRevocationChecker.class);
+
+    private final RevocationChecker checker;
+
+    public CachingRevocationChecker(RevocationChecker checker) {
+        this.checker = checker;
+    }
+
+    // default cache size: 1000 certificates
+    private int cacheSize = 1000;
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    // default cache TTL: 5min
+    private long cacheTtlMillis = 5*60*1000L;
+
+    public void setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    /** A map from issuer and serial to CachedStatus, in access order */
+    private final Map<String, CachedStatus> statusMap =
+            new LinkedHashMap<String, CachedStatus>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    public int check(X509Certificate certificate, X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException {
+        String key =
+                certificate.getIssuerX500Principal().getName() + "#" +
+                certificate.getSerialNumber().toString(16);
+
+        synchronized (statusMap) {
+            CachedStatus cachedStatus = statusMap.get(key);
+            if (cachedStatus != null) {
+                if (cachedStatus.expiresAt > System.currentTimeMillis()) {
+                    logger.debug("Revocation status found in cache; key=" + key);
+
+                    return cachedStatus.status;
+                }
+                statusMap.remove(key);
+            }
+        }
+
+        int status = checker.check(certificate, chain);
+
+        if (status != UNKNOWN && cacheSize > 0) {
+            synchronized (statusMap) {
+                statusMap.put(key, new CachedStatus(
+                        status, System.currentTimeMillis() + cacheTtlMillis));
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Drop all cached answers, e.g. after learning of a revocation
+     */
+    public void clear() {
+        synchronized (statusMap) {
+            statusMap.clear();
+        }
+    }
+
+    private static class CachedStatus {
+
+        private final int status;
+
+        private final long expiresAt;
+
+        private CachedStatus(int status, long expiresAt) {
+            this.status = status;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers certificate paths that passed PKIX validation, so that chains
+ * seen before skip it. Entries are keyed by the SHA-256 fingerprints of the
+ * chain and the version of the trust anchors validated against, expire at
+ * the earliest NotAfter of the chain, and are dropped when any certificate
+ * of the chain is reported revoked.
+ *
+ * <p>Only successful validations are cached. A single cache may be shared
+ * by several engines; the trust anchors version keeps their entries apart.
+ */
+public class CertPathCache {
+
+    private static final Log logger = LogFactory.getLog(CertPathCache.class);
+
+    // default cache size: 5000 chains
+    private int cacheSize = 5000;
+
+    /**
+     * @param cacheSize the maximum number of chains held; the least recently
+     * used ones are evicted first
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /** A map from Key to the expiry time of the entry, in access order */
+    private final Map<Key, Long> pathMap = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * @param certificateChain the certificate chain
+     * @param trustAnchorsVersion the version of the trust anchors
+     * @return true if the chain was validated against these trust anchors,
+     * and none of its certificates has expired since
+     */
+    public boolean isValidated(X509Certificate[] certificateChain, long trustAnchorsVersion) {
+        Key key = new Key(certificateChain, trustAnchorsVersion);
+
+        synchronized (pathMap) {
+            Long expiresAt = pathMap.get(key);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (expiresAt.longValue() <= System.currentTimeMillis()) {
+                pathMap.remove(key);
+                return false;
+            }
+        }
+
+        logger.debug("Certificate path found in cache" +
+                "; subject=" + certificateChain[0].getSubjectX500Principal());
+
+        return true;
+    }
+
+    /**
+     * Record a chain that passed validation
+     *
+     * @param certificateChain the certificate chain
+     * @param trustAnchorsVersion the version of the trust anchors
+     */
+    public void putValidated(X509Certificate[] certificateChain, long trustAnchorsVersion) {
+        if (cacheSize <= 0) {
+            return;
+        }
+
+        long expiresAt = Long.MAX_VALUE;
+        for (int i=0; i<certificateChain.length; i++) {
+            expiresAt = Math.min(expiresAt, certificateChain[i].getNotAfter().getTime());
+        }
+
+        Key key = new Key(certificateChain, trustAnchorsVersion);
+        synchronized (pathMap) {
+            pathMap.put(key, new Long(expiresAt));
+        }
+    }
+
+    /**
+     * Drop all chains containing a certificate, e.g. once it is revoked
+     *
+     * @param certificate an {@link X509Certificate} object
+     */
+    public void invalidate(X509Certificate certificate) {
+        byte[] fingerprint = getFingerprint(certificate);
+
+        synchronized (pathMap) {
+            for (Iterator<Key> it = pathMap.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().contains(fingerprint)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all chains, e.g. once the trust anchors change
+     */
+    public void clear() {
+        synchronized (pathMap) {
+            pathMap.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (pathMap) {
+            return pathMap.size();
+        }
+    }
+
+    static byte[] getFingerprint(X509Certificate certificate) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("SHA-256 digest not found; should not happen");
+        } catch (CertificateEncodingException e) {
+            throw new IllegalArgumentException("Certificate cannot be encoded");
+        }
+    }
+
+    private static class Key {
+
+        private final byte[][] fingerprints;
+
+        private final long trustAnchorsVersion;
+
+        private final int hashCode;
+
+        private Key(X509Certificate[] certificateChain, long trustAnchorsVersion) {
+            this.fingerprints = new byte[certificateChain.length][];
+            this.trustAnchorsVersion = trustAnchorsVersion;
+
+            int hashCode = (int) (trustAnchorsVersion ^ (trustAnchorsVersion >>> 32));
+            for (int i=0; i<certificateChain.length; i++) {
+                fingerprints[i] = getFingerprint(certificateChain[i]);
+                hashCode = 31 * hashCode + Arrays.hashCode(fingerprints[i]);
+            }
+            this.hashCode = hashCode;
+        }
+
+        private boolean contains(byte[] fingerprint) {
+            for (int i=0; i<fingerprints.length; i++) {
+                if (Arrays.equals(fingerprints[i], fingerprint)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            if (    trustAnchorsVersion != other.trustAnchorsVersion ||
+                    fingerprints.length != other.fingerprints.length) {
+                return false;
+            }
+            for (int i=0; i<fingerprints.length; i++) {
+                if (!Arrays.equals(fingerprints[i], other.fingerprints[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Interns decoded certificates by the SHA-256 digest of their encoding, so
+ * that certificates recurring across documents, such as those of CAs, are
+ * parsed once and shared as a single instance. {@link X509Certificate}
+ * objects are immutable, so sharing them across threads is safe.
+ */
+public class CertificateCache {
+
+    // default cache size: 1000 certificates
+    private int cacheSize = 1000;
+
+    /**
+     * @param cacheSize the maximum number of certificates held; the least
+     * recently used ones are evicted first. 0 disables caching
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /** A map from Digest to X509Certificate, in access order */
+    private final Map<Digest, X509Certificate> certificateMap =
+            new LinkedHashMap<Digest, X509Certificate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Digest, X509Certificate> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * @param encoded the DER encoding of a certificate
+     * @return the decoded certificate; the same instance for equal encodings,
+     * while cached
+     * @throws CertificateException when the certificate cannot be decoded
+     */
+    public X509Certificate getCertificate(byte[] encoded) throws CertificateException {
+        Digest digest;
+        try {
+            digest = new Digest(MessageDigest.getInstance("SHA-256").digest(encoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("SHA-256 digest not found; should not happen");
+        }
+
+        synchronized (certificateMap) {
+            X509Certificate cached = certificateMap.get(digest);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Decode outside the lock; a race only costs a redundant decoding
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(encoded));
+
+        if (cacheSize <= 0) {
+            return certificate;
+        }
+
+        synchronized (certificateMap) {
+            X509Certificate cached = certificateMap.get(digest);
+            if (cached != null) {
+                return cached;
+            }
+            certificateMap.put(digest, certificate);
+        }
+
+        return certificate;
+    }
+
+    public int size() {
+        synchronized (certificateMap) {
+            return certificateMap.size();
+        }
+    }
+
+    private static class Digest {
+
+        private final byte[] bytes;
+
+        private final int hashCode;
+
+        private Digest(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Digest && Arrays.equals(bytes, ((Digest) o).bytes);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Asks a list of {@link RevocationChecker}s in order, and returns the first
+ * definitive answer; the cheapest checkers go first, so that the expensive
+ * ones are only asked when the cheap ones defer. A typical setup is an
+ * in-memory cache around OCSP, with CRL as the fallback:
+ *
+ * <pre>
+ * new CachingRevocationChecker(new CompositeRevocationChecker(
+ *         new RevocationChecker[] {
+ *                 new OCSPRevocationChecker(ocspHelper),
+ *                 new CRLRevocationChecker(crlHelper) }))
+ * </pre>
+ *
+ * A checker failing with a {@link NetworkAccessException} defers to the next
+ * one, unless deferOnNetworkError is unset; any other failure is final.
+ */
+public class CompositeRevocationChecker implements RevocationChecker {
+
+    private static final Log logger = LogFactory.getLog(CompositeRevocationChecker.class);
+
+    private final RevocationChecker[] checkers;
+
+    public CompositeRevocationChecker(RevocationChecker[] checkers) {
+        this.checkers = checkers.clone();
+    }
+
+    // default: a network failure is no answer; try the next checker
+    private boolean deferOnNetworkError = true;
+
+    public void setDeferOnNetworkError(boolean deferOnNetworkError) {
+        this.deferOnNetworkError = deferOnNetworkError;
+    }
+
+    /**
+     * @return {@link #UNKNOWN} if all checkers deferred
+     * @throws NetworkAccessException when a checker cannot be reached and no
+     * later checker answers
+     */
+    public int check(X509Certificate certificate, X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException {
+        NetworkAccessException networkError = null;
+
+        for (int i=0; i<checkers.length; i++) {
+            int status;
+            try {
+                status = checkers[i].check(certificate, chain);
+            } catch (NetworkAccessException e) {
+                if (!deferOnNetworkError) {
+                    throw e;
+                }
+
+                logger.warn("Revocation checker failed; deferring to the next one" +
+                        "; checker=" + checkers[i].getClass().getName(), e);
+                networkError = e;
+                continue;
+            }
+
+            if (status != UNKNOWN) {
+                return status;
+            }
+        }
+
+        if (networkError != null) {
+            throw networkError;
+        }
+
+        return UNKNOWN;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * A bounded pool of namespace aware {@link DocumentBuilder}s, configured
+ * once for parsing signed documents: DOCTYPE declarations and external
+ * entities are refused, and node expansion is deferred where the parser
+ * supports it. Builders are reset when returned to the pool, so that no
+ * state leaks from one document to the next.
+ *
+ * <p>A pool is thread-safe; unless told otherwise, verifiers share the
+ * {@link #getDefault() default} one.
+ */
+public class DocumentBuilderPool {
+
+    private static final Log logger = LogFactory.getLog(DocumentBuilderPool.class);
+
+    /** Parser features for signed documents, also applied to SAX parsers */
+    static final String[][] FEATURES = {
+        { "http://apache.org/xml/features/disallow-doctype-decl", "true" },
+        { "http://xml.org/sax/features/external-general-entities", "false" },
+        { "http://xml.org/sax/features/external-parameter-entities", "false" },
+        { "http://apache.org/xml/features/nonvalidating/load-external-dtd", "false" },
+        { "http://apache.org/xml/features/dom/defer-node-expansion", "true" },
+    };
+
+    private static final DocumentBuilderPool defaultPool = new DocumentBuilderPool();
+
+    /**
+     * @return the pool shared by verifiers which are not given one
+     */
+    public static DocumentBuilderPool getDefault() {
+        return defaultPool;
+    }
+
+    private final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+
+    {
+        builderFactory.setNamespaceAware(true);
+        builderFactory.setExpandEntityReferences(false);
+        setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        for (int i=0; i<FEATURES.length; i++) {
+            setFeature(FEATURES[i][0], Boolean.valueOf(FEATURES[i][1]).booleanValue());
+        }
+    }
+
+    private void setFeature(String name, boolean value) {
+        try {
+            builderFactory.setFeature(name, value);
+        } catch (ParserConfigurationException e) {
+            logger.debug("Parser feature not supported; name=" + name + ", value=" + value);
+        }
+    }
+
+    // default pool size: 2 builders per processor
+    private int maxIdle = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param maxIdle the maximum number of idle builders kept; builders
+     * returned to a full pool are dropped
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    private final LinkedList<DocumentBuilder> idleBuilders = new LinkedList<DocumentBuilder>();
+
+    /**
+     * @return an idle builder, or a new one if none is idle; hand it back
+     * through {@link #release(DocumentBuilder)} when done
+     */
+    public DocumentBuilder borrow() {
+        synchronized (idleBuilders) {
+            if (!idleBuilders.isEmpty()) {
+                return idleBuilders.removeFirst();
+            }
+        }
+
+        try {
+            // DocumentBuilderFactory is not guaranteed to be thread-safe
+            synchronized (builderFactory) {
+                return builderFactory.newDocumentBuilder();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new ConfigurationException("DocumentBuilder creation failed", e);
+        }
+    }
+
+    /**
+     * @param builder a builder obtained through {@link #borrow()}
+     */
+    public void release(DocumentBuilder builder) {
+        builder.reset();
+
+        synchronized (idleBuilders) {
+            if (idleBuilders.size() < maxIdle) {
+                idleBuilders.addFirst(builder);
+            }
+        }
+    }
+
+    /**
+     * Parse a document with a pooled builder
+     *
+     * @param is the serialized document
+     * @return the parsed {@link Document}
+     * @throws SAXException when the document cannot be parsed
+     * @throws IOException when the document cannot be read
+     */
+    public Document parse(InputStream is) throws SAXException, IOException {
+        DocumentBuilder builder = borrow();
+        try {
+            return builder.parse(is);
+        } finally {
+            release(builder);
+        }
+    }
+
+    /**
+     * @return the number of idle builders
+     */
+    public int getIdleCount() {
+        synchronized (idleBuilders) {
+            return idleBuilders.size();
+        }
+    }
+
+}
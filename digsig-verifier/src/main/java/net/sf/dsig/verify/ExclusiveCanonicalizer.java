@@ -0,0 +1,215 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.xml.sax.Attributes;
+
+/**
+ * Exclusive XML canonicalization, without comments, of an element subtree
+ * reported as SAX events; the canonical form is written out as the events
+ * arrive, so no part of the subtree is kept in memory. Events must come
+ * from a namespace aware parser which does not report xmlns attributes.
+ *
+ * <p>InclusiveNamespaces prefix lists are not supported.
+ */
+class ExclusiveCanonicalizer {
+
+    private final Writer writer;
+
+    /** Rendered namespace declarations, as a Map from prefix to URI per open element */
+    private final LinkedList<Map<String, String>> renderedStack =
+            new LinkedList<Map<String, String>>();
+
+    ExclusiveCanonicalizer(OutputStream os) {
+        try {
+            this.writer = new OutputStreamWriter(os, "UTF-8");
+        } catch (IOException e) {
+            throw new ConfigurationException("UTF-8 encoding not found; should not happen");
+        }
+    }
+
+    void startElement(String uri, String qName, Attributes attributes) throws IOException {
+        // Prefixes visibly utilized by the element and its attributes
+        Map<String, String> utilized = new TreeMap<String, String>();
+        utilized.put(getPrefix(qName), uri);
+
+        List<String[]> sortedAttributes = new ArrayList<String[]>();
+        for (int i=0; i<attributes.getLength(); i++) {
+            String attributeQName = attributes.getQName(i);
+            String prefix = getPrefix(attributeQName);
+            if (prefix.length() > 0 && !prefix.equals("xml")) {
+                utilized.put(prefix, attributes.getURI(i));
+            }
+
+            sortedAttributes.add(new String[] {
+                    attributes.getURI(i),
+                    attributes.getLocalName(i),
+                    attributeQName,
+                    attributes.getValue(i) });
+        }
+        Collections.sort(sortedAttributes, ATTRIBUTE_ORDER);
+
+        writer.write('<');
+        writer.write(qName);
+
+        Map<String, String> rendered = new HashMap<String, String>();
+        for (Iterator<Map.Entry<String, String>> it = utilized.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            String prefix = entry.getKey();
+            String namespaceUri = entry.getValue();
+
+            String current = getRendered(prefix);
+            if (current == null && prefix.length() == 0) {
+                current = "";
+            }
+            if (namespaceUri.equals(current)) {
+                continue;
+            }
+
+            writer.write(prefix.length() == 0 ? " xmlns=\"" : " xmlns:" + prefix + "=\"");
+            writeEscaped(namespaceUri, true);
+            writer.write('"');
+            rendered.put(prefix, namespaceUri);
+        }
+        renderedStack.addFirst(rendered);
+
+        for (int i=0; i<sortedAttributes.size(); i++) {
+            String[] attribute = sortedAttributes.get(i);
+            writer.write(' ');
+            writer.write(attribute[2]);
+            writer.write("=\"");
+            writeEscaped(attribute[3], true);
+            writer.write('"');
+        }
+
+        writer.write('>');
+    }
+
+    void endElement(String qName) throws IOException {
+        renderedStack.removeFirst();
+
+        writer.write("</");
+        writer.write(qName);
+        writer.write('>');
+    }
+
+    void characters(char[] ch, int start, int length) throws IOException {
+        writeEscaped(new String(ch, start, length), false);
+    }
+
+    void processingInstruction(String target, String data) throws IOException {
+        writer.write("<?");
+        writer.write(target);
+        if (data != null && data.length() > 0) {
+            writer.write(' ');
+            writer.write(data);
+        }
+        writer.write("?>");
+    }
+
+    /**
+     * Flush the canonical form written so far to the underlying stream
+     */
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    private String getRendered(String prefix) {
+        for (Iterator<Map<String, String>> it = renderedStack.iterator(); it.hasNext(); ) {
+            Map<String, String> rendered = it.next();
+            if (rendered.containsKey(prefix)) {
+                return rendered.get(prefix);
+            }
+        }
+
+        return null;
+    }
+
+    private void writeEscaped(String s, boolean attribute) throws IOException {
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                writer.write("&amp;");
+                break;
+            case '<':
+                writer.write("&lt;");
+                break;
+            case '>':
+                if (attribute) {
+                    writer.write(c);
+                } else {
+                    writer.write("&gt;");
+                }
+                break;
+            case '"':
+                if (attribute) {
+                    writer.write("&quot;");
+                } else {
+                    writer.write(c);
+                }
+                break;
+            case '\t':
+                if (attribute) {
+                    writer.write("&#x9;");
+                } else {
+                    writer.write(c);
+                }
+                break;
+            case '\n':
+                if (attribute) {
+                    writer.write("&#xA;");
+                } else {
+                    writer.write(c);
+                }
+                break;
+            case '\r':
+                writer.write("&#xD;");
+                break;
+            default:
+                writer.write(c);
+            }
+        }
+    }
+
+    private static String getPrefix(String qName) {
+        int index = qName.indexOf(':');
+        return index != -1 ? qName.substring(0, index) : "";
+    }
+
+    /** Attributes in no namespace first, then by namespace URI and local name */
+    private static final Comparator<String[]> ATTRIBUTE_ORDER = new Comparator<String[]>() {
+        public int compare(String[] a1, String[] a2) {
+            int result = a1[0].compareTo(a2[0]);
+            return result != 0 ? result : a1[1].compareTo(a2[1]);
+        }
+    };
+
+}
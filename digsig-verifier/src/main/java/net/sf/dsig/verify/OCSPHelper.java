@@ -18,24 +18,55 @@ package net.sf.dsig.verify;
 
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERObject;
+import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERString;
+import org.bouncycastle.asn1.ocsp.CertID;
 import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
 import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
 import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.ocsp.*;
+import org.bouncycastle.util.encoders.Base64;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.security.auth.x500.X500Principal;
 
 /**
  * A helper class that encapsulates OCSP checking logic
@@ -47,6 +78,14 @@ public class OCSPHelper {
 
     private static final String OID_AUTHORITYINFOACCESS = "1.3.6.1.5.5.7.1.1";
     
+    private static final String OID_SUBJECTKEYIDENTIFIER = "2.5.29.14";
+    
+    private static final String OID_AUTHORITYKEYIDENTIFIER = "2.5.29.35";
+    
+    private static final String OID_OCSPSIGNING = "1.3.6.1.5.5.7.3.9";
+    
+    private static final int MAX_GET_REQUEST_URI_LENGTH = 255;
+    
     private static final Log logger = LogFactory.getLog(OCSPHelper.class);
     
     static {
@@ -55,10 +94,61 @@ public class OCSPHelper {
         }
     }
     
-    private X509Certificate caCertificate;
+    private Issuer defaultIssuer;
     
+    /**
+     * @param caCertificate the issuer of certificates naming its subject,
+     * preferred over their chain; also assumed for certificates whose issuer
+     * is found neither among the CA certificates nor in their chain
+     */
     public void setCaCertificate(X509Certificate caCertificate) {
-        this.caCertificate = caCertificate;
+        defaultIssuer = caCertificate != null ? newIssuer(caCertificate) : null;
+    }
+    
+    /** A map from subject X500Principal to the List of Issuers with that name */
+    private volatile Map<X500Principal, List<Issuer>> issuerIndex =
+            Collections.emptyMap();
+    
+    /**
+     * @param caCertificates the certificates of the CAs whose certificates 
+     * are checked; issuers are looked up by subject name, and by key 
+     * identifier when several share a name
+     */
+    public void setCaCertificates(Collection<X509Certificate> caCertificates) {
+        Map<X500Principal, List<Issuer>> index = new HashMap<X500Principal, List<Issuer>>();
+        for (Iterator<X509Certificate> it = caCertificates.iterator(); it.hasNext(); ) {
+            Issuer issuer = newIssuer(it.next());
+            
+            List<Issuer> issuers = index.get(issuer.getSubject());
+            if (issuers == null) {
+                issuers = new ArrayList<Issuer>();
+                index.put(issuer.getSubject(), issuers);
+            }
+            issuers.add(issuer);
+        }
+        
+        issuerIndex = index;
+    }
+    
+    private static Issuer newIssuer(X509Certificate caCertificate) {
+        try {
+            return new Issuer(caCertificate);
+        } catch (OCSPException e) {
+            throw new ConfigurationException("Invalid CA certificate" +
+                    "; subjectName=" + caCertificate.getSubjectX500Principal().getName(), e);
+        }
+    }
+    
+    private X509Certificate responderCertificate;
+    
+    /**
+     * @param responderCertificate the certificate of a responder trusted 
+     * locally to sign responses for any issuer; without it, responses must be 
+     * signed by the issuer, or by a responder the issuer has delegated OCSP 
+     * signing to
+     */
+    public void setResponderCertificate(X509Certificate responderCertificate) {
+        this.responderCertificate = responderCertificate;
     }
     
     private String proxyHost;
@@ -78,6 +168,10 @@ public class OCSPHelper {
     public void setDefaultOcspAccessLocation(String defaultOcspAccessLocation) {
         this.defaultOcspAccessLocation = defaultOcspAccessLocation;
     }
+    
+    String getDefaultOcspAccessLocation() {
+        return defaultOcspAccessLocation;
+    }
 
     // default timeout: 5sec
     private int timeoutMillis = 5*1000;
@@ -93,40 +187,118 @@ public class OCSPHelper {
         this.connectionManagerTimeoutMillis = connectionManagerTimeoutMillis;
     }
 
-    private HostConfiguration getHostConfiguration() {
-        HostConfiguration config = new HostConfiguration();
-        
-        if (proxyHost != null && proxyPort != -1) {
-            logger.debug("Setting proxy" + 
-                    "; proxyHost=" + proxyHost +
-                    "; proxyPort=" + proxyPort);
-            config.setProxy(proxyHost, proxyPort);
-        }
-        
-        return config;
+    // default cache size: 1000 responses
+    private int cacheSize = 1000;
+
+    /**
+     * @param cacheSize the maximum number of responses held in the response
+     * cache; the least recently used ones are evicted first. 0 disables caching
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    // default cache TTL: 5min
+    private long cacheTtlMillis = 5*60*1000L;
+
+    /**
+     * @param cacheTtlMillis the longest time responses are cached for; those
+     * with an earlier NextUpdate expire then
+     */
+    public void setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
     }
 
-    private HttpConnectionManager getConnectionManager() {
-        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
-        connectionManager.getParams().setSoTimeout(timeoutMillis);
-        connectionManager.getParams().setConnectionTimeout(timeoutMillis);
+    private boolean lightweightProfile = false;
 
-        return connectionManager;
+    /**
+     * @param lightweightProfile true to follow the RFC 5019 lightweight
+     * profile; requests carry no nonce, and single certificate requests are
+     * sent with HTTP GET, so that HTTP caches in front of the responder can
+     * serve them. Requests that do not fit a GET are still POSTed. In place
+     * of the nonce, responses are checked for freshness
+     * @see #setMaxResponseAgeMillis(long)
+     */
+    public void setLightweightProfile(boolean lightweightProfile) {
+        this.lightweightProfile = lightweightProfile;
     }
 
-    private HttpClient httpClient;
+    // default clock skew: 5min
+    private long clockSkewMillis = 5*60*1000L;
 
-    private HttpClient getHttpClient() {
-        if (httpClient == null) {
-            httpClient = new HttpClient(getConnectionManager());
-            httpClient.getParams().setConnectionManagerTimeout(connectionManagerTimeoutMillis);
+    /**
+     * @param clockSkewMillis the difference allowed between the clocks of
+     * the responder and this host when checking ThisUpdate and NextUpdate
+     */
+    public void setClockSkewMillis(long clockSkewMillis) {
+        this.clockSkewMillis = clockSkewMillis;
+    }
+
+    // default maximum age of responses without nonce: 7 days
+    private long maxResponseAgeMillis = 7*24*60*60*1000L;
+
+    /**
+     * @param maxResponseAgeMillis the oldest ThisUpdate accepted for
+     * responses to requests without nonce, as sent in the lightweight
+     * profile; such responses may come from an HTTP cache
+     */
+    public void setMaxResponseAgeMillis(long maxResponseAgeMillis) {
+        this.maxResponseAgeMillis = maxResponseAgeMillis;
+    }
+
+    // default batch size: 20 certificates per request
+    private int maxBatchSize = 20;
+
+    /**
+     * @param maxBatchSize the maximum number of certificates checked with a
+     * single OCSP request
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** A map from CertificateID to the OCSP check in progress, if any */
+    private final ConcurrentMap<CertificateID, PendingStatus> cidPendingMap =
+            new ConcurrentHashMap<CertificateID, PendingStatus>();
+
+    /** A map from CertificateID to CachedStatus, in access order */
+    private final Map<CertificateID, CachedStatus> cidStatusMap =
+            new LinkedHashMap<CertificateID, CachedStatus>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<CertificateID, CachedStatus> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    private RevocationTransport transport;
+
+    /**
+     * @param transport the HTTP transport to use, possibly shared with other
+     * helpers; when set, the proxy and timeout settings of this helper are
+     * ignored
+     */
+    public synchronized void setTransport(RevocationTransport transport) {
+        this.transport = transport;
+    }
+
+    private synchronized RevocationTransport getTransport() {
+        if (transport == null) {
+            transport = new RevocationTransport();
+            transport.setProxyHost(proxyHost);
+            transport.setProxyPort(proxyPort);
+            transport.setTimeoutMillis(timeoutMillis);
+            transport.setConnectionManagerTimeoutMillis(connectionManagerTimeoutMillis);
         }
 
-        return httpClient;
+        return transport;
     }
 
     /**
-     * Check with OCSP protocol whether a certificate is valid
+     * Check with OCSP protocol whether a certificate is valid. Responses are
+     * only trusted when signed by an authorised responder, and are cached by
+     * CertificateID until their NextUpdate, for no longer than the cache TTL.
+     * Concurrent checks of the same certificate share a single request.
      * 
      * @param certificate an {@link X509Certificate} object
      * @return true if the certificate is valid; false otherwise
@@ -135,26 +307,410 @@ public class OCSPHelper {
      */
     public boolean isValid(X509Certificate certificate) 
     throws NetworkAccessException, VerificationException {
-        PostMethod post = null;
+        return isValid(certificate, null);
+    }
+    
+    /**
+     * Check with OCSP protocol whether a certificate is valid, as in 
+     * {@link #isValid(X509Certificate)}, looking for its issuer in the chain
+     * if it is not among the CA certificates
+     * 
+     * @param certificate an {@link X509Certificate} object
+     * @param chain the certificate chain; may be null
+     * @return true if the certificate is valid; false otherwise
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an OCSP related error occurs
+     */
+    public boolean isValid(X509Certificate certificate, X509Certificate[] chain) 
+    throws NetworkAccessException, VerificationException {
+        Map<X509Certificate, Boolean> results = isValid(new X509Certificate[] { certificate }, chain);
+        
+        return results.get(certificate).booleanValue();
+    }
+    
+    /**
+     * Check with OCSP protocol whether several certificates are valid. The 
+     * certificates are grouped by OCSP access location, and each group is 
+     * checked with as few requests as possible, carrying up to maxBatchSize
+     * CertificateIDs each. Cached responses are used as in 
+     * {@link #isValid(X509Certificate)}.
+     * 
+     * @param certificates the {@link X509Certificate} objects
+     * @return a Map from each certificate to Boolean.TRUE if it is valid, or 
+     * Boolean.FALSE otherwise
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an OCSP related error occurs
+     */
+    public Map<X509Certificate, Boolean> isValid(X509Certificate[] certificates) 
+    throws NetworkAccessException, VerificationException {
+        return isValid(certificates, null);
+    }
+    
+    /**
+     * Check with OCSP protocol whether several certificates are valid, as in
+     * {@link #isValid(X509Certificate[])}, looking for their issuers in the 
+     * chain if they are not among the CA certificates
+     * 
+     * @param certificates the {@link X509Certificate} objects
+     * @param chain the certificate chain; may be null
+     * @return a Map from each certificate to Boolean.TRUE if it is valid, or 
+     * Boolean.FALSE otherwise
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an OCSP related error occurs
+     */
+    public Map<X509Certificate, Boolean> isValid(
+            X509Certificate[] certificates, X509Certificate[] chain) 
+    throws NetworkAccessException, VerificationException {
+        Map<X509Certificate, Boolean> results = new LinkedHashMap<X509Certificate, Boolean>();
+        for (   Iterator<Map.Entry<X509Certificate, Integer>> it =
+                        getStatuses(certificates, chain).entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<X509Certificate, Integer> entry = it.next();
+            results.put(entry.getKey(), Boolean.valueOf(
+                    entry.getValue().intValue() == RevocationChecker.GOOD));
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Check with OCSP protocol the status of a certificate, telling revoked
+     * certificates apart from those the responder does not know about
+     * 
+     * @param certificate an {@link X509Certificate} object
+     * @param chain the certificate chain; may be null
+     * @return one of {@link RevocationChecker#GOOD}, 
+     * {@link RevocationChecker#REVOKED} or {@link RevocationChecker#UNKNOWN}
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an OCSP related error occurs
+     */
+    public int getStatus(X509Certificate certificate, X509Certificate[] chain) 
+    throws NetworkAccessException, VerificationException {
+        Map<X509Certificate, Integer> results =
+                getStatuses(new X509Certificate[] { certificate }, chain);
         
+        return results.get(certificate).intValue();
+    }
+    
+    /**
+     * Check with OCSP protocol the status of several certificates, as in
+     * {@link #isValid(X509Certificate[], X509Certificate[])}
+     * 
+     * @param certificates the {@link X509Certificate} objects
+     * @param chain the certificate chain; may be null
+     * @return a Map from each certificate to an Integer, holding one of 
+     * {@link RevocationChecker#GOOD}, {@link RevocationChecker#REVOKED} or 
+     * {@link RevocationChecker#UNKNOWN}
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an OCSP related error occurs
+     */
+    public Map<X509Certificate, Integer> getStatuses(
+            X509Certificate[] certificates, X509Certificate[] chain) 
+    throws NetworkAccessException, VerificationException {
+        Map<X509Certificate, Integer> results = new LinkedHashMap<X509Certificate, Integer>();
+        
+        // A map from OCSP access location to the certificates this call 
+        // checks, themselves kept in a map from CertificateID to certificate
+        Map<String, Map<CertificateID, X509Certificate>> uriPendingMap =
+                new LinkedHashMap<String, Map<CertificateID, X509Certificate>>();
+        
+        // A map from CertificateID to the PendingStatus this call completes
+        Map<CertificateID, PendingStatus> ownedMap = new LinkedHashMap<CertificateID, PendingStatus>();
+        
+        // A map from certificate to the PendingStatus of another call
+        Map<X509Certificate, PendingStatus> awaitedMap =
+                new LinkedHashMap<X509Certificate, PendingStatus>();
+        
+        // A map from CertificateID to its Issuer
+        Map<CertificateID, Issuer> cidIssuerMap = new HashMap<CertificateID, Issuer>();
+        
+        Exception failure = null;
         try {
-            CertificateID cid = new CertificateID(
-                    CertificateID.HASH_SHA1,
-                    caCertificate,
-                    certificate.getSerialNumber());
+            for (int i=0; i<certificates.length; i++) {
+                X509Certificate certificate = certificates[i];
+                if (results.containsKey(certificate) || awaitedMap.containsKey(certificate)) {
+                    continue;
+                }
+                
+                Issuer issuer = getIssuer(certificate, chain);
+                CertificateID cid = issuer.newCertificateID(certificate.getSerialNumber());
+                cidIssuerMap.put(cid, issuer);
+                
+                Integer cachedResult = getCachedResult(cid);
+                if (cachedResult != null) {
+                    results.put(certificate, cachedResult);
+                    continue;
+                }
+                
+                String uriAsString = getAccessLocationUri(certificate);
+                
+                if (!ownedMap.containsKey(cid)) {
+                    PendingStatus pendingStatus = new PendingStatus();
+                    PendingStatus inProgress =
+                            cidPendingMap.putIfAbsent(cid, pendingStatus);
+                    if (inProgress != null) {
+                        logger.debug("Waiting for OCSP check in progress" +
+                                "; serialNumber=" + certificate.getSerialNumber().toString(16));
+                        
+                        awaitedMap.put(certificate, inProgress);
+                        continue;
+                    }
+                    ownedMap.put(cid, pendingStatus);
+                    
+                    // Another check may have completed since the cache was checked
+                    cachedResult = getCachedResult(cid);
+                    if (cachedResult != null) {
+                        pendingStatus.complete(cachedResult);
+                        results.put(certificate, cachedResult);
+                        continue;
+                    }
+                }
+                
+                Map<CertificateID, X509Certificate> pending = uriPendingMap.get(uriAsString);
+                if (pending == null) {
+                    pending = new LinkedHashMap<CertificateID, X509Certificate>();
+                    uriPendingMap.put(uriAsString, pending);
+                }
+                pending.put(cid, certificate);
+            }
+            
+            for (   Iterator<Map.Entry<String, Map<CertificateID, X509Certificate>>> it =
+                            uriPendingMap.entrySet().iterator();
+                    it.hasNext(); ) {
+                Map.Entry<String, Map<CertificateID, X509Certificate>> entry = it.next();
+                String uriAsString = entry.getKey();
+                Map<CertificateID, X509Certificate> pending = entry.getValue();
+                
+                List<CertificateID> cids = new ArrayList<CertificateID>(pending.keySet());
+                int batchSize = Math.max(1, maxBatchSize);
+                for (int from=0; from<cids.size(); from+=batchSize) {
+                    List<CertificateID> batch =
+                            cids.subList(from, Math.min(from + batchSize, cids.size()));
+                    BasicOCSPResp res = requestResponse(uriAsString, batch);
+                    SingleResp[] responses = res.getResponses();
+                    
+                    List<Issuer> issuers = new ArrayList<Issuer>();
+                    for (int i=0; i<batch.size(); i++) {
+                        Issuer issuer = cidIssuerMap.get(batch.get(i));
+                        if (!issuers.contains(issuer)) {
+                            issuers.add(issuer);
+                        }
+                    }
+                    verifyResponse(res, issuers);
+                    
+                    for (int i=0; i<batch.size(); i++) {
+                        CertificateID cid = batch.get(i);
+                        SingleResp response = findResponse(responses, cid);
+                        if (response == null) {
+                            throw new VerificationException(
+                                    "OCSP response lacks requested certificate" +
+                                    "; serialNumber=" + cid.getSerialNumber().toString(16));
+                        }
+                        
+                        checkFreshness(response);
+                        
+                        CertificateStatus status = (CertificateStatus) response.getCertStatus();
+                        putCachedStatus(cid, status, response.getNextUpdate());
+                        
+                        Integer result = new Integer(toResult(status));
+                        ownedMap.get(cid).complete(result);
+                        results.put(pending.get(cid), result);
+                    }
+                }
+            }
+        } catch (NetworkAccessException e) {
+            failure = e;
+            throw e;
+        } catch (VerificationException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (OCSPException e) {
+            failure = new VerificationException("Error while following OCSP protocol", e);
+            throw (VerificationException) failure;
+        } finally {
+            // Waiting calls must never be left hanging
+            for (   Iterator<Map.Entry<CertificateID, PendingStatus>> it =
+                            ownedMap.entrySet().iterator();
+                    it.hasNext(); ) {
+                Map.Entry<CertificateID, PendingStatus> entry = it.next();
+                PendingStatus pendingStatus = entry.getValue();
+                if (!pendingStatus.isDone()) {
+                    pendingStatus.fail(failure != null ? 
+                            failure : 
+                            new NetworkAccessException("OCSP check abandoned"));
+                }
+                cidPendingMap.remove(entry.getKey(), pendingStatus);
+            }
+        }
+        
+        // Only wait for others once all checks of this call are complete, so
+        // that calls waiting on each other never deadlock
+        for (   Iterator<Map.Entry<X509Certificate, PendingStatus>> it =
+                        awaitedMap.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<X509Certificate, PendingStatus> entry = it.next();
+            results.put(entry.getKey(), awaitStatus(entry.getValue()));
+        }
+        
+        return results;
+    }
+    
+    private Integer getCachedResult(CertificateID cid) {
+        CachedStatus cachedStatus = getCachedStatus(cid);
+        if (cachedStatus == null) {
+            return null;
+        }
+        
+        logger.debug("OCSP response found in cache" +
+                "; serialNumber=" + cid.getSerialNumber().toString(16) +
+                ", expiresAt=" + new Date(cachedStatus.expiresAt));
+        
+        return new Integer(toResult(cachedStatus.status));
+    }
+    
+    private Integer awaitStatus(PendingStatus pendingStatus) 
+    throws NetworkAccessException, VerificationException {
+        try {
+            return pendingStatus.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkAccessException("Interrupted while waiting for OCSP check", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkAccessException) {
+                throw (NetworkAccessException) cause;
+            } else if (cause instanceof VerificationException) {
+                throw (VerificationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            
+            throw new VerificationException("OCSP check failed", cause);
+        }
+    }
+    
+    /**
+     * Find the issuer of a certificate; first among the CA certificates, then
+     * in the chain, and last falling back to the CA certificate
+     */
+    private Issuer getIssuer(X509Certificate certificate, X509Certificate[] chain) 
+    throws OCSPException {
+        X500Principal issuerName = certificate.getIssuerX500Principal();
+        byte[] authorityKeyIdentifier = getAuthorityKeyIdentifier(certificate);
+        
+        List<Issuer> issuers = issuerIndex.get(issuerName);
+        if (issuers != null) {
+            for (int i=0; i<issuers.size(); i++) {
+                Issuer issuer = issuers.get(i);
+                if (authorityKeyIdentifier == null || issuer.hasKeyIdentifier(authorityKeyIdentifier)) {
+                    return issuer;
+                }
+            }
+        }
+        
+        Issuer defaultIssuer = this.defaultIssuer;
+        if (    defaultIssuer != null && 
+                defaultIssuer.getSubject().equals(issuerName) &&
+                (authorityKeyIdentifier == null || defaultIssuer.hasKeyIdentifier(authorityKeyIdentifier))) {
+            return defaultIssuer;
+        }
+        
+        if (chain != null) {
+            for (int i=0; i<chain.length; i++) {
+                if (!chain[i].getSubjectX500Principal().equals(issuerName)) {
+                    continue;
+                }
+                
+                Issuer issuer = getChainIssuer(chain[i]);
+                if (authorityKeyIdentifier == null || issuer.hasKeyIdentifier(authorityKeyIdentifier)) {
+                    return issuer;
+                }
+            }
+        }
+        
+        if (defaultIssuer != null) {
+            return defaultIssuer;
+        }
+        
+        throw new ConfigurationException("Issuer certificate not found; issuerName=" + issuerName.getName());
+    }
+    
+    private static final int CHAIN_ISSUER_CACHE_SIZE = 100;
+    
+    /** A map from X509Certificate to Issuer, for issuers found in chains */
+    private final Map<X509Certificate, Issuer> chainIssuerMap =
+            new LinkedHashMap<X509Certificate, Issuer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        protected boolean removeEldestEntry(Map.Entry<X509Certificate, Issuer> eldest) {
+            return size() > CHAIN_ISSUER_CACHE_SIZE;
+        }
+    };
+    
+    private Issuer getChainIssuer(X509Certificate certificate) throws OCSPException {
+        synchronized (chainIssuerMap) {
+            Issuer issuer = chainIssuerMap.get(certificate);
+            if (issuer == null) {
+                issuer = new Issuer(certificate);
+                chainIssuerMap.put(certificate, issuer);
+            }
             
+            return issuer;
+        }
+    }
+    
+    private String getAccessLocationUri(X509Certificate certificate) {
+        // First try finding the OCSP access location in the X.509 certificate
+        String uriAsString = getOCSPAccessLocationUri(certificate);
+        
+        // If not found, try falling back to the default
+        if (uriAsString == null) {
+            uriAsString = defaultOcspAccessLocation; 
+        }
+        
+        // If still null, bail out
+        if (uriAsString == null) {
+            throw new ConfigurationException("OCSP AccessLocation not found on certificate, and no default set");
+        }
+        
+        return uriAsString;
+    }
+    
+    /**
+     * Send a single OCSP request for a number of certificates
+     * 
+     * @param uriAsString the OCSP access location
+     * @param cids the List of {@link CertificateID} objects to request
+     * @return the response, not yet verified
+     */
+    private BasicOCSPResp requestResponse(String uriAsString, List<CertificateID> cids) 
+    throws NetworkAccessException, OCSPException {
+        HttpMethod method = null;
+        
+        try {
             OCSPReqGenerator gen = new OCSPReqGenerator();
-            gen.addRequest(cid);
+            for (int i=0; i<cids.size(); i++) {
+                gen.addRequest(cids.get(i));
+            }
 
-            // Nonce
-            BigInteger nonce = BigInteger.valueOf(System.currentTimeMillis());
-            Vector oids = new Vector();
-            Vector values = new Vector();
-            oids.add(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
-            values.add(new X509Extension(false, new DEROctetString(nonce.toByteArray())));
-            values.add(new X509Extension(false, new DEROctetString(
-                    new BigInteger("041063FAB2B54CF1ED014F9DF7C70AACE575", 16).toByteArray())));
-            gen.setRequestExtensions(new X509Extensions(oids, values));
+            // Nonce; a unique request would defeat HTTP caching, so it is
+            // left out in the lightweight profile
+            BigInteger nonce = null;
+            if (!lightweightProfile) {
+                nonce = BigInteger.valueOf(System.currentTimeMillis());
+                Vector<DERObjectIdentifier> oids = new Vector<DERObjectIdentifier>();
+                Vector<X509Extension> values = new Vector<X509Extension>();
+                oids.add(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+                values.add(new X509Extension(false, new DEROctetString(nonce.toByteArray())));
+                values.add(new X509Extension(false, new DEROctetString(
+                        new BigInteger("041063FAB2B54CF1ED014F9DF7C70AACE575", 16).toByteArray())));
+                gen.setRequestExtensions(new X509Extensions(oids, values));
+            }
             
             // Requestor name - not really required, but added for completeness
 //          gen.setRequestorName(
@@ -163,45 +719,43 @@ public class OCSPHelper {
 //                                  certificate.getSubjectX500Principal().getName())));
             
             logger.debug("Generating OCSP request" +
-                    "; serialNumber=" + certificate.getSerialNumber().toString(16) +
-                    ", nonce=" + nonce.toString(16) +
-                    ", caCertificate.subjectName=" + caCertificate.getSubjectX500Principal().getName()); 
+                    "; serialNumbers=" + getSerialNumbers(cids) +
+                    ", nonce=" + (nonce != null ? nonce.toString(16) : null)); 
             
             // TODO Need to call the generate(...) method, that signs the 
             // request. Which means, need to have a keypair for that, too
             OCSPReq req = gen.generate();
+            byte[] requestBytes = req.getEncoded();
             
-            // First try finding the OCSP access location in the X.509 certificate
-            String uriAsString = getOCSPAccessLocationUri(certificate);
-            
-            // If not found, try falling back to the default
-            if (uriAsString == null) {
-                uriAsString = defaultOcspAccessLocation; 
+            // RFC 5019 only allows GET for single certificate requests, and
+            // for URLs of up to 255 bytes
+            if (lightweightProfile && cids.size() == 1) {
+                String getUriAsString = getGetRequestUri(uriAsString, requestBytes);
+                if (getUriAsString.length() <= MAX_GET_REQUEST_URI_LENGTH) {
+                    method = new GetMethod(getUriAsString);
+                }
             }
             
-            // If still null, bail out
-            if (uriAsString == null) {
-                throw new ConfigurationException("OCSP AccessLocation not found on certificate, and no default set");
+            if (method == null) {
+                PostMethod post = new PostMethod(uriAsString);
+                post.setRequestHeader("Content-Type", "application/ocsp-request");
+                post.setRequestEntity(new ByteArrayRequestEntity(requestBytes));
+                method = post;
             }
-            
-            HostConfiguration config = getHostConfiguration();
-            
-            post = new PostMethod(uriAsString);
-            post.setRequestHeader("Content-Type", "application/ocsp-request");
-            post.setRequestHeader("Accept", "application/ocsp-response");
-            post.setRequestEntity(new ByteArrayRequestEntity(req.getEncoded()));
+            method.setRequestHeader("Accept", "application/ocsp-response");
         
-            getHttpClient().executeMethod(config, post);
+            getTransport().execute(method);
             
-            logger.debug("HTTP POST executed" + 
+            logger.debug("HTTP " + method.getName() + " executed" + 
                     "; authorityInfoAccessUri=" + uriAsString +
-                    ", statusLine=" + post.getStatusLine());
+                    ", statusLine=" + method.getStatusLine());
                     
-            if (post.getStatusCode() != HttpStatus.SC_OK) {
-                throw new NetworkAccessException("HTTP GET failed; statusLine=" + post.getStatusLine());
+            if (method.getStatusCode() != HttpStatus.SC_OK) {
+                throw new NetworkAccessException(
+                        "HTTP " + method.getName() + " failed; statusLine=" + method.getStatusLine());
             }
             
-            byte[] responseBodyBytes = post.getResponseBody();
+            byte[] responseBodyBytes = method.getResponseBody();
             
             OCSPResp ocspRes = new OCSPResp(responseBodyBytes);
             if (ocspRes.getStatus() != OCSPResponseStatus.SUCCESSFUL) {
@@ -211,22 +765,350 @@ public class OCSPHelper {
                         "; status=" + ocspRes.getStatus());
             }
             
-            BasicOCSPResp res = (BasicOCSPResp) ocspRes.getResponseObject();
-            SingleResp[] responses = res.getResponses();
-            SingleResp response = responses[0];
-            
-            CertificateStatus status = (CertificateStatus) response.getCertStatus();
-            // Normal OCSP protocol allows a null status
-            return status == null || status == CertificateStatus.GOOD;
+            return (BasicOCSPResp) ocspRes.getResponseObject();
         } catch (IOException e) {
             throw new NetworkAccessException("I/O error occured", e);
-        } catch (OCSPException e) {
-            throw new VerificationException("Error while following OCSP protocol", e);
         } finally {
-            if (post != null) {
-                post.releaseConnection();
+            if (method != null) {
+                method.releaseConnection();
+            }
+        }
+    }
+    
+    /**
+     * Check ThisUpdate and NextUpdate, as RFC 5019 requires of clients; 
+     * without a nonce, this is all that tells a fresh response from a
+     * replayed or long cached one
+     * 
+     * @throws VerificationException when the response is not yet valid, 
+     * expired, or too old
+     */
+    private void checkFreshness(SingleResp response) throws VerificationException {
+        long now = System.currentTimeMillis();
+        Date thisUpdate = response.getThisUpdate();
+        Date nextUpdate = response.getNextUpdate();
+        
+        String reason = null;
+        if (thisUpdate.getTime() > now + clockSkewMillis) {
+            reason = "OCSP response not yet valid";
+        } else if (nextUpdate != null && nextUpdate.getTime() < now - clockSkewMillis) {
+            reason = "OCSP response expired";
+        } else if (     lightweightProfile && 
+                        thisUpdate.getTime() < now - clockSkewMillis - maxResponseAgeMillis) {
+            reason = "OCSP response too old";
+        }
+        
+        if (reason != null) {
+            throw new VerificationException(reason + 
+                    "; serialNumber=" + response.getCertID().getSerialNumber().toString(16) +
+                    ", thisUpdate=" + thisUpdate +
+                    ", nextUpdate=" + nextUpdate);
+        }
+    }
+    
+    /**
+     * Check that a response is signed by a responder authorised for each of
+     * the issuers; the locally trusted responder, the issuer itself, or a 
+     * responder certificate included in the response, issued by the issuer
+     * for OCSP signing
+     * 
+     * @param issuers the List of {@link Issuer}s of the requested certificates
+     * @throws VerificationException when no authorised responder signed it
+     */
+    private void verifyResponse(BasicOCSPResp res, List<Issuer> issuers) 
+    throws VerificationException, OCSPException {
+        if (responderCertificate != null && isSignedBy(res, responderCertificate.getPublicKey())) {
+            return;
+        }
+        
+        X509Certificate[] certs;
+        try {
+            certs = res.getCerts("BC");
+        } catch (NoSuchProviderException e) {
+            throw new ConfigurationException("BC provider not found; should not happen");
+        }
+        
+        for (int i=0; i<issuers.size(); i++) {
+            Issuer issuer = issuers.get(i);
+            if (!isSignedByResponderOf(res, issuer, certs)) {
+                throw new VerificationException("OCSP response not signed by an authorised responder" +
+                        "; issuerName=" + issuer.getSubject().getName());
+            }
+        }
+    }
+    
+    private static boolean isSignedByResponderOf(
+            BasicOCSPResp res, Issuer issuer, X509Certificate[] certs) {
+        PublicKey issuerKey = issuer.getCertificate().getPublicKey();
+        if (isSignedBy(res, issuerKey)) {
+            return true;
+        }
+        
+        for (int i=0; certs != null && i<certs.length; i++) {
+            X509Certificate cert = certs[i];
+            if (!cert.getIssuerX500Principal().equals(issuer.getSubject())) {
+                continue;
+            }
+            
+            try {
+                cert.verify(issuerKey);
+                cert.checkValidity();
+                
+                List<String> extendedKeyUsage = cert.getExtendedKeyUsage();
+                if (extendedKeyUsage == null || !extendedKeyUsage.contains(OID_OCSPSIGNING)) {
+                    continue;
+                }
+            } catch (GeneralSecurityException e) {
+                logger.debug("Responder certificate not authorised" +
+                        "; subjectName=" + cert.getSubjectX500Principal().getName(), e);
+                continue;
+            }
+            
+            if (isSignedBy(res, cert.getPublicKey())) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean isSignedBy(BasicOCSPResp res, PublicKey key) {
+        try {
+            return res.verify(key, "BC");
+        } catch (OCSPException e) {
+            // e.g. a key of the wrong type
+            return false;
+        } catch (NoSuchProviderException e) {
+            throw new ConfigurationException("BC provider not found; should not happen");
+        }
+    }
+    
+    /**
+     * @return the access location, followed by the URL-encoded Base64 of the 
+     * DER-encoded request, as per RFC 5019
+     */
+    private static String getGetRequestUri(String uriAsString, byte[] requestBytes) 
+    throws UnsupportedEncodingException {
+        String base64 = new String(Base64.encode(requestBytes), "US-ASCII");
+        
+        return 
+                uriAsString + 
+                (uriAsString.endsWith("/") ? "" : "/") +
+                URLEncoder.encode(base64, "US-ASCII");
+    }
+    
+    /**
+     * Match responses by issuer hashes and serial, rather than by encoding, 
+     * since responders may encode the hash algorithm parameters differently
+     */
+    private static SingleResp findResponse(SingleResp[] responses, CertificateID cid) {
+        for (int i=0; i<responses.length; i++) {
+            CertificateID each = responses[i].getCertID();
+            if (    each.getSerialNumber().equals(cid.getSerialNumber()) &&
+                    Arrays.equals(each.getIssuerNameHash(), cid.getIssuerNameHash()) &&
+                    Arrays.equals(each.getIssuerKeyHash(), cid.getIssuerKeyHash())) {
+                return responses[i];
             }
         }
+        
+        return null;
+    }
+    
+    private static String getSerialNumbers(List<CertificateID> cids) {
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<cids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(cids.get(i).getSerialNumber().toString(16));
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * An issuer certificate, with the hashes identifying it in CertificateIDs
+     * computed once
+     */
+    private static class Issuer {
+        
+        private final X509Certificate certificate;
+        
+        private final X500Principal subject;
+        
+        private final AlgorithmIdentifier hashAlgorithm;
+        
+        private final DEROctetString issuerNameHash;
+        
+        private final DEROctetString issuerKeyHash;
+        
+        private final byte[] keyIdentifier;
+        
+        private Issuer(X509Certificate certificate) throws OCSPException {
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                
+                this.certificate = certificate;
+                subject = certificate.getSubjectX500Principal();
+                hashAlgorithm = new AlgorithmIdentifier(
+                        new DERObjectIdentifier(CertificateID.HASH_SHA1), 
+                        new DERNull());
+                issuerNameHash = new DEROctetString(sha1.digest(subject.getEncoded()));
+                
+                ASN1InputStream ais = new ASN1InputStream(certificate.getPublicKey().getEncoded());
+                SubjectPublicKeyInfo info = SubjectPublicKeyInfo.getInstance(ais.readObject());
+                ais.close();
+                byte[] keyHash = sha1.digest(info.getPublicKeyData().getBytes());
+                issuerKeyHash = new DEROctetString(keyHash);
+                
+                // Most CAs derive their key identifier from the key hash
+                byte[] subjectKeyIdentifier = getSubjectKeyIdentifier(certificate);
+                keyIdentifier = subjectKeyIdentifier != null ? subjectKeyIdentifier : keyHash;
+            } catch (NoSuchAlgorithmException e) {
+                throw new ConfigurationException("SHA-1 algorithm not found; should not happen");
+            } catch (IOException e) {
+                throw new OCSPException("Issuer public key decoding failed", e);
+            }
+        }
+        
+        private X509Certificate getCertificate() {
+            return certificate;
+        }
+        
+        private X500Principal getSubject() {
+            return subject;
+        }
+        
+        private boolean hasKeyIdentifier(byte[] keyIdentifier) {
+            return Arrays.equals(this.keyIdentifier, keyIdentifier);
+        }
+        
+        private CertificateID newCertificateID(BigInteger serialNumber) {
+            return new CertificateID(new CertID(
+                    hashAlgorithm, 
+                    issuerNameHash, 
+                    issuerKeyHash, 
+                    new DERInteger(serialNumber)));
+        }
+        
+    }
+    
+    static byte[] getSubjectKeyIdentifier(X509Certificate certificate) throws IOException {
+        DEROctetString dos = (DEROctetString) getExtension(certificate, OID_SUBJECTKEYIDENTIFIER);
+        
+        return dos != null ? dos.getOctets() : null;
+    }
+    
+    static byte[] getAuthorityKeyIdentifier(X509Certificate certificate) {
+        try {
+            DERSequence seq = (DERSequence) getExtension(certificate, OID_AUTHORITYKEYIDENTIFIER);
+            
+            return seq != null ? new AuthorityKeyIdentifier(seq).getKeyIdentifier() : null;
+        } catch (IOException e) {
+            logger.warn("ASN.1 decoding failed; will look up issuer by name only");
+            
+            return null;
+        }
+    }
+    
+    private static DERObject getExtension(X509Certificate certificate, String oid) throws IOException {
+        byte[] derBytes = certificate.getExtensionValue(oid);
+        if (derBytes == null) {
+            return null;
+        }
+        
+        ASN1InputStream ais = new ASN1InputStream(derBytes);
+        DEROctetString dos = (DEROctetString) ais.readObject();
+        ais.close();
+        
+        ais = new ASN1InputStream(dos.getOctets());
+        DERObject extension = ais.readObject();
+        ais.close();
+        
+        return extension;
+    }
+    
+    /** 
+     * The outcome of an OCSP check in progress, completed by the call that 
+     * sends the request and shared with concurrent calls for the same 
+     * certificate
+     */
+    private static class PendingStatus extends FutureTask<Integer> {
+        
+        private static final Callable<Integer> UNUSED = new Callable<Integer>() {
+            public Integer call() {
+                throw new IllegalStateException("Completed explicitly only");
+            }
+        };
+        
+        private PendingStatus() {
+            super(UNUSED);
+        }
+        
+        private void complete(Integer result) {
+            set(result);
+        }
+        
+        private void fail(Throwable t) {
+            setException(t);
+        }
+        
+    }
+    
+    private static int toResult(CertificateStatus status) {
+        // Normal OCSP protocol allows a null status
+        if (status == null || status == CertificateStatus.GOOD) {
+            return RevocationChecker.GOOD;
+        } else if (status instanceof RevokedStatus) {
+            return RevocationChecker.REVOKED;
+        }
+        
+        return RevocationChecker.UNKNOWN;
+    }
+    
+    private CachedStatus getCachedStatus(CertificateID cid) {
+        synchronized (cidStatusMap) {
+            CachedStatus cachedStatus = cidStatusMap.get(cid);
+            if (cachedStatus != null && cachedStatus.expiresAt <= System.currentTimeMillis()) {
+                cidStatusMap.remove(cid);
+                return null;
+            }
+            
+            return cachedStatus;
+        }
+    }
+    
+    private void putCachedStatus(CertificateID cid, CertificateStatus status, Date nextUpdate) {
+        if (cacheSize <= 0) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        long expiresAt = now + cacheTtlMillis;
+        if (nextUpdate != null) {
+            expiresAt = Math.min(expiresAt, nextUpdate.getTime());
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+        
+        synchronized (cidStatusMap) {
+            cidStatusMap.put(cid, new CachedStatus(status, expiresAt));
+        }
+    }
+    
+    /** The status of a certificate, as found in an OCSP response */
+    private static class CachedStatus {
+        
+        private final CertificateStatus status;
+        
+        private final long expiresAt;
+        
+        private CachedStatus(CertificateStatus status, long expiresAt) {
+            this.status = status;
+            this.expiresAt = expiresAt;
+        }
+        
     }
     
     /**
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * A {@link RevocationChecker} backed by an {@link OCSPHelper}; defers when
+ * the responder reports the certificate as unknown.
+ */
+public class OCSPRevocationChecker implements RevocationChecker {
+
+    private final OCSPHelper ocspHelper;
+
+    public OCSPRevocationChecker(OCSPHelper ocspHelper) {
+        this.ocspHelper = ocspHelper;
+    }
+
+    public int check(X509Certificate certificate, X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException {
+        return ocspHelper.getStatus(certificate, chain);
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * A source of certificate revocation status. Checkers are meant to be
+ * layered through {@link CompositeRevocationChecker}: a checker answers with
+ * {@link #GOOD} or {@link #REVOKED}, defers to the next layer with
+ * {@link #UNKNOWN}, or fails fast by throwing.
+ *
+ * <p>Implementations are expected to be thread-safe.
+ */
+public interface RevocationChecker {
+
+    /** The certificate is known not to be revoked */
+    int GOOD = 0;
+
+    /** The certificate is known to be revoked */
+    int REVOKED = 1;
+
+    /** This checker cannot tell; defer to the next one */
+    int UNKNOWN = 2;
+
+    /**
+     * @param certificate an {@link X509Certificate} object
+     * @param chain the certificate chain, which may help to identify the
+     * issuer; may be null
+     * @return one of {@link #GOOD}, {@link #REVOKED} or {@link #UNKNOWN}
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an error occurs while checking
+     */
+    int check(X509Certificate certificate, X509Certificate[] chain)
+    throws NetworkAccessException, VerificationException;
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The HTTP transport used by {@link X509CRLHelper} and {@link OCSPHelper}.
+ * A single instance can be shared by both helpers, so that proxy settings,
+ * timeouts and the pool of keep-alive connections are configured once.
+ *
+ * <p>Requests go through {@link #execute(HttpMethod)}; a different client
+ * can be plugged in by overriding it, and a different connection pool by
+ * setting the {@link HttpConnectionManager}.
+ */
+public class RevocationTransport {
+
+    private static final Log logger = LogFactory.getLog(RevocationTransport.class);
+
+    private String proxyHost;
+
+    public void setProxyHost(String proxyHost) {
+        this.proxyHost = proxyHost;
+    }
+
+    private int proxyPort = -1;
+
+    public void setProxyPort(int proxyPort) {
+        this.proxyPort = proxyPort;
+    }
+
+    // default timeout: 5sec
+    private int timeoutMillis = 5*1000;
+
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // default connection timeout: 5sec
+    private int connectionManagerTimeoutMillis = 5*1000;
+
+    public void setConnectionManagerTimeoutMillis(int connectionManagerTimeoutMillis) {
+        this.connectionManagerTimeoutMillis = connectionManagerTimeoutMillis;
+    }
+
+    // default: 20 connections per host, up from 2 in HttpClient
+    private int maxConnectionsPerHost = 20;
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    // default: 100 connections in total, up from 20 in HttpClient
+    private int maxTotalConnections = 100;
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    private HttpConnectionManager connectionManager;
+
+    /**
+     * @param connectionManager the connection manager to use instead of the
+     * default {@link MultiThreadedHttpConnectionManager}; connection limits
+     * and timeouts are then left to it
+     */
+    public void setConnectionManager(HttpConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private HttpClient httpClient;
+
+    private synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            if (connectionManager == null) {
+                MultiThreadedHttpConnectionManager mtcm = new MultiThreadedHttpConnectionManager();
+                mtcm.getParams().setSoTimeout(timeoutMillis);
+                mtcm.getParams().setConnectionTimeout(timeoutMillis);
+                mtcm.getParams().setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+                mtcm.getParams().setMaxTotalConnections(maxTotalConnections);
+                connectionManager = mtcm;
+            }
+
+            httpClient = new HttpClient(connectionManager);
+            httpClient.getParams().setConnectionManagerTimeout(connectionManagerTimeoutMillis);
+        }
+
+        return httpClient;
+    }
+
+    private HostConfiguration getHostConfiguration() {
+        HostConfiguration config = new HostConfiguration();
+
+        if (proxyHost != null && proxyPort != -1) {
+            logger.debug("Setting proxy" +
+                    "; proxyHost=" + proxyHost +
+                    "; proxyPort=" + proxyPort);
+            config.setProxy(proxyHost, proxyPort);
+        }
+
+        return config;
+    }
+
+    /**
+     * Execute an HTTP request; the caller must release the connection of the
+     * method once done with the response
+     *
+     * @param method the {@link HttpMethod} to execute
+     * @return the HTTP status code
+     * @throws IOException when the request fails
+     */
+    public int execute(HttpMethod method) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            return getHttpClient().executeMethod(getHostConfiguration(), method);
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of requests executed so far
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of requests that failed with an I/O error so far
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return the number of pooled connections, both idle and in use; -1 if
+     * the connection manager does not tell
+     */
+    public int getConnectionsInPool() {
+        getHttpClient();
+        if (!(connectionManager instanceof MultiThreadedHttpConnectionManager)) {
+            return -1;
+        }
+
+        return ((MultiThreadedHttpConnectionManager) connectionManager).getConnectionsInPool();
+    }
+
+    /**
+     * @param uriAsString a URI served by the host of interest
+     * @return the number of pooled connections to the host of the URI, both
+     * idle and in use; -1 if the connection manager does not tell
+     */
+    public int getConnectionsInPool(String uriAsString) {
+        getHttpClient();
+        if (!(connectionManager instanceof MultiThreadedHttpConnectionManager)) {
+            return -1;
+        }
+
+        HostConfiguration config = getHostConfiguration();
+        try {
+            config.setHost(new org.apache.commons.httpclient.URI(uriAsString, true));
+        } catch (URIException e) {
+            throw new IllegalArgumentException("Invalid URI; uri=" + uriAsString);
+        }
+
+        return ((MultiThreadedHttpConnectionManager) connectionManager).getConnectionsInPool(config);
+    }
+
+    /**
+     * Close pooled connections that have been idle for a while
+     *
+     * @param idleMillis the idle time after which connections are closed
+     */
+    public void closeIdleConnections(long idleMillis) {
+        getHttpClient().getHttpConnectionManager().closeIdleConnections(idleMillis);
+    }
+
+    /**
+     * Close all pooled connections; the transport cannot be used afterwards
+     */
+    public synchronized void shutdown() {
+        if (connectionManager instanceof MultiThreadedHttpConnectionManager) {
+            ((MultiThreadedHttpConnectionManager) connectionManager).shutdown();
+        }
+    }
+
+}
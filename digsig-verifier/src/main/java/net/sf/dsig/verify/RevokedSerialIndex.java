@@ -0,0 +1,386 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.math.BigInteger;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A compact, read-only index of the serial numbers revoked by a CRL.
+ * Serials are kept in a single byte array, sorted, and looked up with a
+ * binary search; an optional Bloom filter answers most lookups of
+ * non-revoked serials without touching the serials at all. Compared to
+ * holding the {@link X509CRL} object, this takes a fraction of the heap and
+ * a lookup allocates nothing besides the encoding of the queried serial.
+ *
+ * <p>Indirect CRLs (entries carrying a certificate issuer extension) are
+ * not supported; all entries are taken to belong to the CRL issuer.
+ */
+public class RevokedSerialIndex {
+
+    private final X500Principal issuer;
+
+    private final Date thisUpdate;
+
+    private final Date nextUpdate;
+
+    /** Two's complement encodings of the serials, concatenated in sorted order */
+    private final byte[] serials;
+
+    /** Start of each serial in serials; offsets[size] marks the end */
+    private final int[] offsets;
+
+    private final long[] bloomBits;
+
+    private final int bloomHashes;
+
+    private RevokedSerialIndex(
+            X500Principal issuer,
+            Date thisUpdate,
+            Date nextUpdate,
+            byte[] serials,
+            int[] offsets,
+            long[] bloomBits,
+            int bloomHashes) {
+        this.issuer = issuer;
+        this.thisUpdate = thisUpdate;
+        this.nextUpdate = nextUpdate;
+        this.serials = serials;
+        this.offsets = offsets;
+        this.bloomBits = bloomBits;
+        this.bloomHashes = bloomHashes;
+    }
+
+    /**
+     * Build an index out of a parsed CRL
+     *
+     * @param crl the {@link X509CRL}
+     * @param bloomBitsPerEntry the size of the Bloom filter; 0 for none
+     * @return the {@link RevokedSerialIndex}
+     */
+    public static RevokedSerialIndex build(X509CRL crl, int bloomBitsPerEntry) {
+        Builder builder = new Builder();
+        builder.setIssuer(crl.getIssuerX500Principal());
+        builder.setThisUpdate(crl.getThisUpdate());
+        builder.setNextUpdate(crl.getNextUpdate());
+
+        Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+        if (entries != null) {
+            for (Iterator<? extends X509CRLEntry> it = entries.iterator(); it.hasNext(); ) {
+                byte[] serial = it.next().getSerialNumber().toByteArray();
+                builder.addSerial(serial, 0, serial.length);
+            }
+        }
+
+        return builder.build(bloomBitsPerEntry);
+    }
+
+    public X500Principal getIssuer() {
+        return issuer;
+    }
+
+    public Date getThisUpdate() {
+        return thisUpdate;
+    }
+
+    /**
+     * @return the NextUpdate of the CRL; may be null
+     */
+    public Date getNextUpdate() {
+        return nextUpdate;
+    }
+
+    /**
+     * @return the number of revoked serials
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param certificate an {@link X509Certificate} object
+     * @return true if the certificate was issued by the CRL issuer, and its
+     * serial is listed in the CRL
+     */
+    public boolean isRevoked(X509Certificate certificate) {
+        return
+                issuer.equals(certificate.getIssuerX500Principal()) &&
+                isRevoked(certificate.getSerialNumber());
+    }
+
+    /**
+     * @param serialNumber a certificate serial number
+     * @return true if the serial is listed in the CRL
+     */
+    public boolean isRevoked(BigInteger serialNumber) {
+        byte[] serial = serialNumber.toByteArray();
+
+        if (bloomBits != null && !mightContain(serial, 0, serial.length)) {
+            return false;
+        }
+
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(
+                    serials, offsets[mid], offsets[mid + 1] - offsets[mid],
+                    serial, 0, serial.length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean mightContain(byte[] b, int off, int len) {
+        int h1 = hash(b, off, len, 0x811c9dc5);
+        int h2 = hash(b, off, len, 0x050c5d1f) | 1;
+        long m = (long) bloomBits.length * 64;
+        for (int i=0; i<bloomHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & 0x7fffffffffffffffL) % m;
+            if ((bloomBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** FNV-1a with a configurable offset basis */
+    private static int hash(byte[] b, int off, int len, int basis) {
+        int h = basis;
+        for (int i=off; i<off+len; i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x01000193;
+        }
+
+        return h;
+    }
+
+    /**
+     * Order serials by encoded length first, then by unsigned bytes; any
+     * consistent total order works, since only equality is ever queried
+     */
+    private static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        if (aLen != bLen) {
+            return aLen < bLen ? -1 : 1;
+        }
+        for (int i=0; i<aLen; i++) {
+            int x = a[aOff + i] & 0xff;
+            int y = b[bOff + i] & 0xff;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Accumulates revoked serials, in any order, into growable primitive
+     * arrays; the final index is sorted and deduplicated on {@link #build(int)}
+     */
+    public static class Builder {
+
+        private X500Principal issuer;
+
+        private Date thisUpdate;
+
+        private Date nextUpdate;
+
+        private byte[] serials = new byte[1024];
+
+        private int[] offsets = new int[65];
+
+        private int size = 0;
+
+        public void setIssuer(X500Principal issuer) {
+            this.issuer = issuer;
+        }
+
+        public void setThisUpdate(Date thisUpdate) {
+            this.thisUpdate = thisUpdate;
+        }
+
+        public void setNextUpdate(Date nextUpdate) {
+            this.nextUpdate = nextUpdate;
+        }
+
+        /**
+         * @param b holds the two's complement encoding of the serial, as
+         * found in the content octets of its DER INTEGER
+         * @param off the start of the serial in b
+         * @param len the length of the serial
+         */
+        public void addSerial(byte[] b, int off, int len) {
+            // Some CAs pad serials; strip to the minimal encoding, which is
+            // what BigInteger.toByteArray() produces on lookup
+            while (len > 1 && (
+                    (b[off] == 0 && (b[off + 1] & 0x80) == 0) ||
+                    (b[off] == (byte) 0xff && (b[off + 1] & 0x80) != 0))) {
+                off++;
+                len--;
+            }
+
+            int end = offsets[size];
+            if (end + len > serials.length) {
+                serials = grow(serials, Math.max(serials.length * 2, end + len));
+            }
+            if (size + 2 > offsets.length) {
+                int[] newOffsets = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, size + 1);
+                offsets = newOffsets;
+            }
+
+            System.arraycopy(b, off, serials, end, len);
+            offsets[++size] = end + len;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param bloomBitsPerEntry the size of the Bloom filter; 0 for none
+         * @return the {@link RevokedSerialIndex}
+         */
+        public RevokedSerialIndex build(int bloomBitsPerEntry) {
+            int[] order = new int[size];
+            for (int i=0; i<size; i++) {
+                order[i] = i;
+            }
+            sort(order, new int[size], 0, size);
+
+            // Pack in sorted order, dropping duplicates
+            byte[] sortedSerials = new byte[offsets[size]];
+            int[] sortedOffsets = new int[size + 1];
+            int count = 0;
+            for (int i=0; i<size; i++) {
+                int each = order[i];
+                int off = offsets[each];
+                int len = offsets[each + 1] - off;
+                if (count > 0 && compare(
+                        sortedSerials, sortedOffsets[count - 1],
+                        sortedOffsets[count] - sortedOffsets[count - 1],
+                        serials, off, len) == 0) {
+                    continue;
+                }
+                System.arraycopy(serials, off, sortedSerials, sortedOffsets[count], len);
+                sortedOffsets[count + 1] = sortedOffsets[count] + len;
+                count++;
+            }
+
+            if (count < size) {
+                int[] trimmedOffsets = new int[count + 1];
+                System.arraycopy(sortedOffsets, 0, trimmedOffsets, 0, count + 1);
+                sortedOffsets = trimmedOffsets;
+                sortedSerials = grow(sortedSerials, sortedOffsets[count]);
+            }
+
+            long[] bloomBits = null;
+            int bloomHashes = 0;
+            if (bloomBitsPerEntry > 0 && count > 0) {
+                bloomBits = new long[(int) (((long) count * bloomBitsPerEntry + 63) / 64)];
+                // k = ln2 * m/n minimizes the false positive rate
+                bloomHashes = Math.max(1, Math.min(8, (int) Math.round(bloomBitsPerEntry * 0.693)));
+            }
+
+            RevokedSerialIndex index = new RevokedSerialIndex(
+                    issuer,
+                    thisUpdate,
+                    nextUpdate,
+                    sortedSerials,
+                    sortedOffsets,
+                    bloomBits,
+                    bloomHashes);
+
+            if (bloomBits != null) {
+                long m = (long) bloomBits.length * 64;
+                for (int i=0; i<count; i++) {
+                    int off = sortedOffsets[i];
+                    int len = sortedOffsets[i + 1] - off;
+                    int h1 = hash(sortedSerials, off, len, 0x811c9dc5);
+                    int h2 = hash(sortedSerials, off, len, 0x050c5d1f) | 1;
+                    for (int j=0; j<bloomHashes; j++) {
+                        long bit = ((h1 + (long) j * h2) & 0x7fffffffffffffffL) % m;
+                        bloomBits[(int) (bit >>> 6)] |= 1L << bit;
+                    }
+                }
+            }
+
+            // Release the working arrays early; CRLs can be large
+            serials = null;
+            offsets = null;
+
+            return index;
+        }
+
+        /** Merge sort of serial positions, by serial value */
+        private void sort(int[] order, int[] scratch, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            sort(order, scratch, from, mid);
+            sort(order, scratch, mid, to);
+
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                if (compareSerials(order[i], order[j]) <= 0) {
+                    scratch[k++] = order[i++];
+                } else {
+                    scratch[k++] = order[j++];
+                }
+            }
+            while (i < mid) {
+                scratch[k++] = order[i++];
+            }
+            while (j < to) {
+                scratch[k++] = order[j++];
+            }
+            System.arraycopy(scratch, from, order, from, to - from);
+        }
+
+        private int compareSerials(int x, int y) {
+            return compare(
+                    serials, offsets[x], offsets[x + 1] - offsets[x],
+                    serials, offsets[y], offsets[y + 1] - offsets[y]);
+        }
+
+        private static byte[] grow(byte[] b, int length) {
+            byte[] newB = new byte[length];
+            System.arraycopy(b, 0, newB, 0, Math.min(b.length, length));
+            return newB;
+        }
+
+    }
+
+}
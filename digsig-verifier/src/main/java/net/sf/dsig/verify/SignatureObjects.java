@@ -0,0 +1,134 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.ObjectContainer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.utils.Constants;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The ds:Object elements of a signature, indexed by Id on first use, so
+ * that repeated lookups neither scan the signature nor allocate; the
+ * {@link ObjectContainer} wrappers are only built when asked for. The
+ * signature itself may be parsed on first use as well, as for outcomes
+ * reused from a {@link VerificationResultCache}.
+ */
+class SignatureObjects {
+
+    /** Supplies a signature parsed on first use */
+    interface Source {
+
+        /**
+         * @return the signature
+         * @throws IllegalStateException when it can no longer be parsed
+         */
+        XMLSignature getSignature();
+
+    }
+
+    /** Null until parsed, for signatures from a source */
+    private XMLSignature signature;
+
+    private Source source;
+
+    /** The ds:Object elements, in document order; null until indexed */
+    private List<Element> objectElements = null;
+
+    /** A Map from Id to the first ds:Object element with it */
+    private final Map<String, Element> objectElementMap = new HashMap<String, Element>();
+
+    private ObjectContainer[] objectContainers = null;
+
+    SignatureObjects(XMLSignature signature) {
+        this.signature = signature;
+    }
+
+    SignatureObjects(Source source) {
+        this.source = source;
+    }
+
+    private XMLSignature getSignature() {
+        if (signature == null) {
+            signature = source.getSignature();
+            source = null;
+        }
+
+        return signature;
+    }
+
+    synchronized Element getObjectElement(String id) {
+        index();
+
+        return objectElementMap.get(id);
+    }
+
+    /**
+     * @return the wrapped ds:Object elements; null for any that cannot be
+     * read
+     */
+    synchronized ObjectContainer[] getObjectContainers() {
+        if (objectContainers == null) {
+            index();
+
+            objectContainers = new ObjectContainer[objectElements.size()];
+            for (int i=0; i<objectContainers.length; i++) {
+                try {
+                    objectContainers[i] = new ObjectContainer(
+                            objectElements.get(i),
+                            getSignature().getBaseURI());
+                } catch (XMLSecurityException ignored) {
+                    // Same as XMLSignature.getObjectItem(int)
+                }
+            }
+        }
+
+        return objectContainers;
+    }
+
+    private void index() {
+        if (objectElements != null) {
+            return;
+        }
+
+        List<Element> objectElements = new ArrayList<Element>();
+        for (   Node n = getSignature().getElement().getFirstChild();
+                n != null;
+                n = n.getNextSibling()) {
+            if (    n.getNodeType() == Node.ELEMENT_NODE &&
+                    Constants.SignatureSpecNS.equals(n.getNamespaceURI()) &&
+                    Constants._TAG_OBJECT.equals(n.getLocalName())) {
+                Element element = (Element) n;
+                objectElements.add(element);
+
+                String id = element.getAttribute("Id");
+                if (!objectElementMap.containsKey(id)) {
+                    objectElementMap.put(id, element);
+                }
+            }
+        }
+
+        this.objectElements = objectElements;
+    }
+
+}
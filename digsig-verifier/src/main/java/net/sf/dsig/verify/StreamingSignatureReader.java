@@ -0,0 +1,430 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.Reference;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transform;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.utils.Constants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Read an enveloping signature without building a DOM of its ds:Object
+ * content. The rest of the envelope, which is small, is built into a
+ * {@link Document} as usual; elements referenced by the signature are
+ * canonicalized and digested while they are parsed, so memory use does not
+ * depend on the size of the signed content.
+ *
+ * <p>Only same-document references (#id) with a single exclusive
+ * canonicalization transform are supported, as produced by the dsig applet;
+ * and SignedInfo must precede the referenced content. One instance reads a
+ * single document.
+ */
+class StreamingSignatureReader extends DefaultHandler {
+
+    private static final Log logger = LogFactory.getLog(StreamingSignatureReader.class);
+
+    private static final String XMLNS_URI = "http://www.w3.org/2000/xmlns/";
+
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    static {
+        parserFactory.setNamespaceAware(true);
+        setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        for (int i=0; i<DocumentBuilderPool.FEATURES.length; i++) {
+            setFeature(
+                    DocumentBuilderPool.FEATURES[i][0],
+                    Boolean.valueOf(DocumentBuilderPool.FEATURES[i][1]).booleanValue());
+        }
+    }
+
+    private static void setFeature(String name, boolean value) {
+        try {
+            parserFactory.setFeature(name, value);
+        } catch (Exception e) {
+            logger.debug("Parser feature not supported; name=" + name + ", value=" + value);
+        }
+    }
+
+    /** The envelope, without ds:Object content */
+    private final Document document;
+
+    private Node current;
+
+    private int depth = 0;
+
+    /** The depth of the ds:Object whose content is left out of the DOM; 0 if none */
+    private int skipDepth = 0;
+
+    /** Namespace declarations of the next element, as String[] { prefix, uri } */
+    private final List<String[]> pendingPrefixes = new ArrayList<String[]>();
+
+    /** A Map from referenced Id to ReferenceDigest; null until SignedInfo is read */
+    private Map<String, ReferenceDigest> referenceMap = null;
+
+    /** The ReferenceDigests of the elements being parsed */
+    private final List<ReferenceDigest> activeDigests = new ArrayList<ReferenceDigest>();
+
+    /** A Map from referenced Id to the stream its canonical form is copied to */
+    private final Map<String, OutputStream> contentStreams;
+
+    StreamingSignatureReader(DocumentBuilderPool documentBuilderPool) {
+        this(documentBuilderPool, null);
+    }
+
+    /**
+     * @param contentStreams a Map from Id to an {@link OutputStream}; each
+     * referenced element with one of these Ids is written to its stream as
+     * it is digested. May be null
+     */
+    StreamingSignatureReader(
+            DocumentBuilderPool documentBuilderPool,
+            Map<String, OutputStream> contentStreams) {
+        this.contentStreams = contentStreams;
+        DocumentBuilder builder = documentBuilderPool.borrow();
+        try {
+            this.document = builder.newDocument();
+        } finally {
+            documentBuilderPool.release(builder);
+        }
+        this.current = document;
+    }
+
+    void parse(InputStream is) throws VerificationException {
+        SAXParser parser;
+        try {
+            // SAXParserFactory is not guaranteed to be thread-safe
+            synchronized (parserFactory) {
+                parser = parserFactory.newSAXParser();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new ConfigurationException("SAXParser creation failed", e);
+        } catch (SAXException e) {
+            throw new ConfigurationException("SAXParser creation failed", e);
+        }
+
+        try {
+            parser.parse(is, this);
+        } catch (SAXException e) {
+            if (e.getException() instanceof VerificationException) {
+                throw (VerificationException) e.getException();
+            }
+            throw new VerificationException("Error while parsing XMLDSig", e);
+        } catch (IOException e) {
+            throw new VerificationException("I/O error while reading XMLDSig", e);
+        }
+    }
+
+    /**
+     * @return the signature, without ds:Object content
+     */
+    XMLSignature getSignature() throws VerificationException {
+        return XmldsigVerificationEngine.newSignature(document);
+    }
+
+    /**
+     * @return true if the digests of all references match
+     * @throws VerificationException when a referenced element was not found
+     */
+    boolean isReferencesValid() throws VerificationException {
+        if (referenceMap == null) {
+            throw new VerificationException("SignedInfo not found");
+        }
+
+        boolean valid = true;
+        for (Iterator<ReferenceDigest> it = referenceMap.values().iterator(); it.hasNext(); ) {
+            ReferenceDigest each = it.next();
+            if (each.actualDigest == null) {
+                throw new VerificationException("Referenced element not found; uri=" + each.uri);
+            }
+
+            if (!MessageDigest.isEqual(each.expectedDigest, each.actualDigest)) {
+                logger.info("Reference digest mismatch; uri=" + each.uri);
+                valid = false;
+            }
+        }
+
+        return valid;
+    }
+
+    public void startPrefixMapping(String prefix, String uri) {
+        pendingPrefixes.add(new String[] { prefix, uri });
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+    throws SAXException {
+        depth++;
+
+        String id = attributes.getValue("", "Id");
+        if (id != null && referenceMap != null && referenceMap.containsKey(id)) {
+            ReferenceDigest referenceDigest = referenceMap.get(id);
+            if (referenceDigest.canonicalizer != null) {
+                throw new SAXException(new VerificationException("Duplicate Id; id=" + id));
+            }
+            referenceDigest.start(depth);
+            activeDigests.add(referenceDigest);
+        }
+
+        for (int i=0; i<activeDigests.size(); i++) {
+            try {
+                activeDigests.get(i).canonicalizer.startElement(uri, qName, attributes);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        if (skipDepth > 0) {
+            pendingPrefixes.clear();
+            return;
+        }
+
+        if (    depth == 2 &&
+                Constants.SignatureSpecNS.equals(uri) &&
+                Constants._TAG_OBJECT.equals(localName)) {
+            if (referenceMap == null) {
+                throw new SAXException(new VerificationException("Object content before SignedInfo"));
+            }
+
+            skipDepth = depth;
+        }
+
+        Element element = document.createElementNS(uri.length() > 0 ? uri : null, qName);
+        for (int i=0; i<pendingPrefixes.size(); i++) {
+            String[] each = pendingPrefixes.get(i);
+            element.setAttributeNS(
+                    XMLNS_URI,
+                    each[0].length() > 0 ? "xmlns:" + each[0] : "xmlns",
+                    each[1]);
+        }
+        pendingPrefixes.clear();
+        for (int i=0; i<attributes.getLength(); i++) {
+            element.setAttributeNS(
+                    attributes.getURI(i).length() > 0 ? attributes.getURI(i) : null,
+                    attributes.getQName(i),
+                    attributes.getValue(i));
+        }
+
+        current.appendChild(element);
+        current = element;
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        for (int i=activeDigests.size()-1; i>=0; i--) {
+            ReferenceDigest each = activeDigests.get(i);
+            try {
+                each.canonicalizer.endElement(qName);
+                if (each.depth == depth) {
+                    each.finish();
+                    activeDigests.remove(i);
+                }
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        if (skipDepth == 0 || skipDepth == depth) {
+            if (    depth == 2 &&
+                    Constants.SignatureSpecNS.equals(uri) &&
+                    Constants._TAG_SIGNEDINFO.equals(localName)) {
+                readReferences((Element) current);
+            }
+
+            skipDepth = 0;
+            current = current.getParentNode();
+        }
+
+        depth--;
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        for (int i=0; i<activeDigests.size(); i++) {
+            try {
+                activeDigests.get(i).canonicalizer.characters(ch, start, length);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        if (skipDepth == 0 && current != document) {
+            current.appendChild(document.createTextNode(new String(ch, start, length)));
+        }
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        for (int i=0; i<activeDigests.size(); i++) {
+            try {
+                activeDigests.get(i).canonicalizer.processingInstruction(target, data);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        if (skipDepth == 0) {
+            current.appendChild(document.createProcessingInstruction(target, data));
+        }
+    }
+
+    private void readReferences(Element signedInfoElement) throws SAXException {
+        Map<String, ReferenceDigest> referenceMap = new HashMap<String, ReferenceDigest>();
+        try {
+            SignedInfo signedInfo = new SignedInfo(signedInfoElement, null);
+            for (int i=0; i<signedInfo.getLength(); i++) {
+                Reference reference = signedInfo.item(i);
+                String uri = reference.getURI();
+                if (uri == null || !uri.startsWith("#")) {
+                    throw new VerificationException("Reference not supported in streaming mode; uri=" + uri);
+                }
+
+                Transforms transforms = reference.getTransforms();
+                if (transforms == null || transforms.getLength() != 1) {
+                    throw new VerificationException("Transforms not supported in streaming mode; uri=" + uri);
+                }
+                Transform transform = transforms.item(0);
+                if (    !(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(transform.getURI()) ||
+                          Transforms.TRANSFORM_C14N_EXCL_WITH_COMMENTS.equals(transform.getURI())) ||
+                        hasChildElement(transform.getElement())) {
+                    throw new VerificationException("Transform not supported in streaming mode" +
+                            "; uri=" + uri +
+                            ", transform=" + transform.getURI());
+                }
+
+                MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance(
+                            reference.getMessageDigestAlgorithm().getJCEAlgorithmString());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new VerificationException("Digest algorithm not found; uri=" + uri, e);
+                }
+
+                if (referenceMap.containsKey(uri.substring(1))) {
+                    throw new VerificationException("Duplicate reference; uri=" + uri);
+                }
+                referenceMap.put(uri.substring(1), new ReferenceDigest(
+                        uri,
+                        reference.getDigestValue(),
+                        digest,
+                        contentStreams != null ? contentStreams.get(uri.substring(1)) : null));
+            }
+        } catch (XMLSecurityException e) {
+            throw new SAXException(new VerificationException("Error while reading SignedInfo", e));
+        } catch (VerificationException e) {
+            throw new SAXException(e);
+        }
+
+        this.referenceMap = referenceMap;
+    }
+
+    /**
+     * Check for parameters of a transform, such as an ec:InclusiveNamespaces
+     * PrefixList, which the streaming canonicalizer does not honour; text 
+     * nodes left by pretty-printing are skipped
+     */
+    private static boolean hasChildElement(Element element) {
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+
+    /** The digest of a referenced element, computed while it is parsed */
+    private static class ReferenceDigest {
+
+        private final String uri;
+
+        private final byte[] expectedDigest;
+
+        private final MessageDigest digest;
+
+        /** Where the canonical form is copied to; may be null */
+        private final OutputStream content;
+
+        private ExclusiveCanonicalizer canonicalizer;
+
+        private int depth;
+
+        private byte[] actualDigest;
+
+        private ReferenceDigest(
+                String uri, byte[] expectedDigest, MessageDigest digest, OutputStream content) {
+            this.uri = uri;
+            this.expectedDigest = expectedDigest;
+            this.digest = digest;
+            this.content = content;
+        }
+
+        private void start(int depth) {
+            this.depth = depth;
+            this.canonicalizer = new ExclusiveCanonicalizer(new OutputStream() {
+                public void write(int b) throws IOException {
+                    digest.update((byte) b);
+                    if (content != null) {
+                        content.write(b);
+                    }
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    digest.update(b, off, len);
+                    if (content != null) {
+                        content.write(b, off, len);
+                    }
+                }
+
+                public void flush() throws IOException {
+                    if (content != null) {
+                        content.flush();
+                    }
+                }
+            });
+        }
+
+        private void finish() throws IOException {
+            canonicalizer.flush();
+            actualDigest = digest.digest();
+        }
+
+    }
+
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Holds the trust anchors certificate paths are validated against, loaded
+ * from a directory of certificate files, a keystore, or set directly. The
+ * anchors are published as immutable, indexed {@link Snapshot}s; a reload
+ * builds a new snapshot on the side and swaps it in at once, so validating
+ * threads never block on a reload and never see a partly loaded set.
+ *
+ * <p>Sources are polled for changes every reloadIntervalMillis, once
+ * {@link #start()} is called; a reload that fails is logged, and keeps the
+ * current snapshot. Only the very first snapshot is loaded by the thread
+ * asking for it, if {@link #start()} has not loaded it already.
+ */
+public class TrustAnchorStore {
+
+    private static final Log logger = LogFactory.getLog(TrustAnchorStore.class);
+
+    private File directory;
+
+    /**
+     * @param directory a directory of DER or PEM encoded certificate files,
+     * named *.cer, *.crt, *.der or *.pem
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    private File keyStoreFile;
+
+    /**
+     * @param keyStoreFile a keystore, the certificate entries of which are
+     * trusted
+     */
+    public void setKeyStoreFile(File keyStoreFile) {
+        this.keyStoreFile = keyStoreFile;
+    }
+
+    private String keyStoreType = KeyStore.getDefaultType();
+
+    public void setKeyStoreType(String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
+    private String keyStorePassword;
+
+    public void setKeyStorePassword(String keyStorePassword) {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    private Set<TrustAnchor> trustAnchors;
+
+    /**
+     * @param trustAnchors {@link TrustAnchor}s trusted along with those
+     * loaded from files. Before the first snapshot, they are only loaded
+     * along with the other sources, whatever the order they are set in;
+     * afterwards, the snapshot is rebuilt at once
+     */
+    public synchronized void setTrustAnchors(Set<TrustAnchor> trustAnchors) {
+        this.trustAnchors = trustAnchors != null ? new HashSet<TrustAnchor>(trustAnchors) : null;
+        stale = true;
+        if (snapshot != null) {
+            reloadQuietly();
+        }
+    }
+
+    // default: poll every minute
+    private long reloadIntervalMillis = 60*1000;
+
+    public void setReloadIntervalMillis(long reloadIntervalMillis) {
+        this.reloadIntervalMillis = reloadIntervalMillis;
+    }
+
+    private ScheduledExecutorService scheduler;
+
+    private boolean ownScheduler = false;
+
+    private ScheduledFuture<?> reloadTask;
+
+    /**
+     * @param scheduler the scheduler to poll for changes on; when not set, a
+     * single daemon thread is created by {@link #start()}
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        this.ownScheduler = false;
+    }
+
+    private volatile Snapshot snapshot;
+
+    /** Set when trust anchors are replaced, which no stamp accounts for */
+    private volatile boolean stale = false;
+
+    /** Identifies the state of the sources the snapshot was loaded from */
+    private String loadedStamp;
+
+    /**
+     * @return the current {@link Snapshot}; reloads never happen here, so
+     * callers never wait for one
+     * @throws ConfigurationException when no snapshot was loaded yet, and
+     * loading the first one fails
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            snapshot = loadFirst();
+        }
+
+        return snapshot;
+    }
+
+    /** There is no earlier snapshot to fall back to; failures are thrown */
+    private synchronized Snapshot loadFirst() {
+        if (snapshot == null) {
+            reload();
+        }
+
+        return snapshot;
+    }
+
+    /** Reload, logging failures and keeping the current snapshot */
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            logger.warn("Trust anchors reload failed; keeping current ones", e);
+        }
+    }
+
+    /**
+     * Reload the trust anchors, if any of the sources changed since loaded
+     *
+     * @return true if a new snapshot was published
+     * @throws ConfigurationException when a source cannot be read; the
+     * current snapshot is kept
+     */
+    public synchronized boolean reload() {
+        String stamp = getStamp();
+        if (!stale && snapshot != null && stamp.equals(loadedStamp)) {
+            return false;
+        }
+
+        Set<TrustAnchor> loaded = new HashSet<TrustAnchor>();
+        if (trustAnchors != null) {
+            loaded.addAll(trustAnchors);
+        }
+        if (directory != null) {
+            loadDirectory(loaded);
+        }
+        if (keyStoreFile != null) {
+            loadKeyStore(loaded);
+        }
+
+        snapshot = new Snapshot(loaded);
+        loadedStamp = stamp;
+        stale = false;
+
+        logger.info("Trust anchors loaded" +
+                "; count=" + loaded.size() +
+                ", version=" + Long.toHexString(snapshot.getVersion()));
+
+        return true;
+    }
+
+    /**
+     * Load the first snapshot, if not loaded yet, and start polling the
+     * sources for changes
+     */
+    public synchronized void start() {
+        if (snapshot == null) {
+            reloadQuietly();
+        }
+
+        if (reloadTask != null || reloadIntervalMillis <= 0) {
+            return;
+        }
+
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TrustAnchorStore-reload");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ownScheduler = true;
+        }
+
+        reloadTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reloadQuietly();
+            }
+        }, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop polling, and release the default scheduler if one was created; an
+     * injected scheduler is left running
+     */
+    public synchronized void shutdown() {
+        if (reloadTask != null) {
+            reloadTask.cancel(false);
+            reloadTask = null;
+        }
+
+        if (scheduler != null && ownScheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private File[] listCertificateFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new ConfigurationException("Trust anchors directory not readable; directory=" + directory);
+        }
+
+        List<File> certificateFiles = new ArrayList<File>();
+        for (int i=0; i<files.length; i++) {
+            String name = files[i].getName().toLowerCase();
+            if (files[i].isFile() && (
+                    name.endsWith(".cer") || name.endsWith(".crt") ||
+                    name.endsWith(".der") || name.endsWith(".pem"))) {
+                certificateFiles.add(files[i]);
+            }
+        }
+
+        File[] sorted = certificateFiles.toArray(new File[certificateFiles.size()]);
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+    private String getStamp() {
+        StringBuffer sb = new StringBuffer();
+        if (directory != null) {
+            File[] files = listCertificateFiles();
+            for (int i=0; i<files.length; i++) {
+                sb.append(files[i].getName()).append(':')
+                        .append(files[i].lastModified()).append(':')
+                        .append(files[i].length()).append(';');
+            }
+        }
+        if (keyStoreFile != null) {
+            sb.append(keyStoreFile.lastModified()).append(':')
+                    .append(keyStoreFile.length());
+        }
+
+        return sb.toString();
+    }
+
+    private void loadDirectory(Set<TrustAnchor> loaded) {
+        File[] files = listCertificateFiles();
+        for (int i=0; i<files.length; i++) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(files[i]);
+                Collection<? extends Certificate> certificates =
+                        CertificateFactory.getInstance("X.509").generateCertificates(is);
+                for (Iterator<? extends Certificate> it = certificates.iterator(); it.hasNext(); ) {
+                    loaded.add(new TrustAnchor((X509Certificate) it.next(), null));
+                }
+            } catch (IOException e) {
+                throw new ConfigurationException("Trust anchor not readable; file=" + files[i], e);
+            } catch (CertificateException e) {
+                throw new ConfigurationException("Trust anchor not parsable; file=" + files[i], e);
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ignored) { }
+                }
+            }
+        }
+    }
+
+    private void loadKeyStore(Set<TrustAnchor> loaded) {
+        InputStream is = null;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            is = new FileInputStream(keyStoreFile);
+            keyStore.load(is, keyStorePassword != null ? keyStorePassword.toCharArray() : null);
+
+            for (Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+                String alias = aliases.nextElement();
+                if (!keyStore.isCertificateEntry(alias)) {
+                    continue;
+                }
+
+                Certificate certificate = keyStore.getCertificate(alias);
+                if (certificate instanceof X509Certificate) {
+                    loaded.add(new TrustAnchor((X509Certificate) certificate, null));
+                }
+            }
+        } catch (IOException e) {
+            throw new ConfigurationException("Keystore not readable; file=" + keyStoreFile, e);
+        } catch (GeneralSecurityException e) {
+            throw new ConfigurationException("Keystore not loadable; file=" + keyStoreFile, e);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Digest a set of trust anchors into a version; equal sets get equal
+     * versions, whatever their order. The full fingerprints are sorted and
+     * deduplicated before digesting, since {@link TrustAnchor} has no 
+     * equals() and a Set may hold the same anchor twice
+     *
+     * @param trustAnchors a Set of {@link TrustAnchor}s
+     * @return the version
+     */
+    static long getVersion(Set<TrustAnchor> trustAnchors) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("SHA-256 digest not found; should not happen");
+        }
+        
+        // Hex encoded fingerprints, sorted and unique
+        Set<String> fingerprints = new TreeSet<String>();
+        for (Iterator<TrustAnchor> it = trustAnchors.iterator(); it.hasNext(); ) {
+            TrustAnchor each = it.next();
+            byte[] digest;
+            if (each.getTrustedCert() != null) {
+                digest = CertPathCache.getFingerprint(each.getTrustedCert());
+            } else {
+                md.update(each.getCA().getEncoded());
+                md.update(each.getCAPublicKey().getEncoded());
+                digest = md.digest();
+            }
+            fingerprints.add(new String(Hex.encode(digest)));
+        }
+
+        for (Iterator<String> it = fingerprints.iterator(); it.hasNext(); ) {
+            String each = it.next();
+            md.update(Hex.decode(each));
+        }
+        byte[] digest = md.digest();
+        
+        long version = 0;
+        for (int i=0; i<8; i++) {
+            version = (version << 8) | (digest[i] & 0xff);
+        }
+
+        return version;
+    }
+
+    /**
+     * An immutable set of trust anchors, indexed by subject and by subject
+     * key identifier
+     */
+    public static class Snapshot {
+
+        private final Set<TrustAnchor> trustAnchors;
+
+        private final long version;
+
+        /** A map from X500Principal to List of TrustAnchor */
+        private final Map<X500Principal, List<TrustAnchor>> subjectIndex =
+                new HashMap<X500Principal, List<TrustAnchor>>();
+
+        /** A map from hex encoded subject key identifier to List of TrustAnchor */
+        private final Map<String, List<TrustAnchor>> keyIdentifierIndex =
+                new HashMap<String, List<TrustAnchor>>();
+
+        /** Cloned for each validation; null when there are no trust anchors */
+        private final PKIXParameters parameters;
+
+        private Snapshot(Set<TrustAnchor> trustAnchors) {
+            this.trustAnchors = Collections.unmodifiableSet(trustAnchors);
+            this.version = TrustAnchorStore.getVersion(trustAnchors);
+
+            for (Iterator<TrustAnchor> it = trustAnchors.iterator(); it.hasNext(); ) {
+                TrustAnchor each = it.next();
+                X509Certificate certificate = each.getTrustedCert();
+                X500Principal subject = certificate != null ?
+                        certificate.getSubjectX500Principal() :
+                        each.getCA();
+                addToIndex(subjectIndex, subject, each);
+
+                if (certificate != null) {
+                    try {
+                        byte[] keyIdentifier = OCSPHelper.getSubjectKeyIdentifier(certificate);
+                        if (keyIdentifier != null) {
+                            addToIndex(keyIdentifierIndex, new String(Hex.encode(keyIdentifier)), each);
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Subject key identifier not decodable; subject=" + subject);
+                    }
+                }
+            }
+
+            PKIXParameters parameters = null;
+            if (!trustAnchors.isEmpty()) {
+                try {
+                    parameters = new PKIXParameters(trustAnchors);
+                    parameters.setRevocationEnabled(false);
+                } catch (InvalidAlgorithmParameterException e) {
+                    throw new ConfigurationException("PKIX parameters not built; should not happen", e);
+                }
+            }
+            this.parameters = parameters;
+        }
+
+        private static <K> void addToIndex(
+                Map<K, List<TrustAnchor>> index, K key, TrustAnchor trustAnchor) {
+            List<TrustAnchor> list = index.get(key);
+            if (list == null) {
+                list = new ArrayList<TrustAnchor>();
+                index.put(key, list);
+            }
+            list.add(trustAnchor);
+        }
+
+        /**
+         * @return an unmodifiable Set of {@link TrustAnchor}s
+         */
+        public Set<TrustAnchor> getTrustAnchors() {
+            return trustAnchors;
+        }
+
+        /**
+         * @return a digest of the trust anchors; equal sets have equal versions
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @param subject a subject name
+         * @return the {@link TrustAnchor}s of that subject; never null
+         */
+        public List<TrustAnchor> getBySubject(X500Principal subject) {
+            List<TrustAnchor> list = subjectIndex.get(subject);
+
+            return list != null ?
+                    Collections.unmodifiableList(list) :
+                    Collections.<TrustAnchor>emptyList();
+        }
+
+        /**
+         * @param keyIdentifier a subject key identifier
+         * @return the {@link TrustAnchor}s with that key identifier; never null
+         */
+        public List<TrustAnchor> getBySubjectKeyIdentifier(byte[] keyIdentifier) {
+            List<TrustAnchor> list = keyIdentifierIndex.get(new String(Hex.encode(keyIdentifier)));
+
+            return list != null ?
+                    Collections.unmodifiableList(list) :
+                    Collections.<TrustAnchor>emptyList();
+        }
+
+        /**
+         * @return PKIX parameters for these trust anchors, with revocation
+         * checking disabled; a new copy on each call
+         * @throws ConfigurationException when there are no trust anchors
+         */
+        public PKIXParameters newPKIXParameters() {
+            if (parameters == null) {
+                throw new ConfigurationException("No trust anchors loaded");
+            }
+
+            return (PKIXParameters) parameters.clone();
+        }
+
+        /**
+         * Select the trust anchors that may have issued the last certificate
+         * of a chain, by its authority key identifier, else by its issuer
+         * name, so that validation only tries these
+         *
+         * @param certificateChain the certificate chain, starting with the
+         * end entity
+         * @return PKIX parameters for the selected trust anchors, with
+         * revocation checking disabled; null when none may have issued it
+         * @throws ConfigurationException when there are no trust anchors
+         */
+        public PKIXParameters newPKIXParameters(X509Certificate[] certificateChain) {
+            if (parameters == null) {
+                throw new ConfigurationException("No trust anchors loaded");
+            }
+
+            X509Certificate last = certificateChain[certificateChain.length - 1];
+            byte[] keyIdentifier = OCSPHelper.getAuthorityKeyIdentifier(last);
+            List<TrustAnchor> candidates = keyIdentifier != null ?
+                    getBySubjectKeyIdentifier(keyIdentifier) :
+                    Collections.<TrustAnchor>emptyList();
+            if (candidates.isEmpty()) {
+                candidates = getBySubject(last.getIssuerX500Principal());
+            }
+            if (candidates.isEmpty()) {
+                return null;
+            }
+
+            try {
+                PKIXParameters parameters = new PKIXParameters(new HashSet<TrustAnchor>(candidates));
+                parameters.setRevocationEnabled(false);
+
+                return parameters;
+            } catch (InvalidAlgorithmParameterException e) {
+                throw new ConfigurationException("PKIX parameters not built; should not happen", e);
+            }
+        }
+
+    }
+
+}
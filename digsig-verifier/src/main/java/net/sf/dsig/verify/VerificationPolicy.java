@@ -0,0 +1,229 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.security.cert.TrustAnchor;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The set of rules a signature is verified against. A policy is a plain
+ * bean, meant to be populated once (e.g. through dependency injection) and
+ * then handed to an {@link XmldsigVerificationEngine}, which takes a snapshot
+ * of it; later changes to the policy do not affect engines already built.
+ */
+public class VerificationPolicy {
+
+    /**
+     * <p>A regular expression that is tested against the subject of the
+     * certificate. When set only matching certificates are accepted.
+     */
+    private String subjectMatchingRegex = null;
+
+    public String getSubjectMatchingRegex() {
+        return subjectMatchingRegex;
+    }
+
+    public void setSubjectMatchingRegex(String subjectMatchingRegex) {
+        this.subjectMatchingRegex = subjectMatchingRegex;
+    }
+
+    private String keyUsageRestrictions;
+
+    public String getKeyUsageRestrictions() {
+        return keyUsageRestrictions;
+    }
+
+    public void setKeyUsageRestrictions(String keyUsageRestrictions) {
+        this.keyUsageRestrictions = keyUsageRestrictions;
+    }
+
+    private X509CRLHelper crlHelper;
+
+    public X509CRLHelper getCrlHelper() {
+        return crlHelper;
+    }
+
+    public void setCrlHelper(X509CRLHelper crlHelper) {
+        this.crlHelper = crlHelper;
+    }
+
+    private OCSPHelper ocspHelper;
+
+    public OCSPHelper getOcspHelper() {
+        return ocspHelper;
+    }
+
+    public void setOcspHelper(OCSPHelper ocspHelper) {
+        this.ocspHelper = ocspHelper;
+    }
+
+    /**
+     * <p>The first layer of revocation checking, e.g. a
+     * {@link CompositeRevocationChecker}; the CRL and OCSP helpers, if set,
+     * are only asked when it answers {@link RevocationChecker#UNKNOWN} or
+     * cannot be reached. Without helpers, it replaces the built-in checks.
+     */
+    private RevocationChecker revocationChecker;
+
+    public RevocationChecker getRevocationChecker() {
+        return revocationChecker;
+    }
+
+    public void setRevocationChecker(RevocationChecker revocationChecker) {
+        this.revocationChecker = revocationChecker;
+    }
+
+    /**
+     * <p>How the answers of the CRL and OCSP helpers are combined; one of
+     * the policies of {@link AsyncRevocationChecker}.
+     */
+    private int revocationPolicy = AsyncRevocationChecker.ALL_MUST_PASS;
+
+    public int getRevocationPolicy() {
+        return revocationPolicy;
+    }
+
+    public void setRevocationPolicy(int revocationPolicy) {
+        this.revocationPolicy = revocationPolicy;
+    }
+
+    /**
+     * <p>The pool the CRL and OCSP checks run on; when not set, a pool of
+     * daemon threads shared by all engines is used.
+     */
+    private ExecutorService revocationExecutor;
+
+    public ExecutorService getRevocationExecutor() {
+        return revocationExecutor;
+    }
+
+    public void setRevocationExecutor(ExecutorService revocationExecutor) {
+        this.revocationExecutor = revocationExecutor;
+    }
+
+    /**
+     * <p>Whether the intermediate certificates are checked for revocation as
+     * well, and not just the signing certificate.
+     */
+    private boolean chainRevocationChecking = false;
+
+    public boolean isChainRevocationChecking() {
+        return chainRevocationChecking;
+    }
+
+    public void setChainRevocationChecking(boolean chainRevocationChecking) {
+        this.chainRevocationChecking = chainRevocationChecking;
+    }
+
+    /**
+     * <p>How long the revocation checks of the whole chain may take, in
+     * milliseconds; 0 for no limit besides the timeouts of each source.
+     */
+    private long chainRevocationTimeoutMillis = 0;
+
+    public long getChainRevocationTimeoutMillis() {
+        return chainRevocationTimeoutMillis;
+    }
+
+    public void setChainRevocationTimeoutMillis(long chainRevocationTimeoutMillis) {
+        this.chainRevocationTimeoutMillis = chainRevocationTimeoutMillis;
+    }
+
+    private Set<TrustAnchor> trustAnchors = null;
+
+    public Set<TrustAnchor> getTrustAnchors() {
+        return trustAnchors;
+    }
+
+    public void setTrustAnchors(Set<TrustAnchor> trustAnchors) {
+        this.trustAnchors = trustAnchors;
+    }
+
+    /**
+     * <p>A store of trust anchors, which may be reloaded while in use; when
+     * set, it takes the place of the trust anchors set.
+     */
+    private TrustAnchorStore trustAnchorStore;
+
+    public TrustAnchorStore getTrustAnchorStore() {
+        return trustAnchorStore;
+    }
+
+    public void setTrustAnchorStore(TrustAnchorStore trustAnchorStore) {
+        this.trustAnchorStore = trustAnchorStore;
+    }
+
+    /**
+     * <p>A cache of validated certificate paths; when set, chains validated
+     * before skip PKIX validation. May be shared by several policies.
+     */
+    private CertPathCache certPathCache;
+
+    public CertPathCache getCertPathCache() {
+        return certPathCache;
+    }
+
+    public void setCertPathCache(CertPathCache certPathCache) {
+        this.certPathCache = certPathCache;
+    }
+
+    /**
+     * <p>A cache of the certificates decoded from signatures; when not set,
+     * each engine keeps its own. May be shared by several policies.
+     */
+    private CertificateCache certificateCache;
+
+    public CertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
+    }
+
+    /**
+     * <p>A cache of verification outcomes; when set, documents verified
+     * before skip the signature and certificate path checks, and repeat the
+     * certificate checks only once the cached outcome expires. May be shared
+     * by several policies.
+     */
+    private VerificationResultCache resultCache;
+
+    public VerificationResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(VerificationResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * <p>The pool of XML parsers used for incoming documents; when not set,
+     * the {@link DocumentBuilderPool#getDefault() default} one.
+     */
+    private DocumentBuilderPool documentBuilderPool;
+
+    public DocumentBuilderPool getDocumentBuilderPool() {
+        return documentBuilderPool;
+    }
+
+    public void setDocumentBuilderPool(DocumentBuilderPool documentBuilderPool) {
+        this.documentBuilderPool = documentBuilderPool;
+    }
+
+}
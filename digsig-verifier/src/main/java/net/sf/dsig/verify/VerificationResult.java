@@ -0,0 +1,122 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+
+import org.apache.xml.security.signature.ObjectContainer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.w3c.dom.Element;
+
+/**
+ * The outcome of verifying a single XML Digital Signature with an
+ * {@link XmldsigVerificationEngine}. Checks are performed in order
+ * (signature value, certificate path, certificate validity) and stop at
+ * the first failure; checks that were not reached are reported as failed.
+ */
+public class VerificationResult {
+
+    private final SignatureObjects objects;
+
+    private final X509Certificate[] certificateChain;
+
+    private final boolean signatureValid;
+
+    private final boolean certificatePathValid;
+
+    private final boolean certificateValid;
+
+    public VerificationResult(
+            XMLSignature signature,
+            X509Certificate[] certificateChain,
+            boolean signatureValid,
+            boolean certificatePathValid,
+            boolean certificateValid) {
+        this(new SignatureObjects(signature), certificateChain,
+                signatureValid, certificatePathValid, certificateValid);
+    }
+
+    VerificationResult(
+            SignatureObjects objects,
+            X509Certificate[] certificateChain,
+            boolean signatureValid,
+            boolean certificatePathValid,
+            boolean certificateValid) {
+        this.objects = objects;
+        this.certificateChain = certificateChain;
+        this.signatureValid = signatureValid;
+        this.certificatePathValid = certificatePathValid;
+        this.certificateValid = certificateValid;
+    }
+
+    /**
+     * @return true if the signature value and all references were verified
+     */
+    public boolean isSignatureValid() {
+        return signatureValid;
+    }
+
+    /**
+     * @return true if the certificate chain validates against the trust anchors
+     */
+    public boolean isCertificatePathValid() {
+        return certificatePathValid;
+    }
+
+    /**
+     * @return true if the signing certificate is within its validity period,
+     * matches the subject and key usage restrictions and is not revoked
+     */
+    public boolean isCertificateValid() {
+        return certificateValid;
+    }
+
+    /**
+     * @return true if all checks succeeded
+     */
+    public boolean isValid() {
+        return signatureValid && certificatePathValid && certificateValid;
+    }
+
+    public X509Certificate[] getCertificateChain() {
+        return certificateChain.clone();
+    }
+
+    public X509Certificate getSigningCertificate() {
+        return certificateChain[0];
+    }
+
+    public ObjectContainer[] getObjectContainers() {
+        return objects.getObjectContainers().clone();
+    }
+
+    /**
+     * @param id the Id of the ds:Object element
+     * @return the element, or null if there is none with the Id
+     */
+    public Element getObjectElement(String id) {
+        return objects.getObjectElement(id);
+    }
+
+    public String toString() {
+        return "VerificationResult" +
+                "; signatureValid=" + signatureValid +
+                ", certificatePathValid=" + certificatePathValid +
+                ", certificateValid=" + certificateValid;
+    }
+
+}
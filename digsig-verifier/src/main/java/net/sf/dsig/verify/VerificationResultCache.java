@@ -0,0 +1,163 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outcome of verifying signed documents, keyed by the SHA-256
+ * digest of the document bytes and the version of the policy verified
+ * against, so that re-verifying an identical document skips the signature
+ * and certificate path checks. The certificate validity outcome, which
+ * depends on time and revocation status, is only reused for
+ * revocationTtlMillis and then checked again. No outcome is reused past the
+ * expiry of the certificate chain, nor past revocationTtlMillis for a chain
+ * that has expired already.
+ *
+ * <p>A cache may be shared by engines whose policies differ, as the policy
+ * version keeps them apart. It covers the revocation sources by identity,
+ * along with their default locations, so engines only share outcomes if
+ * they ask the same CRL and OCSP helpers and revocation checker.
+ */
+public class VerificationResultCache {
+
+    // default cache size: 1000 documents
+    private int cacheSize = 1000;
+
+    /**
+     * @param cacheSize the maximum number of documents held; the least
+     * recently used ones are evicted first. 0 disables caching
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    // default revocation TTL: 5min
+    private long revocationTtlMillis = 5*60*1000L;
+
+    /**
+     * @param revocationTtlMillis how long a certificate validity outcome is
+     * reused before checking again
+     */
+    public void setRevocationTtlMillis(long revocationTtlMillis) {
+        this.revocationTtlMillis = revocationTtlMillis;
+    }
+
+    long getRevocationTtlMillis() {
+        return revocationTtlMillis;
+    }
+
+    /** A map from Key to Entry, in access order */
+    private final Map<Key, Entry> entryMap = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Key, VerificationResultCache.Entry> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    Entry get(byte[] digest, String policyVersion) {
+        synchronized (entryMap) {
+            return entryMap.get(new Key(digest, policyVersion));
+        }
+    }
+
+    void put(byte[] digest, String policyVersion, Entry entry) {
+        if (cacheSize <= 0) {
+            return;
+        }
+
+        synchronized (entryMap) {
+            entryMap.put(new Key(digest, policyVersion), entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entryMap) {
+            entryMap.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entryMap) {
+            return entryMap.size();
+        }
+    }
+
+    /** The outcome of verifying a document; immutable, replaced on refresh */
+    static class Entry {
+
+        final X509Certificate[] certificateChain;
+
+        final boolean signatureValid;
+
+        final boolean certificatePathValid;
+
+        final boolean certificateValid;
+
+        /** When certificateValid is due to be checked again */
+        final long certificateValidExpiresAt;
+
+        /** When the entry is no longer used at all */
+        final long expiresAt;
+
+        Entry(
+                X509Certificate[] certificateChain,
+                boolean signatureValid,
+                boolean certificatePathValid,
+                boolean certificateValid,
+                long certificateValidExpiresAt,
+                long expiresAt) {
+            this.certificateChain = certificateChain;
+            this.signatureValid = signatureValid;
+            this.certificatePathValid = certificatePathValid;
+            this.certificateValid = certificateValid;
+            this.certificateValidExpiresAt = certificateValidExpiresAt;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private static class Key {
+
+        private final byte[] digest;
+
+        private final String policyVersion;
+
+        private Key(byte[] digest, String policyVersion) {
+            this.digest = digest;
+            this.policyVersion = policyVersion;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return Arrays.equals(digest, other.digest) && policyVersion.equals(other.policyVersion);
+        }
+
+        public int hashCode() {
+            return 31 * Arrays.hashCode(digest) + policyVersion.hashCode();
+        }
+
+    }
+
+}
@@ -26,12 +26,33 @@ import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERString;
 import org.bouncycastle.asn1.x509.*;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.*;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A helper class that encapsulates CRL checking logic
@@ -44,14 +65,27 @@ public class X509CRLHelper {
     
     private static final Log logger = LogFactory.getLog(X509CRLHelper.class);
     
-    /** A map from URI to LastModified String, for use in cached CRL lists */
-    Map uriNextUpdateMap = new HashMap();
+    /** A map from URI to NextUpdate Date, for use in cached CRL lists */
+    Map<String, Date> uriNextUpdateMap = new ConcurrentHashMap<String, Date>();
     
-    /** A map from URI to CRL list */
-    Map uriX509CrlMap = new HashMap();
+    /** A map from URI to the revoked serials of the CRL */
+    Map<String, RevokedSerialIndex> uriRevokedSerialIndexMap =
+            new ConcurrentHashMap<String, RevokedSerialIndex>();
     
     // Two previous maps are package-scoped, in order to facilitate unit tests
     
+    /** A map from URI to the CRL download in progress, if any */
+    private final ConcurrentMap<String, FutureTask<RevokedSerialIndex>> uriDownloadMap =
+            new ConcurrentHashMap<String, FutureTask<RevokedSerialIndex>>();
+    
+    /** A map from URI to the HTTP validators of the cached CRL */
+    private final ConcurrentMap<String, CacheValidators> uriValidatorsMap =
+            new ConcurrentHashMap<String, CacheValidators>();
+    
+    /** A map from URI to the next scheduled background refresh */
+    private final ConcurrentMap<String, ScheduledFuture<?>> uriRefreshMap =
+            new ConcurrentHashMap<String, ScheduledFuture<?>>();
+    
     private String proxyHost;
     
     public void setProxyHost(String proxyHost) {
@@ -70,17 +104,8 @@ public class X509CRLHelper {
         this.defaultCrlDistributionPoint = defaultCrlDistributionPoint;
     }
     
-    private HostConfiguration getHostConfiguration() {
-        HostConfiguration config = new HostConfiguration();
-        
-        if (proxyHost != null && proxyPort != -1) {
-            logger.debug("Setting proxy" + 
-                    "; proxyHost=" + proxyHost +
-                    "; proxyPort=" + proxyPort);
-            config.setProxy(proxyHost, proxyPort);
-        }
-        
-        return config;
+    String getDefaultCrlDistributionPoint() {
+        return defaultCrlDistributionPoint;
     }
 
     /**
@@ -107,7 +132,18 @@ public class X509CRLHelper {
             throw new ConfigurationException("CRL DistributionPoint not found on certificate, and no default set");
         }
         
-        return !getX509CRL(uriAsString).isRevoked(certificate);
+        return !getRevokedSerialIndex(uriAsString).isRevoked(certificate);
+    }
+    
+    // default: 10 bits per revoked serial, for a ~1% false positive rate
+    private int bloomBitsPerEntry = 10;
+    
+    /**
+     * @param bloomBitsPerEntry the size of the Bloom filter placed in front of
+     * each {@link RevokedSerialIndex}; 0 disables the filter
+     */
+    public void setBloomBitsPerEntry(int bloomBitsPerEntry) {
+        this.bloomBitsPerEntry = bloomBitsPerEntry;
     }
     
     // default timeout: 5sec
@@ -124,87 +160,696 @@ public class X509CRLHelper {
         this.connectionManagerTimeoutMillis = connectionManagerTimeoutMillis;
     }
 
-    private HttpConnectionManager getConnectionManager() {
-        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
-        connectionManager.getParams().setSoTimeout(timeoutMillis);
-        connectionManager.getParams().setConnectionTimeout(timeoutMillis);
+    private RevocationTransport transport;
 
-        return connectionManager;
+    /**
+     * @param transport the HTTP transport to use, possibly shared with other
+     * helpers; when set, the proxy and timeout settings of this helper are
+     * ignored
+     */
+    public synchronized void setTransport(RevocationTransport transport) {
+        this.transport = transport;
     }
 
-    private HttpClient httpClient;
-
-    private HttpClient getHttpClient() {
-        if (httpClient == null) {
-            httpClient = new HttpClient(getConnectionManager());
-            httpClient.getParams().setConnectionManagerTimeout(connectionManagerTimeoutMillis);
+    private synchronized RevocationTransport getTransport() {
+        if (transport == null) {
+            transport = new RevocationTransport();
+            transport.setProxyHost(proxyHost);
+            transport.setProxyPort(proxyPort);
+            transport.setTimeoutMillis(timeoutMillis);
+            transport.setConnectionManagerTimeoutMillis(connectionManagerTimeoutMillis);
         }
 
-        return httpClient;
+        return transport;
     }
 
-    private Object mutex = new Object();
-
+    private File cacheDirectory = null;
+    
+    /**
+     * @param cacheDirectory a directory to persist downloaded CRLs in, so that
+     * they survive restarts; created if missing
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+    
+    // default: no background refresh
+    private long refreshMarginMillis = -1;
+    
+    /**
+     * @param refreshMarginMillis how long before NextUpdate a cached CRL is
+     * refreshed in the background; a non-positive value disables background
+     * refreshing, leaving CRLs to be refetched on first use after NextUpdate
+     */
+    public void setRefreshMarginMillis(long refreshMarginMillis) {
+        this.refreshMarginMillis = refreshMarginMillis;
+    }
+    
+    // default retry interval for failed background refreshes: 1min
+    private long refreshRetryMillis = 60*1000;
+    
+    public void setRefreshRetryMillis(long refreshRetryMillis) {
+        this.refreshRetryMillis = refreshRetryMillis;
+    }
+    
+    // default: never serve CRLs past their NextUpdate
+    private long staleGraceMillis = 0;
+    
+    /**
+     * @param staleGraceMillis how long past NextUpdate a cached CRL may still
+     * be used, while a refresh is in progress or when the distribution point
+     * cannot be reached
+     */
+    public void setStaleGraceMillis(long staleGraceMillis) {
+        this.staleGraceMillis = staleGraceMillis;
+    }
+    
+    private ScheduledExecutorService scheduler;
+    
+    private boolean ownScheduler = false;
+    
     /**
-     * Retrieve the CRL
+     * @param scheduler the scheduler to run background refreshes on; when not
+     * set, a single daemon thread is created on first use
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        this.ownScheduler = false;
+    }
+    
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "X509CRLHelper-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ownScheduler = true;
+        }
+        
+        return scheduler;
+    }
+    
+    /**
+     * Cancel all background refreshes, and release the default scheduler if 
+     * one was created; an injected scheduler is left running
+     */
+    public synchronized void shutdown() {
+        for (Iterator<ScheduledFuture<?>> it = uriRefreshMap.values().iterator(); it.hasNext(); ) {
+            it.next().cancel(false);
+        }
+        uriRefreshMap.clear();
+        
+        if (scheduler != null && ownScheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    /**
+     * Download and parse the CRL. The full {@link X509CRL} object is not 
+     * cached; use {@link #getRevokedSerialIndex(String)} for revocation checks.
      * 
      * @param distributionPointUriAsString the distribution point URI
      * @return the {@link X509CRL} object
      * @throws NetworkAccessException when any network access issues occur
      * @throws VerificationException when an error occurs while parsing the CRL
+     * @deprecated since revoked serials are cached in compact form
      */
+    @Deprecated
     public X509CRL getX509CRL(String distributionPointUriAsString) 
     throws NetworkAccessException, VerificationException {
-        synchronized (mutex) {
-            Date nextUpdate = (Date) uriNextUpdateMap.get(distributionPointUriAsString);
-            if (    nextUpdate != null &&
-                    nextUpdate.after(new Date())) {
-                logger.debug("Returning cached X509CRL" +
-                        "; distributionPoint=" + distributionPointUriAsString +
-                        ", nextUpdate=" + nextUpdate);
-                return (X509CRL) uriX509CrlMap.get(distributionPointUriAsString);
+        GetMethod get = new GetMethod(distributionPointUriAsString);
+        try {
+            getTransport().execute(get);
+            
+            if (get.getStatusCode() != HttpStatus.SC_OK) {
+                throw new NetworkAccessException("HTTP GET failed; statusLine=" + get.getStatusLine());
             }
-
-            HostConfiguration config = getHostConfiguration();
             
-            GetMethod get = new GetMethod(distributionPointUriAsString);
+            return parseX509CRL(get.getResponseBodyAsStream());
+        } catch (IOException e) {
+            throw new NetworkAccessException("I/O error occured", e);
+        } catch (CRLException e) {
+            throw new VerificationException("Error while following CRL protocol", e);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+    
+    private static X509CRL parseX509CRL(InputStream is) throws CRLException {
+        try {
+            return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(is);
+        } catch (CertificateException e) {
+            throw new ConfigurationException("X.509 certificate factory missing");
+        }
+    }
+    
+    /**
+     * Retrieve the revoked serials of a CRL. Fresh cached CRLs are returned without locking;
+     * otherwise the CRL is downloaded, with concurrent requests for the same
+     * distribution point sharing a single download. Requests for different 
+     * distribution points never block each other. A cached CRL still within 
+     * the stale grace period is returned at once while a download is in
+     * progress (or background refreshing is enabled, in which case one is
+     * started), and in place of a failed download.
+     * 
+     * @param distributionPointUriAsString the distribution point URI
+     * @return the {@link RevokedSerialIndex} of the CRL
+     * @throws NetworkAccessException when any network access issues occur
+     * @throws VerificationException when an error occurs while parsing the CRL
+     */
+    public RevokedSerialIndex getRevokedSerialIndex(String distributionPointUriAsString) 
+    throws NetworkAccessException, VerificationException {
+        RevokedSerialIndex crl = getCachedIndex(distributionPointUriAsString);
+        if (crl != null) {
+            return crl;
+        }
+        
+        crl = getStaleIndex(distributionPointUriAsString);
+        if (crl != null && refreshInBackground(distributionPointUriAsString)) {
+            logger.debug("Returning stale CRL while refreshing" +
+                    "; distributionPoint=" + distributionPointUriAsString +
+                    ", nextUpdate=" + uriNextUpdateMap.get(distributionPointUriAsString));
+            
+            return crl;
+        }
+        
+        try {
+            return fetchIndex(distributionPointUriAsString, false);
+        } catch (NetworkAccessException e) {
+            crl = getStaleIndex(distributionPointUriAsString);
+            if (crl == null) {
+                throw e;
+            }
+            
+            logger.warn("CRL download failed; returning stale CRL" +
+                    "; distributionPoint=" + distributionPointUriAsString +
+                    ", nextUpdate=" + uriNextUpdateMap.get(distributionPointUriAsString), e);
+            
+            return crl;
+        }
+    }
+    
+    private RevokedSerialIndex fetchIndex(final String distributionPointUriAsString, final boolean refresh) 
+    throws NetworkAccessException, VerificationException {
+        FutureTask<RevokedSerialIndex> download = new FutureTask<RevokedSerialIndex>(
+                new Callable<RevokedSerialIndex>() {
+            public RevokedSerialIndex call() throws Exception {
+                // Another download may have completed since the cache was checked
+                RevokedSerialIndex crl = refresh ? null : getCachedIndex(distributionPointUriAsString);
+                
+                return crl != null ? crl : downloadIndex(distributionPointUriAsString);
+            }
+        });
+        
+        FutureTask<RevokedSerialIndex> inProgress =
+                uriDownloadMap.putIfAbsent(distributionPointUriAsString, download);
+        if (inProgress == null) {
+            inProgress = download;
             try {
-                getHttpClient().executeMethod(config, get);
+                download.run();
+            } finally {
+                uriDownloadMap.remove(distributionPointUriAsString, download);
+            }
+        } else {
+            logger.debug("Waiting for CRL download in progress" +
+                    "; distributionPoint=" + distributionPointUriAsString);
+        }
+        
+        return awaitDownload(inProgress);
+    }
+    
+    /**
+     * Make sure a CRL past NextUpdate is being downloaded, without waiting
+     * for it; a refresh already scheduled (e.g. a retry) is left to run
+     * 
+     * @return false if no download is in progress, and background
+     * refreshing is disabled
+     */
+    private boolean refreshInBackground(String distributionPointUriAsString) {
+        if (uriDownloadMap.containsKey(distributionPointUriAsString)) {
+            return true;
+        }
+        if (refreshMarginMillis <= 0) {
+            return false;
+        }
+        
+        synchronized (uriRefreshMap) {
+            ScheduledFuture<?> pending = uriRefreshMap.get(distributionPointUriAsString);
+            if (pending == null || pending.isDone()) {
+                scheduleRefresh(distributionPointUriAsString, 0);
+            }
+        }
+        
+        return true;
+    }
+    
+    private void scheduleRefresh(final String distributionPointUriAsString, long delayMillis) {
+        if (refreshMarginMillis <= 0) {
+            return;
+        }
+        
+        ScheduledFuture<?> refresh = getScheduler().schedule(new Runnable() {
+            public void run() {
+                refresh(distributionPointUriAsString);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        
+        ScheduledFuture<?> previous =
+                uriRefreshMap.put(distributionPointUriAsString, refresh);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        
+        logger.debug("Scheduled CRL refresh" +
+                "; distributionPoint=" + distributionPointUriAsString +
+                ", delayMillis=" + delayMillis);
+    }
+    
+    private void scheduleRefresh(String distributionPointUriAsString, Date nextUpdate) {
+        if (nextUpdate == null) {
+            return;
+        }
+        
+        long delayMillis = nextUpdate.getTime() - refreshMarginMillis - System.currentTimeMillis();
+        if (delayMillis < refreshRetryMillis) {
+            // Published close to (or past) NextUpdate; do not hammer the CA
+            if (nextUpdate.getTime() + staleGraceMillis < System.currentTimeMillis()) {
+                return;
+            }
+            delayMillis = refreshRetryMillis;
+        }
+        
+        scheduleRefresh(distributionPointUriAsString, delayMillis);
+    }
+    
+    private void refresh(String distributionPointUriAsString) {
+        try {
+            fetchIndex(distributionPointUriAsString, true);
+        } catch (Exception e) {
+            Date nextUpdate = uriNextUpdateMap.get(distributionPointUriAsString);
+            
+            logger.warn("Background CRL refresh failed" +
+                    "; distributionPoint=" + distributionPointUriAsString +
+                    ", nextUpdate=" + nextUpdate, e);
+            
+            // Keep retrying while the cached CRL is still usable
+            if (    nextUpdate != null &&
+                    nextUpdate.getTime() + staleGraceMillis > System.currentTimeMillis()) {
+                scheduleRefresh(distributionPointUriAsString, refreshRetryMillis);
+            }
+        }
+    }
+    
+    private RevokedSerialIndex getStaleIndex(String distributionPointUriAsString) {
+        Date nextUpdate = uriNextUpdateMap.get(distributionPointUriAsString);
+        if (    nextUpdate != null &&
+                nextUpdate.getTime() + staleGraceMillis > System.currentTimeMillis()) {
+            return uriRevokedSerialIndexMap.get(distributionPointUriAsString);
+        }
+        
+        return null;
+    }
+    
+    private RevokedSerialIndex getCachedIndex(String distributionPointUriAsString) {
+        Date nextUpdate = uriNextUpdateMap.get(distributionPointUriAsString);
+        if (    nextUpdate != null &&
+                nextUpdate.after(new Date())) {
+            logger.debug("Returning cached CRL" +
+                    "; distributionPoint=" + distributionPointUriAsString +
+                    ", nextUpdate=" + nextUpdate);
+            return uriRevokedSerialIndexMap.get(distributionPointUriAsString);
+        }
+        
+        return null;
+    }
+    
+    private RevokedSerialIndex awaitDownload(FutureTask<RevokedSerialIndex> download) 
+    throws NetworkAccessException, VerificationException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkAccessException("Interrupted while waiting for CRL download", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkAccessException) {
+                throw (NetworkAccessException) cause;
+            } else if (cause instanceof VerificationException) {
+                throw (VerificationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            
+            throw new VerificationException("CRL download failed", cause);
+        }
+    }
+    
+    private RevokedSerialIndex downloadIndex(String distributionPointUriAsString) 
+    throws NetworkAccessException, VerificationException {
+        RevokedSerialIndex cachedCrl =
+                uriRevokedSerialIndexMap.get(distributionPointUriAsString);
+        
+        // Cold start; try the on-disk cache before going to the network
+        if (cachedCrl == null && cacheDirectory != null) {
+            cachedCrl = loadIndex(distributionPointUriAsString);
+            
+            if (getCachedIndex(distributionPointUriAsString) != null) {
+                scheduleRefresh(distributionPointUriAsString, cachedCrl.getNextUpdate());
                 
-                logger.debug("HTTP GET executed" + 
-                        "; distributionPointUri=" + distributionPointUriAsString +
-                        ", statusLine=" + get.getStatusLine());
-                        
-                if (get.getStatusCode() != HttpStatus.SC_OK) {
-                    throw new NetworkAccessException("HTTP GET failed; statusLine=" + get.getStatusLine());
+                return cachedCrl;
+            }
+        }
+        
+        GetMethod get = new GetMethod(distributionPointUriAsString);
+        try {
+            CacheValidators validators =
+                    uriValidatorsMap.get(distributionPointUriAsString);
+            if (cachedCrl != null && validators != null) {
+                if (validators.eTag != null) {
+                    get.setRequestHeader("If-None-Match", validators.eTag);
                 }
+                if (validators.lastModified != null) {
+                    get.setRequestHeader("If-Modified-Since", validators.lastModified);
+                }
+            }
+            
+            getTransport().execute(get);
+            
+            logger.debug("HTTP GET executed" + 
+                    "; distributionPointUri=" + distributionPointUriAsString +
+                    ", statusLine=" + get.getStatusLine());
+            
+            if (cachedCrl != null && get.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                logger.debug("CRL not modified; keeping cached copy" +
+                        "; distributionPoint=" + distributionPointUriAsString +
+                        ", nextUpdate=" + cachedCrl.getNextUpdate());
                 
+                scheduleRefresh(distributionPointUriAsString, cachedCrl.getNextUpdate());
                 
-                X509CRL crl = null;
-                byte[] responseBodyBytes = get.getResponseBody();
+                return cachedCrl;
+            }
+            
+            if (get.getStatusCode() != HttpStatus.SC_OK) {
+                throw new NetworkAccessException("HTTP GET failed; statusLine=" + get.getStatusLine());
+            }
+            
+            InputStream is = get.getResponseBodyAsStream();
+            if (is == null) {
+                throw new NetworkAccessException("HTTP GET returned no CRL; statusLine=" + get.getStatusLine());
+            }
+            
+            // The CRL is parsed as it arrives; when a cache directory is set,
+            // the bytes are copied to a temporary file on the way through
+            File crlTempFile = null;
+            TeeInputStream tee = null;
+            if (cacheDirectory != null) {
                 try {
-                    crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
-                            new ByteArrayInputStream(responseBodyBytes));
-                } catch (CertificateException e) {
-                    throw new ConfigurationException("X.509 certificate factory missing");
+                    cacheDirectory.mkdirs();
+                    crlTempFile = File.createTempFile("crl", ".tmp", cacheDirectory);
+                    is = tee = new TeeInputStream(is, new FileOutputStream(crlTempFile));
+                } catch (IOException e) {
+                    logger.warn("Writing CRL to cache directory failed; directory=" + cacheDirectory, e);
                 }
-                
-                uriNextUpdateMap.put(
-                        distributionPointUriAsString, 
-                        crl.getNextUpdate());
-                uriX509CrlMap.put(
-                        distributionPointUriAsString, 
-                        crl);
-                
-                return crl;
-            } catch (IOException e) {
-                throw new NetworkAccessException("I/O error occured", e);
-            } catch (CRLException e) {
-                throw new VerificationException("Error while following CRL protocol", e);
+            }
+            
+            RevokedSerialIndex crl = null;
+            try {
+                crl = X509CRLStreamParser.parse(new BufferedInputStream(is), bloomBitsPerEntry);
             } finally {
-                get.releaseConnection();
+                if (tee != null) {
+                    tee.closeCopy();
+                }
+                if (crlTempFile != null && (crl == null || tee == null || tee.hasCopyFailed())) {
+                    crlTempFile.delete();
+                    crlTempFile = null;
+                }
             }
+            
+            validators = new CacheValidators(
+                    getResponseHeaderValue(get, "ETag"),
+                    getResponseHeaderValue(get, "Last-Modified"));
+            
+            putIndex(distributionPointUriAsString, crl, validators);
+            
+            if (crlTempFile != null) {
+                saveCrl(distributionPointUriAsString, crlTempFile, validators);
+            }
+            
+            scheduleRefresh(distributionPointUriAsString, crl.getNextUpdate());
+            
+            return crl;
+        } catch (IOException e) {
+            throw new NetworkAccessException("I/O error occured", e);
+        } catch (CRLException e) {
+            throw new VerificationException("Error while following CRL protocol", e);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+    
+    private static String getResponseHeaderValue(HttpMethod method, String name) {
+        Header header = method.getResponseHeader(name);
+        
+        return header != null ? header.getValue() : null;
+    }
+    
+    private void putIndex(String distributionPointUriAsString, RevokedSerialIndex crl, CacheValidators validators) {
+        if (validators != null) {
+            uriValidatorsMap.put(distributionPointUriAsString, validators);
+        } else {
+            uriValidatorsMap.remove(distributionPointUriAsString);
+        }
+        
+        // The CRL goes in first, so that a fresh NextUpdate never points
+        // to a missing or older CRL
+        uriRevokedSerialIndexMap.put(
+                distributionPointUriAsString, 
+                crl);
+        if (crl.getNextUpdate() != null) {
+            uriNextUpdateMap.put(
+                    distributionPointUriAsString, 
+                    crl.getNextUpdate());
+        } else {
+            uriNextUpdateMap.remove(distributionPointUriAsString);
+        }
+    }
+    
+    /**
+     * Load a CRL previously saved in the cache directory into the in-memory
+     * cache, regardless of its NextUpdate
+     * 
+     * @return the {@link RevokedSerialIndex}, or null if none was saved or it 
+     * cannot be read
+     */
+    private RevokedSerialIndex loadIndex(String distributionPointUriAsString) {
+        File crlFile = getCacheFile(distributionPointUriAsString, ".crl");
+        File propertiesFile = getCacheFile(distributionPointUriAsString, ".properties");
+        if (!crlFile.isFile() || !propertiesFile.isFile()) {
+            return null;
         }
+        
+        InputStream is = null;
+        try {
+            Properties properties = new Properties();
+            is = new FileInputStream(propertiesFile);
+            properties.load(is);
+            is.close();
+            
+            // Guard against hash collisions
+            if (!distributionPointUriAsString.equals(properties.getProperty("uri"))) {
+                return null;
+            }
+            
+            is = new BufferedInputStream(new FileInputStream(crlFile));
+            RevokedSerialIndex crl = X509CRLStreamParser.parse(is, bloomBitsPerEntry);
+            
+            putIndex(
+                    distributionPointUriAsString, 
+                    crl, 
+                    new CacheValidators(
+                            properties.getProperty("eTag"),
+                            properties.getProperty("lastModified")));
+            
+            logger.debug("Loaded CRL from cache directory" +
+                    "; distributionPoint=" + distributionPointUriAsString +
+                    ", nextUpdate=" + crl.getNextUpdate());
+            
+            return crl;
+        } catch (IOException e) {
+            logger.warn("Reading cached CRL failed; file=" + crlFile, e);
+        } catch (CRLException e) {
+            logger.warn("Parsing cached CRL failed; file=" + crlFile, e);
+        } finally {
+            close(is);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Move a downloaded CRL into the cache directory. Files are written under a
+     * temporary name first, so that readers never see partial contents.
+     * 
+     * @param crlTempFile the temporary file holding the complete CRL
+     */
+    private void saveCrl(
+            String distributionPointUriAsString, 
+            File crlTempFile,
+            CacheValidators validators) {
+        File crlFile = getCacheFile(distributionPointUriAsString, ".crl");
+        File propertiesFile = getCacheFile(distributionPointUriAsString, ".properties");
+        
+        Properties properties = new Properties();
+        properties.setProperty("uri", distributionPointUriAsString);
+        if (validators.eTag != null) {
+            properties.setProperty("eTag", validators.eTag);
+        }
+        if (validators.lastModified != null) {
+            properties.setProperty("lastModified", validators.lastModified);
+        }
+        
+        OutputStream os = null;
+        try {
+            File propertiesTempFile = File.createTempFile("crl", ".tmp", cacheDirectory);
+            os = new FileOutputStream(propertiesTempFile);
+            properties.store(os, null);
+            os.close();
+            
+            rename(crlTempFile, crlFile);
+            rename(propertiesTempFile, propertiesFile);
+        } catch (IOException e) {
+            logger.warn("Writing CRL to cache directory failed; file=" + crlFile, e);
+            crlTempFile.delete();
+        } finally {
+            close(os);
+        }
+    }
+    
+    private static void rename(File from, File to) throws IOException {
+        // File.renameTo() does not replace existing files on all platforms
+        if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+            from.delete();
+            throw new IOException("Rename failed; from=" + from + ", to=" + to);
+        }
+    }
+    
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+        }
+    }
+    
+    private File getCacheFile(String distributionPointUriAsString, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    distributionPointUriAsString.getBytes("UTF-8"));
+            
+            StringBuffer sb = new StringBuffer();
+            for (int i=0; i<digest.length; i++) {
+                sb.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            }
+            
+            return new File(cacheDirectory, sb.toString() + suffix);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("SHA-1 algorithm not found; should not happen");
+        } catch (UnsupportedEncodingException e) {
+            throw new ConfigurationException("UTF-8 encoding not found; should not happen");
+        }
+    }
+    
+    /** HTTP validators of a cached CRL, for use in conditional requests */
+    private static class CacheValidators {
+        
+        private final String eTag;
+        
+        private final String lastModified;
+        
+        private CacheValidators(String eTag, String lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+        
+    }
+    
+    /**
+     * Copies everything read, or skipped, to an output stream. Failures to
+     * write the copy are remembered rather than thrown, so that they never
+     * break the read itself.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        
+        private final OutputStream copy;
+        
+        private boolean copyFailed = false;
+        
+        private TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+        
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            return b;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                write(b, off, read);
+            }
+            
+            return read;
+        }
+        
+        public long skip(long n) throws IOException {
+            // Skipped bytes must make it to the copy too
+            byte[] b = new byte[(int) Math.min(n, 4096)];
+            int read = read(b, 0, b.length);
+            
+            return read > 0 ? read : 0;
+        }
+        
+        public boolean markSupported() {
+            return false;
+        }
+        
+        private void write(byte[] b, int off, int len) {
+            if (copyFailed) {
+                return;
+            }
+            try {
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                logger.warn("Writing CRL copy failed", e);
+                copyFailed = true;
+            }
+        }
+        
+        private boolean hasCopyFailed() {
+            return copyFailed;
+        }
+        
+        private void closeCopy() {
+            try {
+                copy.close();
+            } catch (IOException e) {
+                logger.warn("Closing CRL copy failed", e);
+                copyFailed = true;
+            }
+        }
+        
     }
     
     /**
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.security.cert.CRLException;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERBoolean;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.asn1.x509.X509Extensions;
+
+/**
+ * Reads a DER-encoded CRL sequentially, feeding revoked serials into a
+ * {@link RevokedSerialIndex.Builder} as they are encountered. Neither the
+ * encoded CRL nor its entries are ever held in memory as a whole, so parsing
+ * a CRL of any size only costs the resulting index. PEM armoured CRLs are
+ * decoded on the fly.
+ *
+ * <p>Like the {@link java.security.cert.CertificateFactory} based parsing it
+ * replaces, the CRL signature is not verified. Unlike it, indirect CRLs are
+ * not supported: the index holds the serials of a single issuer, so CRLs
+ * marked indirect, or with entries naming another certificate issuer, are
+ * rejected rather than misread.
+ */
+class X509CRLStreamParser {
+
+    private static final int TAG_INTEGER = 0x02;
+
+    private static final int TAG_SEQUENCE = 0x30;
+
+    private static final int TAG_UTCTIME = 0x17;
+
+    private static final int TAG_GENERALIZEDTIME = 0x18;
+
+    private static final int TAG_OID = 0x06;
+
+    /** [0] EXPLICIT, as crlExtensions are tagged */
+    private static final int TAG_CRL_EXTENSIONS = 0xa0;
+
+    /** The contents of the certificateIssuer OID, 2.5.29.29 */
+    private static final byte[] CERTIFICATE_ISSUER_OID = { 0x55, 0x1d, 0x1d };
+
+    private final InputStream is;
+
+    /** Number of bytes consumed so far */
+    private long position = 0;
+
+    /** Reused for serials, which are at most 20 bytes in conforming CRLs */
+    private byte[] buffer = new byte[32];
+
+    private X509CRLStreamParser(InputStream is) {
+        this.is = is;
+    }
+
+    /**
+     * Parse a CRL; the stream is read to its end, but not closed
+     *
+     * @param is the DER-encoded or PEM armoured CRL
+     * @param bloomBitsPerEntry the size of the Bloom filter; 0 for none
+     * @return the {@link RevokedSerialIndex} of the CRL
+     * @throws IOException when reading the stream fails
+     * @throws CRLException when the CRL is malformed, or indirect
+     */
+    static RevokedSerialIndex parse(InputStream is, int bloomBitsPerEntry)
+    throws IOException, CRLException {
+        if (!is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+
+        is.mark(1);
+        int first = is.read();
+        is.reset();
+        if (first != '-') {
+            return new X509CRLStreamParser(is).parse(bloomBitsPerEntry);
+        }
+
+        // -----BEGIN X509 CRL-----
+        StringBuffer header = new StringBuffer();
+        for (int b = is.read(); b != -1 && b != '\n'; b = is.read()) {
+            header.append((char) b);
+        }
+        if (!header.toString().startsWith("-----BEGIN")) {
+            throw new CRLException("PEM header expected; header=" + header);
+        }
+
+        RevokedSerialIndex index = new X509CRLStreamParser(
+                new Base64InputStream(new PemBodyReader(is))).parse(bloomBitsPerEntry);
+
+        // The END line and anything after it
+        byte[] buffer = new byte[4096];
+        while (is.read(buffer) != -1);
+
+        return index;
+    }
+
+    private RevokedSerialIndex parse(int bloomBitsPerEntry) throws IOException, CRLException {
+        RevokedSerialIndex.Builder builder = new RevokedSerialIndex.Builder();
+
+        // CertificateList ::= SEQUENCE { tbsCertList, signatureAlgorithm, signatureValue }
+        expectTag(TAG_SEQUENCE);
+        readLength();
+
+        // TBSCertList ::= SEQUENCE { ... }
+        expectTag(TAG_SEQUENCE);
+        long tbsEnd = readLength() + position;
+
+        int tag = readTag();
+        if (tag == TAG_INTEGER) {
+            // version
+            skip(readLength());
+            tag = readTag();
+        }
+
+        // signature AlgorithmIdentifier
+        checkTag(tag, TAG_SEQUENCE);
+        skip(readLength());
+
+        // issuer Name; X500Principal wants the complete encoding
+        expectTag(TAG_SEQUENCE);
+        builder.setIssuer(new X500Principal(readElement(TAG_SEQUENCE, readLength())));
+
+        tag = readTag();
+        builder.setThisUpdate(readTime(tag, readLength()));
+
+        if (position < tbsEnd) {
+            tag = readTag();
+            if (tag == TAG_UTCTIME || tag == TAG_GENERALIZEDTIME) {
+                builder.setNextUpdate(readTime(tag, readLength()));
+                tag = position < tbsEnd ? readTag() : -1;
+            }
+
+            if (tag == TAG_SEQUENCE) {
+                // revokedCertificates SEQUENCE OF SEQUENCE { userCertificate, ... }
+                long revokedEnd = readLength() + position;
+                while (position < revokedEnd) {
+                    expectTag(TAG_SEQUENCE);
+                    long entryEnd = readLength() + position;
+
+                    expectTag(TAG_INTEGER);
+                    int serialLength = (int) readLength();
+                    if (serialLength > buffer.length) {
+                        buffer = new byte[serialLength];
+                    }
+                    readFully(buffer, serialLength);
+                    builder.addSerial(buffer, 0, serialLength);
+
+                    // revocationDate
+                    readTag();
+                    skip(readLength());
+
+                    if (position < entryEnd) {
+                        checkEntryExtensions(entryEnd);
+                    }
+                    skip(entryEnd - position);
+                }
+                tag = position < tbsEnd ? readTag() : -1;
+            }
+
+            if (tag == TAG_CRL_EXTENSIONS) {
+                checkCrlExtensions(readElement(tag, readLength()));
+            } else if (tag != -1) {
+                skip(readLength());
+            }
+            // Anything else up to the end of TBSCertList
+            skip(tbsEnd - position);
+        }
+
+        // signatureAlgorithm and signatureValue are of no use without the
+        // issuer key; drain them so that the whole CRL has been consumed
+        while (is.read(buffer) != -1);
+
+        return builder.build(bloomBitsPerEntry);
+    }
+
+    /**
+     * Reject entries naming their certificate issuer, which only occur in
+     * indirect CRLs; reading the OIDs alone keeps the common reasonCode
+     * entries cheap
+     */
+    private void checkEntryExtensions(long entryEnd) throws IOException, CRLException {
+        // crlEntryExtensions ::= SEQUENCE OF Extension
+        expectTag(TAG_SEQUENCE);
+        readLength();
+        while (position < entryEnd) {
+            // Extension ::= SEQUENCE { extnID, critical, extnValue }
+            expectTag(TAG_SEQUENCE);
+            long extensionEnd = readLength() + position;
+
+            expectTag(TAG_OID);
+            int oidLength = (int) readLength();
+            if (oidLength > buffer.length) {
+                buffer = new byte[oidLength];
+            }
+            readFully(buffer, oidLength);
+            if (    oidLength == CERTIFICATE_ISSUER_OID.length &&
+                    buffer[0] == CERTIFICATE_ISSUER_OID[0] &&
+                    buffer[1] == CERTIFICATE_ISSUER_OID[1] &&
+                    buffer[2] == CERTIFICATE_ISSUER_OID[2]) {
+                throw new CRLException("Indirect CRL entries not supported; position=" + position);
+            }
+
+            skip(extensionEnd - position);
+        }
+    }
+
+    /** Reject CRLs whose issuingDistributionPoint marks them indirect */
+    private void checkCrlExtensions(byte[] element) throws IOException, CRLException {
+        X509Extensions extensions;
+        ASN1InputStream ais = new ASN1InputStream(element);
+        try {
+            extensions = X509Extensions.getInstance((ASN1TaggedObject) ais.readObject(), true);
+        } catch (ClassCastException e) {
+            throw new CRLException("Malformed CRL extensions; position=" + position);
+        } catch (IllegalArgumentException e) {
+            throw new CRLException("Malformed CRL extensions; position=" + position);
+        } finally {
+            ais.close();
+        }
+
+        X509Extension extension = extensions.getExtension(X509Extensions.IssuingDistributionPoint);
+        if (extension == null) {
+            return;
+        }
+
+        // IssuingDistributionPoint ::= SEQUENCE { ..., indirectCRL [4] BOOLEAN DEFAULT FALSE, ... };
+        // read by hand, as the BouncyCastle class mixes up the field tags
+        ASN1Sequence sequence;
+        try {
+            sequence = ASN1Sequence.getInstance(
+                    ASN1Object.fromByteArray(extension.getValue().getOctets()));
+        } catch (IllegalArgumentException e) {
+            throw new CRLException("Malformed issuingDistributionPoint; position=" + position);
+        }
+        for (int i=0; i<sequence.size(); i++) {
+            if (!(sequence.getObjectAt(i) instanceof ASN1TaggedObject)) {
+                throw new CRLException("Malformed issuingDistributionPoint; position=" + position);
+            }
+            ASN1TaggedObject field = (ASN1TaggedObject) sequence.getObjectAt(i);
+            if (    field.getTagNo() == 4 &&
+                    DERBoolean.getInstance(field, false).isTrue()) {
+                throw new CRLException("Indirect CRLs not supported");
+            }
+        }
+    }
+
+    private Date readTime(int tag, long length) throws IOException, CRLException {
+        if (tag != TAG_UTCTIME && tag != TAG_GENERALIZEDTIME) {
+            throw new CRLException("Time expected; tag=" + tag + ", position=" + position);
+        }
+
+        ASN1InputStream ais = new ASN1InputStream(readElement(tag, length));
+        try {
+            return Time.getInstance(ais.readObject()).getDate();
+        } finally {
+            ais.close();
+        }
+    }
+
+    /** Re-encode an element of which the tag and length were already read */
+    private byte[] readElement(int tag, long length) throws IOException, CRLException {
+        if (length > 64*1024) {
+            throw new CRLException("Element too long; length=" + length + ", position=" + position);
+        }
+
+        int lengthOctets = length < 0x80 ? 0 : length < 0x100 ? 1 : length < 0x10000 ? 2 : 3;
+        byte[] element = new byte[2 + lengthOctets + (int) length];
+        element[0] = (byte) tag;
+        if (lengthOctets == 0) {
+            element[1] = (byte) length;
+        } else {
+            element[1] = (byte) (0x80 | lengthOctets);
+            for (int i=0; i<lengthOctets; i++) {
+                element[2 + i] = (byte) (length >> (8 * (lengthOctets - 1 - i)));
+            }
+        }
+
+        int off = 2 + lengthOctets;
+        while (off < element.length) {
+            int read = is.read(element, off, element.length - off);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of CRL; position=" + position);
+            }
+            off += read;
+            position += read;
+        }
+
+        return element;
+    }
+
+    private void expectTag(int expected) throws IOException, CRLException {
+        checkTag(readTag(), expected);
+    }
+
+    private void checkTag(int tag, int expected) throws CRLException {
+        if (tag != expected) {
+            throw new CRLException("Unexpected tag; tag=" + tag +
+                    ", expected=" + expected + ", position=" + position);
+        }
+    }
+
+    private int readTag() throws IOException, CRLException {
+        int tag = read();
+        if ((tag & 0x1f) == 0x1f) {
+            throw new CRLException("High tag numbers not supported; position=" + position);
+        }
+
+        return tag;
+    }
+
+    private long readLength() throws IOException, CRLException {
+        int first = read();
+        if (first < 0x80) {
+            return first;
+        }
+
+        int octets = first & 0x7f;
+        if (octets == 0) {
+            throw new CRLException("Indefinite length not allowed in DER; position=" + position);
+        }
+        if (octets > 4) {
+            throw new CRLException("Length too long; position=" + position);
+        }
+
+        long length = 0;
+        for (int i=0; i<octets; i++) {
+            length = (length << 8) | read();
+        }
+
+        return length;
+    }
+
+    private int read() throws IOException {
+        int b = is.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of CRL; position=" + position);
+        }
+        position++;
+
+        return b;
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int read = is.read(b, off, len - off);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of CRL; position=" + position);
+            }
+            off += read;
+        }
+        position += len;
+    }
+
+    private void skip(long n) throws IOException, CRLException {
+        if (n < 0) {
+            throw new CRLException("Element overruns its parent; position=" + position);
+        }
+
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                // Some streams only skip what is buffered; fall back to reading
+                read();
+                skipped = 1;
+            } else {
+                position += skipped;
+            }
+            n -= skipped;
+        }
+    }
+
+    /** The Base64 body of a PEM armoured CRL, ending before the END line */
+    private static class PemBodyReader extends Reader {
+
+        private final InputStream is;
+
+        private boolean ended = false;
+
+        private PemBodyReader(InputStream is) {
+            this.is = is;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count = 0;
+            while (!ended && count < len) {
+                int b = is.read();
+                if (b == -1 || b == '-') {
+                    ended = true;
+                } else {
+                    cbuf[off + count++] = (char) b;
+                }
+            }
+
+            return count > 0 ? count : -1;
+        }
+
+        public void close() {
+            // The underlying stream is the caller's
+        }
+
+    }
+
+}
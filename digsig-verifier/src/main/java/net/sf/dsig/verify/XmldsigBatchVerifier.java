@@ -0,0 +1,368 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+
+/**
+ * Verify large batches of enveloping signatures in parallel, using a shared
+ * {@link XmldsigVerificationEngine}. Inputs are pulled from an
+ * {@link Iterator} only as capacity frees up, so at most
+ * <code>maxInFlight</code> documents are held in memory at any time,
+ * regardless of the size of the batch.
+ *
+ * <p>Supported inputs are {@link InputStream} objects, which are closed once
+ * verified (or once cancelled, if the batch is aborted), {@link File} objects, which are memory-mapped as in
+ * {@link XmldsigVerificationEngine#verify(File)}, and DOM {@link Document}
+ * objects.
+ */
+public class XmldsigBatchVerifier {
+
+    private static final Log logger = LogFactory.getLog(XmldsigBatchVerifier.class);
+
+    private final XmldsigVerificationEngine engine;
+
+    public XmldsigBatchVerifier(XmldsigVerificationEngine engine) {
+        this.engine = engine;
+    }
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param threads the size of the default pool; ignored when an
+     * {@link ExecutorService} is set
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    // default: a few inputs queued per worker thread
+    private int maxInFlight = -1;
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    private int getMaxInFlight() {
+        return maxInFlight > 0 ? maxInFlight : threads * 4;
+    }
+
+    private volatile ExecutorService executorService;
+
+    private boolean ownExecutorService = false;
+
+    /**
+     * @param executorService the pool to run verifications on; when not set,
+     * a fixed pool of daemon threads is created on first use
+     */
+    public synchronized void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+        this.ownExecutorService = false;
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "XmldsigBatchVerifier-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ownExecutorService = true;
+        }
+
+        return executorService;
+    }
+
+    /**
+     * Release the default pool, if one was created; an injected
+     * {@link ExecutorService} is left untouched
+     */
+    public synchronized void shutdown() {
+        if (executorService != null && ownExecutorService) {
+            executorService.shutdown();
+            executorService = null;
+        }
+    }
+
+    /**
+     * Verify a batch, reporting results in input order
+     *
+     * @param inputs the inputs to verify
+     * @param listener the {@link BatchVerificationListener} to report to
+     * @throws InterruptedException when interrupted while waiting; inputs
+     * not yet verified are cancelled
+     */
+    public void verifyInOrder(Collection<?> inputs, BatchVerificationListener listener)
+    throws InterruptedException {
+        verifyInOrder(inputs.iterator(), listener);
+    }
+
+    /**
+     * Verify a batch, reporting results in input order. A slow input holds
+     * back the reporting (but not the verification) of the ones after it.
+     *
+     * @param inputs an {@link Iterator} over the inputs to verify
+     * @param listener the {@link BatchVerificationListener} to report to
+     * @throws InterruptedException when interrupted while waiting; inputs
+     * not yet verified are cancelled
+     */
+    public void verifyInOrder(Iterator<?> inputs, BatchVerificationListener listener)
+    throws InterruptedException {
+        ExecutorService executor = getExecutorService();
+        int maxInFlight = getMaxInFlight();
+        LinkedList<VerificationTask> pending = new LinkedList<VerificationTask>();
+
+        try {
+            int index = 0;
+            while (inputs.hasNext()) {
+                if (pending.size() >= maxInFlight) {
+                    report(pending.removeFirst(), listener);
+                }
+                VerificationTask task = new VerificationTask(
+                        new Verification(index++, inputs.next()), null);
+                pending.addLast(task);
+                executor.execute(task);
+            }
+
+            while (!pending.isEmpty()) {
+                report(pending.removeFirst(), listener);
+            }
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    /**
+     * Verify a batch, reporting results as soon as they become available
+     *
+     * @param inputs the inputs to verify
+     * @param listener the {@link BatchVerificationListener} to report to
+     * @throws InterruptedException when interrupted while waiting; inputs
+     * not yet verified are cancelled
+     */
+    public void verifyAsCompleted(Collection<?> inputs, BatchVerificationListener listener)
+    throws InterruptedException {
+        verifyAsCompleted(inputs.iterator(), listener);
+    }
+
+    /**
+     * Verify a batch, reporting results as soon as they become available
+     *
+     * @param inputs an {@link Iterator} over the inputs to verify
+     * @param listener the {@link BatchVerificationListener} to report to
+     * @throws InterruptedException when interrupted while waiting; inputs
+     * not yet verified are cancelled
+     */
+    public void verifyAsCompleted(Iterator<?> inputs, BatchVerificationListener listener)
+    throws InterruptedException {
+        ExecutorService executor = getExecutorService();
+        BlockingQueue<VerificationTask> completionQueue =
+                new LinkedBlockingQueue<VerificationTask>();
+        int maxInFlight = getMaxInFlight();
+        LinkedList<VerificationTask> pending = new LinkedList<VerificationTask>();
+
+        try {
+            int index = 0;
+            while (inputs.hasNext()) {
+                if (pending.size() >= maxInFlight) {
+                    VerificationTask done = completionQueue.take();
+                    pending.remove(done);
+                    report(done, listener);
+                }
+                VerificationTask task = new VerificationTask(
+                        new Verification(index++, inputs.next()), completionQueue);
+                pending.addLast(task);
+                executor.execute(task);
+            }
+
+            while (!pending.isEmpty()) {
+                VerificationTask done = completionQueue.take();
+                pending.remove(done);
+                report(done, listener);
+            }
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    private void report(Future<Outcome> future, BatchVerificationListener listener)
+    throws InterruptedException {
+        Outcome outcome;
+        try {
+            outcome = future.get();
+        } catch (ExecutionException e) {
+            // Verification catches all exceptions; only errors should end up here
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IllegalStateException("Verification failed unexpectedly", cause);
+        }
+
+        if (outcome.exception != null) {
+            listener.failed(outcome.index, outcome.exception);
+        } else {
+            listener.verified(outcome.index, outcome.result);
+        }
+    }
+
+    private void cancel(LinkedList<VerificationTask> pending) {
+        if (!pending.isEmpty()) {
+            logger.warn("Batch aborted; cancelling pending verifications" +
+                    "; pending=" + pending.size());
+        }
+
+        for (Iterator<VerificationTask> it = pending.iterator(); it.hasNext(); ) {
+            it.next().cancel(true);
+        }
+    }
+
+    VerificationResult verify(Object input)
+    throws VerificationException, NetworkAccessException {
+        if (input instanceof InputStream) {
+            InputStream is = (InputStream) input;
+            try {
+                return engine.verify(is);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    logger.warn("Closing input failed", e);
+                }
+            }
+        } else if (input instanceof File) {
+            return engine.verify((File) input);
+        } else if (input instanceof Document) {
+            return engine.verify((Document) input);
+        }
+
+        throw new IllegalArgumentException("Unsupported input; class=" +
+                (input != null ? input.getClass().getName() : null));
+    }
+
+    private static class Outcome {
+
+        private final int index;
+
+        private final VerificationResult result;
+
+        private final Exception exception;
+
+        private Outcome(int index, VerificationResult result, Exception exception) {
+            this.index = index;
+            this.result = result;
+            this.exception = exception;
+        }
+
+    }
+
+    private class Verification implements Callable<Outcome> {
+
+        private final int index;
+
+        private Object input;
+
+        private Verification(int index, Object input) {
+            this.index = index;
+            this.input = input;
+        }
+
+        /**
+         * @return the input, or null if already taken; whoever takes it
+         * closes it
+         */
+        private synchronized Object takeInput() {
+            Object input = this.input;
+            // Do not hold on to the input after it has been verified
+            this.input = null;
+
+            return input;
+        }
+
+        public Outcome call() {
+            try {
+                return new Outcome(index, verify(takeInput()), null);
+            } catch (Exception e) {
+                return new Outcome(index, null, e);
+            }
+        }
+
+    }
+
+    /**
+     * A {@link Verification} as run by the pool; an input stream of a
+     * verification cancelled before it ran is closed, since no one else
+     * would
+     */
+    private class VerificationTask extends FutureTask<Outcome> {
+
+        private final Verification verification;
+
+        /** Where the task is put when done; may be null */
+        private final BlockingQueue<VerificationTask> completionQueue;
+
+        private VerificationTask(
+                Verification verification,
+                BlockingQueue<VerificationTask> completionQueue) {
+            super(verification);
+            this.verification = verification;
+            this.completionQueue = completionQueue;
+        }
+
+        protected void done() {
+            if (isCancelled()) {
+                Object input = verification.takeInput();
+                if (input instanceof InputStream) {
+                    try {
+                        ((InputStream) input).close();
+                    } catch (IOException e) {
+                        logger.warn("Closing input failed", e);
+                    }
+                }
+            }
+
+            if (completionQueue != null) {
+                completionQueue.add(this);
+            }
+        }
+
+    }
+
+}
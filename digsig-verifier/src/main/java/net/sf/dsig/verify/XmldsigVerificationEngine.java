@@ -0,0 +1,756 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xml.security.algorithms.SignatureAlgorithm;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.keys.content.X509Data;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.signature.XMLSignatureException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * A thread-safe counterpart of {@link XmldsigVerifier}. The engine is built
+ * once from a {@link VerificationPolicy} and holds no per-document state, so
+ * a single instance can be shared by all request threads; each call to
+ * {@link #verify(InputStream)} returns its own {@link VerificationResult}.
+ *
+ * <p>The CRL and OCSP helpers referenced by the policy are shared as well,
+ * and are expected to be thread-safe. They run concurrently with any other
+ * {@link RevocationChecker}, combined as set by the revocation policy.
+ */
+public class XmldsigVerificationEngine {
+
+    private static final Log logger = LogFactory.getLog(XmldsigVerificationEngine.class);
+
+    static {
+        org.apache.xml.security.Init.init();
+    }
+
+    private final DocumentBuilderPool documentBuilderPool;
+
+    private final Pattern subjectMatchingPattern;
+
+    private final String keyUsageRestrictions;
+
+    private final AsyncRevocationChecker revocationChecker;
+
+    private final boolean chainRevocationChecking;
+
+    private final TrustAnchorStore trustAnchorStore;
+
+    private final CertPathCache certPathCache;
+
+    private final CertificateCache certificateCache;
+
+    private final VerificationResultCache resultCache;
+
+    private final X509CRLHelper crlHelper;
+
+    private final OCSPHelper ocspHelper;
+
+    /**
+     * The settings that affect the outcome, apart from trust anchors and the
+     * default revocation locations; revocation sources by identity
+     */
+    private final String policyVersion;
+
+    public XmldsigVerificationEngine(VerificationPolicy policy) {
+        this.documentBuilderPool = policy.getDocumentBuilderPool() != null ?
+                policy.getDocumentBuilderPool() :
+                DocumentBuilderPool.getDefault();
+        this.subjectMatchingPattern = policy.getSubjectMatchingRegex() != null ?
+                Pattern.compile(policy.getSubjectMatchingRegex()) :
+                null;
+        this.keyUsageRestrictions = policy.getKeyUsageRestrictions();
+        // The CRL and OCSP checks run concurrently, layered behind the
+        // revocation checker of the policy, if any
+        List<RevocationChecker> checkers = new ArrayList<RevocationChecker>();
+        if (policy.getCrlHelper() != null) {
+            checkers.add(new CRLRevocationChecker(policy.getCrlHelper()));
+        }
+        if (policy.getOcspHelper() != null) {
+            checkers.add(new OCSPRevocationChecker(policy.getOcspHelper()));
+        }
+        if (!checkers.isEmpty() || policy.getRevocationChecker() != null) {
+            this.revocationChecker = new AsyncRevocationChecker(
+                    checkers.toArray(new RevocationChecker[checkers.size()]));
+            this.revocationChecker.setPrimaryChecker(policy.getRevocationChecker());
+            this.revocationChecker.setPolicy(policy.getRevocationPolicy());
+            this.revocationChecker.setChainTimeoutMillis(policy.getChainRevocationTimeoutMillis());
+            if (policy.getRevocationExecutor() != null) {
+                this.revocationChecker.setExecutorService(policy.getRevocationExecutor());
+            }
+        } else {
+            this.revocationChecker = null;
+        }
+        this.chainRevocationChecking = policy.isChainRevocationChecking();
+        if (policy.getTrustAnchorStore() != null) {
+            this.trustAnchorStore = policy.getTrustAnchorStore();
+        } else if (policy.getTrustAnchors() != null) {
+            this.trustAnchorStore = new TrustAnchorStore();
+            this.trustAnchorStore.setTrustAnchors(policy.getTrustAnchors());
+            // Loaded here, rather than by the first verification
+            this.trustAnchorStore.getSnapshot();
+        } else {
+            this.trustAnchorStore = null;
+        }
+        this.certPathCache = policy.getCertPathCache();
+        this.certificateCache = policy.getCertificateCache() != null ?
+                policy.getCertificateCache() :
+                new CertificateCache();
+        this.resultCache = policy.getResultCache();
+        this.crlHelper = policy.getCrlHelper();
+        this.ocspHelper = policy.getOcspHelper();
+        this.policyVersion =
+                policy.getSubjectMatchingRegex() + "|" +
+                policy.getKeyUsageRestrictions() + "|" +
+                policy.getRevocationPolicy() + "|" +
+                policy.isChainRevocationChecking() + "|" +
+                getInstanceId(crlHelper) + "|" +
+                getInstanceId(ocspHelper) + "|" +
+                getInstanceId(policy.getRevocationChecker());
+    }
+
+    /** A Map from revocation source to its id, unique while the source lives */
+    private static final Map<Object, Long> instanceIds = new WeakHashMap<Object, Long>();
+
+    private static long lastInstanceId = 0;
+
+    /**
+     * Identify a revocation source; engines sharing a result cache only
+     * reuse each other's outcomes if they ask the same sources
+     */
+    private static synchronized String getInstanceId(Object instance) {
+        if (instance == null) {
+            return "-";
+        }
+
+        Long id = instanceIds.get(instance);
+        if (id == null) {
+            id = new Long(++lastInstanceId);
+            instanceIds.put(instance, id);
+        }
+
+        return id.toString();
+    }
+
+    /**
+     * Parse and verify an enveloping signature
+     *
+     * @param is the serialized XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the document cannot be parsed, or
+     * an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verify(InputStream is)
+    throws VerificationException, NetworkAccessException {
+        if (resultCache != null) {
+            return verify(readFully(is));
+        }
+
+        return verify(parseSignature(is));
+    }
+
+    /**
+     * Parse and verify an enveloping signature given as Base64 text, such as
+     * the form field filled in by the dsig applet; the text is decoded while
+     * parsed, without intermediate copies
+     *
+     * @param base64 the Base64 encoded XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the text cannot be decoded or
+     * parsed, or an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verifyBase64(CharSequence base64)
+    throws VerificationException, NetworkAccessException {
+        return verify(new Base64InputStream(base64));
+    }
+
+    /**
+     * Like {@link #verifyBase64(CharSequence)}, reading the Base64 text from
+     * a {@link Reader}, such as the body of a request
+     *
+     * @param base64 the Base64 encoded XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the text cannot be read, decoded or
+     * parsed, or an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verifyBase64(Reader base64)
+    throws VerificationException, NetworkAccessException {
+        return verify(new Base64InputStream(base64));
+    }
+
+    /**
+     * Parse and verify an enveloping signature; with a result cache, the
+     * outcome of verifying the same bytes before is reused
+     *
+     * @param signedBytes the serialized XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the document cannot be parsed, or
+     * an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verify(byte[] signedBytes)
+    throws VerificationException, NetworkAccessException {
+        return verify(ByteBuffer.wrap(signedBytes));
+    }
+
+    /**
+     * Parse and verify an enveloping signature stored in a file; the file is
+     * memory-mapped, so that neither parsing nor the digest of the result
+     * cache copy it through the heap first
+     *
+     * @param file the serialized XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the file cannot be read or parsed,
+     * or an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     * @see #verify(FileChannel)
+     */
+    public VerificationResult verify(File file)
+    throws VerificationException, NetworkAccessException {
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(file);
+        } catch (IOException e) {
+            throw new VerificationException("I/O error while reading XMLDSig; file=" + file, e);
+        }
+
+        try {
+            return verify(fis.getChannel());
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                logger.warn("I/O error while closing XMLDSig; file=" + file, e);
+            }
+        }
+    }
+
+    /**
+     * Parse and verify an enveloping signature, memory-mapping the whole of
+     * the channel; the mapping is released once garbage collected
+     *
+     * @param channel the serialized XMLDSig document, of up to 2GB; it is
+     * left open
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the channel cannot be mapped or
+     * parsed, or an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verify(FileChannel channel)
+    throws VerificationException, NetworkAccessException {
+        MappedByteBuffer buffer;
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new VerificationException("XMLDSig too large to map; size=" + size);
+            }
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new VerificationException("I/O error while mapping XMLDSig", e);
+        }
+
+        return verify(buffer);
+    }
+
+    private VerificationResult verify(final ByteBuffer signedBytes)
+    throws VerificationException, NetworkAccessException {
+        if (resultCache == null) {
+            return verify(parseSignature(new ByteBufferInputStream(signedBytes.duplicate())));
+        }
+
+        // The digest comes first, so that a hit skips parsing altogether
+        final byte[] digest = getDigest(signedBytes.duplicate());
+        String version = getPolicyVersion();
+        long now = System.currentTimeMillis();
+
+        VerificationResultCache.Entry entry = resultCache.get(digest, version);
+        if (entry != null && now < entry.expiresAt) {
+            if (    entry.certificatePathValid &&
+                    now >= entry.certificateValidExpiresAt) {
+                // Only the certificate checks are due again
+                boolean certificateValid = isCertificateValid(entry.certificateChain);
+                entry = new VerificationResultCache.Entry(
+                        entry.certificateChain,
+                        entry.signatureValid,
+                        entry.certificatePathValid,
+                        certificateValid,
+                        now + resultCache.getRevocationTtlMillis(),
+                        entry.expiresAt);
+                resultCache.put(digest, version, entry);
+            }
+
+            // The document is only parsed if its objects are asked for
+            SignatureObjects objects = new SignatureObjects(new SignatureObjects.Source() {
+                public XMLSignature getSignature() {
+                    try {
+                        XMLSignature signature = parseSignature(
+                                new ByteBufferInputStream(signedBytes.duplicate()));
+                        // Mapped files may change under us
+                        if (!Arrays.equals(digest, getDigest(signedBytes.duplicate()))) {
+                            throw new IllegalStateException("Document changed since verified");
+                        }
+
+                        return signature;
+                    } catch (VerificationException e) {
+                        throw new IllegalStateException("Parsing verified document failed", e);
+                    }
+                }
+            });
+
+            return new VerificationResult(
+                    objects,
+                    entry.certificateChain.clone(),
+                    entry.signatureValid,
+                    entry.certificatePathValid,
+                    entry.certificateValid);
+        }
+
+        XMLSignature signature = parseSignature(
+                new ByteBufferInputStream(signedBytes.duplicate()));
+        VerificationResult result = verify(signature);
+        resultCache.put(digest, version, new VerificationResultCache.Entry(
+                result.getCertificateChain().clone(),
+                result.isSignatureValid(),
+                result.isCertificatePathValid(),
+                result.isCertificateValid(),
+                now + resultCache.getRevocationTtlMillis(),
+                getExpiry(result.getCertificateChain(), now, resultCache.getRevocationTtlMillis())));
+
+        return result;
+    }
+
+    /**
+     * Verify an enveloping signature
+     *
+     * @param d the XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verify(Document d)
+    throws VerificationException, NetworkAccessException {
+        return verify(newSignature(d));
+    }
+
+    private VerificationResult verify(XMLSignature signature)
+    throws VerificationException, NetworkAccessException {
+        X509Certificate[] certificateChain = getCertificateChain(signature);
+
+        boolean signatureValid = isSignatureValid(signature, certificateChain[0]);
+        boolean certificatePathValid =
+                signatureValid && isCertificatePathValid(certificateChain);
+        boolean certificateValid =
+                certificatePathValid && isCertificateValid(certificateChain);
+
+        return new VerificationResult(
+                signature,
+                certificateChain,
+                signatureValid,
+                certificatePathValid,
+                certificateValid);
+    }
+
+    /**
+     * Parse and verify an enveloping signature without building a DOM of its
+     * ds:Object content, which is canonicalized and digested while parsed;
+     * memory use thus does not depend on the size of the signed content.
+     * The result carries no ds:Object content; this mode only checks
+     * validity. Use {@link #verifyStreaming(InputStream, Map)} to get the
+     * signed content as well.
+     *
+     * <p>Only same-document references with a single exclusive
+     * canonicalization transform are supported, as produced by the dsig
+     * applet.
+     *
+     * @param is the serialized XMLDSig document
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the document cannot be parsed, uses
+     * unsupported references, or an error occurs while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verifyStreaming(InputStream is)
+    throws VerificationException, NetworkAccessException {
+        return verifyStreaming(is, null);
+    }
+
+    /**
+     * Like {@link #verifyStreaming(InputStream)}, copying the canonical form
+     * of referenced elements, exactly as digested, to the given streams as
+     * they are parsed. The copied content may only be trusted if the result
+     * is valid; the streams are written before the signature is checked, and
+     * are left open.
+     *
+     * @param is the serialized XMLDSig document
+     * @param contentStreams a Map from the Id of a referenced element (e.g.
+     * the ds:Object holding the signed data) to the {@link OutputStream} to
+     * copy it to; Ids the signature does not reference are not written
+     * @return the {@link VerificationResult}
+     * @throws VerificationException when the document cannot be parsed, uses
+     * unsupported references, a stream cannot be written, or an error occurs
+     * while verifying
+     * @throws NetworkAccessException when any network access issues occur
+     */
+    public VerificationResult verifyStreaming(InputStream is, Map<String, OutputStream> contentStreams)
+    throws VerificationException, NetworkAccessException {
+        StreamingSignatureReader reader =
+                new StreamingSignatureReader(documentBuilderPool, contentStreams);
+        reader.parse(is);
+
+        XMLSignature signature = reader.getSignature();
+        X509Certificate[] certificateChain = getCertificateChain(signature);
+
+        boolean signatureValid =
+                isSignatureValueValid(signature, certificateChain[0]) &&
+                reader.isReferencesValid();
+        boolean certificatePathValid =
+                signatureValid && isCertificatePathValid(certificateChain);
+        boolean certificateValid =
+                certificatePathValid && isCertificateValid(certificateChain);
+
+        return new VerificationResult(
+                signature,
+                certificateChain,
+                signatureValid,
+                certificatePathValid,
+                certificateValid);
+    }
+
+    private static byte[] readFully(InputStream is) throws VerificationException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new VerificationException("I/O error while reading XMLDSig", e);
+        }
+
+        return baos.toByteArray();
+    }
+
+    private static byte[] getDigest(ByteBuffer signedBytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(signedBytes);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("SHA-256 digest not found; should not happen");
+        }
+    }
+
+    /**
+     * The policy settings, the default revocation locations, which may be
+     * set on the helpers at any time, and the version of the current trust
+     * anchors; a reloaded store thus makes earlier outcomes unreachable
+     */
+    private String getPolicyVersion() {
+        StringBuffer sb = new StringBuffer(policyVersion);
+        if (crlHelper != null) {
+            sb.append('|').append(crlHelper.getDefaultCrlDistributionPoint());
+        }
+        if (ocspHelper != null) {
+            sb.append('|').append(ocspHelper.getDefaultOcspAccessLocation());
+        }
+        if (trustAnchorStore != null) {
+            sb.append('|').append(trustAnchorStore.getSnapshot().getVersion());
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Outcomes are not reused past the expiry of any certificate in the
+     * chain, which would change them. Outcomes for a chain that has expired
+     * already are kept for the TTL only, since a renewed certificate or
+     * other validity rules may change them as well
+     */
+    private static long getExpiry(X509Certificate[] certificateChain, long now, long ttlMillis) {
+        long expiry = Long.MAX_VALUE;
+        for (int i=0; i<certificateChain.length; i++) {
+            expiry = Math.min(expiry, certificateChain[i].getNotAfter().getTime());
+        }
+
+        return expiry > now ? expiry : now + ttlMillis;
+    }
+
+    XMLSignature parseSignature(InputStream is) throws VerificationException {
+        try {
+            return newSignature(documentBuilderPool.parse(is));
+        } catch (SAXException e) {
+            throw new VerificationException("Error while parsing XMLDSig", e);
+        } catch (IOException e) {
+            throw new VerificationException("I/O error while reading XMLDSig", e);
+        }
+    }
+
+    static XMLSignature newSignature(Document d) throws VerificationException {
+        try {
+            return new XMLSignature(d.getDocumentElement(), null);
+        } catch (XMLSecurityException e) {
+            throw new VerificationException("Error while reading XMLDSig", e);
+        }
+    }
+
+    X509Certificate[] getCertificateChain(XMLSignature signature)
+    throws VerificationException {
+        KeyInfo ki = signature.getKeyInfo();
+
+        // Only work with X509Data sections
+        if (ki == null || !ki.containsX509Data()) {
+            throw new UnsupportedOperationException("Signature contains no X509Data");
+        }
+
+        try {
+            // Build the certificate chain
+            X509Data x509Data = ki.itemX509Data(0);
+            X509Certificate[] certificateChain =
+                    new X509Certificate[x509Data.lengthCertificate()];
+
+            for (int i=0; i<x509Data.lengthCertificate(); i++) {
+                certificateChain[i] = certificateCache.getCertificate(
+                        x509Data.itemCertificate(i).getCertificateBytes());
+            }
+
+            return certificateChain;
+        } catch (XMLSecurityException e) {
+            throw new VerificationException("Error while reading X.509 data from XMLDSig", e);
+        } catch (CertificateException e) {
+            throw new VerificationException("Error while decoding X.509 certificate from XMLDSig", e);
+        }
+    }
+
+    boolean isSignatureValid(XMLSignature signature, X509Certificate certificate)
+    throws VerificationException {
+        try {
+            return signature.checkSignatureValue(certificate);
+        } catch (XMLSignatureException e) {
+            throw new VerificationException("XML signature algorithm failed");
+        }
+    }
+
+    /**
+     * Check the signature value over SignedInfo only; references are left to
+     * the caller
+     */
+    private boolean isSignatureValueValid(XMLSignature signature, X509Certificate certificate)
+    throws VerificationException {
+        try {
+            SignedInfo signedInfo = signature.getSignedInfo();
+            SignatureAlgorithm algorithm =
+                    new SignatureAlgorithm(signedInfo.getSignatureMethodElement(), null);
+            algorithm.initVerify(certificate.getPublicKey());
+            algorithm.update(signedInfo.getCanonicalizedOctetStream());
+
+            return algorithm.verify(signature.getSignatureValue());
+        } catch (XMLSecurityException e) {
+            throw new VerificationException("XML signature algorithm failed", e);
+        }
+    }
+
+    /**
+     * @param certificateChain the certificate chain; the first certificate is
+     * checked, and the rest help to identify its issuer. With chain revocation
+     * checking, the rest are checked for revocation too
+     */
+    boolean isCertificateValid(X509Certificate[] certificateChain)
+    throws VerificationException, NetworkAccessException {
+        if (!isCertificateAcceptable(certificateChain[0])) {
+            return false;
+        }
+
+        if (revocationChecker == null) {
+            return true;
+        }
+
+        boolean valid = chainRevocationChecking ?
+                revocationChecker.isChainValid(certificateChain) :
+                revocationChecker.isValid(certificateChain[0], certificateChain);
+        if (!valid) {
+            logger.warn("Revocation check failed");
+
+            // With chain checking the revoked certificate may be an 
+            // intermediate; drop every chain through any of them
+            if (certPathCache != null) {
+                int checked = chainRevocationChecking ? certificateChain.length : 1;
+                for (int i=0; i<checked; i++) {
+                    certPathCache.invalidate(certificateChain[i]);
+                }
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Like {@link #isCertificateValid(X509Certificate[])}, but without
+     * waiting for the CRL and OCSP checks; these run concurrently
+     *
+     * @param certificateChain the certificate chain; the first certificate is
+     * checked, and the rest help to identify its issuer
+     * @return a {@link Future} of Boolean.TRUE if the certificate is valid,
+     * Boolean.FALSE otherwise; use
+     * {@link AsyncRevocationChecker#await(Future, long)} to get the outcome
+     * with the exceptions of the synchronous check
+     */
+    Future<Boolean> isCertificateValidAsync(X509Certificate[] certificateChain) {
+        if (!isCertificateAcceptable(certificateChain[0])) {
+            return completed(Boolean.FALSE);
+        }
+
+        if (revocationChecker == null) {
+            return completed(Boolean.TRUE);
+        }
+
+        return chainRevocationChecking ?
+                revocationChecker.checkChain(certificateChain) :
+                revocationChecker.check(certificateChain[0], certificateChain);
+    }
+
+    private static Future<Boolean> completed(final Boolean value) {
+        FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return value;
+            }
+        });
+        future.run();
+
+        return future;
+    }
+
+    /**
+     * The local checks: validity period, subject and key usage
+     */
+    private boolean isCertificateAcceptable(X509Certificate certificate) {
+        String subjectName = certificate.getSubjectX500Principal().getName();
+
+        try {
+            certificate.checkValidity();
+        } catch (CertificateExpiredException ignored) {
+            return false;
+        } catch (CertificateNotYetValidException ignored) {
+            return false;
+        }
+
+        if (    subjectMatchingPattern != null &&
+                !subjectMatchingPattern.matcher(subjectName).matches()) {
+            return false;
+        }
+
+        if (    keyUsageRestrictions != null &&
+                !KeyUsageHelper.validateKeyUsage(certificate, keyUsageRestrictions)) {
+            return false;
+        }
+
+        return true;
+    }
+
+    boolean isCertificatePathValid(X509Certificate[] certificateChain)
+    throws VerificationException {
+        if (trustAnchorStore == null) {
+            throw new ConfigurationException("TrustAnchors must be set");
+        }
+
+        // One snapshot throughout, even if the store is reloaded meanwhile
+        TrustAnchorStore.Snapshot trustAnchors = trustAnchorStore.getSnapshot();
+
+        if (    certPathCache != null &&
+                certPathCache.isValidated(certificateChain, trustAnchors.getVersion())) {
+            return true;
+        }
+
+        try {
+            PKIXParameters parameters = trustAnchors.newPKIXParameters(certificateChain);
+            if (parameters == null) {
+                logger.info("Certificate path validation failed; no trust anchor for issuer=" +
+                        certificateChain[certificateChain.length - 1].getIssuerX500Principal());
+                return false;
+            }
+
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            CertPath certPath = cf.generateCertPath(Arrays.asList(certificateChain));
+
+            CertPathValidator cpv = CertPathValidator.getInstance("PKIX");
+            PKIXCertPathValidatorResult res = (PKIXCertPathValidatorResult)
+                    cpv.validate(certPath, parameters);
+
+            logger.debug("Certificate path validation succeeded; result=" + res.toString());
+
+            if (certPathCache != null) {
+                certPathCache.putValidated(certificateChain, trustAnchors.getVersion());
+            }
+
+            return true;
+        } catch (CertPathValidatorException e) {
+            logger.info("Certificate path validation failed", e);
+            return false;
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new ConfigurationException("PKIX algorithm not found; should not happen");
+        } catch (CertificateException e) {
+            throw new ConfigurationException("X.509 certificate factory not found; should not happen");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("PKIX algorithm not found; should not happen");
+        }
+    }
+
+}
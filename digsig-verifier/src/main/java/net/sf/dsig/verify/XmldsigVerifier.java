@@ -18,30 +18,14 @@ package net.sf.dsig.verify;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.CertificateNotYetValidException;
-import java.security.cert.PKIXCertPathValidatorResult;
-import java.security.cert.PKIXParameters;
+import java.io.Reader;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.apache.xml.security.exceptions.XMLSecurityException;
-import org.apache.xml.security.keys.KeyInfo;
-import org.apache.xml.security.keys.content.X509Data;
 import org.apache.xml.security.signature.ObjectContainer;
 import org.apache.xml.security.signature.XMLSignature;
 import org.apache.xml.security.signature.XMLSignatureException;
@@ -55,59 +39,77 @@ import org.xml.sax.SAXException;
  * is done through use of JRE's PKIX algorithm. CRL and OCSP checks are performed
  * by delegating to the corresponding helpers, if injected.
  * 
+ * <p>Instances keep the state of the last initialized signature and are
+ * therefore not thread-safe; use {@link XmldsigVerificationEngine} to share
+ * a single verifier across threads.
+ * 
  * @author <a href="mailto:mranest@iname.com">Anestis Georgiadis</a>
  */
 public class XmldsigVerifier {
 
-    private static final Log logger = LogFactory.getLog(XmldsigVerifier.class);
-    
     static {
         org.apache.xml.security.Init.init();
     }
     
-    private DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-
-    {
-        builderFactory.setNamespaceAware(true);
+    private VerificationPolicy policy = new VerificationPolicy();
+    
+    /** Built lazily from the policy; reset whenever the policy changes */
+    private XmldsigVerificationEngine engine = null;
+    
+    private XmldsigVerificationEngine getEngine() {
+        if (engine == null) {
+            engine = new XmldsigVerificationEngine(policy);
+        }
+        
+        return engine;
     }
-
+    
     /**
      * <p>A regular expression that is tested against the subject of the
      * certificate. When set only matching certificates are accepted
      * and displayed for selection.
      */
-    private String subjectMatchingRegex = null;
-    
     public void setSubjectMatchingRegex(String subjectRegex) {
-        this.subjectMatchingRegex = subjectRegex;
-    }
-    
-    private Pattern subjectMatchingPattern = null;
-    
-    private Pattern getSubjectMatchingPattern() {
-        if (subjectMatchingPattern == null && subjectMatchingRegex != null) {
-            subjectMatchingPattern = Pattern.compile(subjectMatchingRegex);
-        }
-        
-        return subjectMatchingPattern;
+        policy.setSubjectMatchingRegex(subjectRegex);
+        engine = null;
     }
     
     private XMLSignature signature = null;
     
+    private SignatureObjects objects = null;
+    
     private X509Certificate[] certificateChain;
     
     public void initEnvelopingSignature(InputStream is) 
     throws XMLSignatureException, XMLSecurityException, SAXException, IOException {
-        try {
-            initEnvelopingSignature(builderFactory.newDocumentBuilder().parse(is));
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("DocumentBuilder creation failed; should never happen");
-        }
+        DocumentBuilderPool pool = policy.getDocumentBuilderPool() != null ?
+                policy.getDocumentBuilderPool() :
+                DocumentBuilderPool.getDefault();
+        initEnvelopingSignature(pool.parse(is));
+    }
+    
+    /**
+     * Initialize from the Base64 encoded signature, such as the form field
+     * filled in by the dsig applet; the text is decoded while parsed
+     */
+    public void initEnvelopingSignatureBase64(CharSequence base64) 
+    throws XMLSignatureException, XMLSecurityException, SAXException, IOException {
+        initEnvelopingSignature(new Base64InputStream(base64));
+    }
+    
+    /**
+     * Like {@link #initEnvelopingSignatureBase64(CharSequence)}, reading the
+     * Base64 text from a {@link Reader}
+     */
+    public void initEnvelopingSignatureBase64(Reader base64) 
+    throws XMLSignatureException, XMLSecurityException, SAXException, IOException {
+        initEnvelopingSignature(new Base64InputStream(base64));
     }
     
     public void initEnvelopingSignature(Document d) 
     throws XMLSignatureException, XMLSecurityException {
         signature = new XMLSignature(d.getDocumentElement(), null);
+        objects = new SignatureObjects(signature);
         certificateChain = null;
     }
 
@@ -116,27 +118,15 @@ public class XmldsigVerifier {
             throw new UnsupportedOperationException("initXXX() must be called first");
         }
 
-        ObjectContainer[] objectContainers = 
-            new ObjectContainer[signature.getObjectLength()];
-        for (int i=0; i<signature.getObjectLength(); i++) {
-            objectContainers[i] = signature.getObjectItem(i);
-        }
-        
-        return objectContainers;
+        return objects.getObjectContainers().clone();
     }
     
     public Element getObjectElement(String id) throws VerificationException {
-        ObjectContainer[] objectContainers = getObjectContainers();
-        
-        for (int i=0; i<objectContainers.length; i++) {
-            ObjectContainer each = objectContainers[i];
-            String eachId = each.getElement().getAttribute("Id");
-            if (id.equals(eachId)) {
-                return each.getElement();
-            }
+        if (signature == null) {
+            throw new UnsupportedOperationException("initXXX() must be called first");
         }
-        
-        return null;
+
+        return objects.getObjectElement(id);
     }
     
     public X509Certificate[] getCertificateChain() throws VerificationException {
@@ -145,127 +135,102 @@ public class XmldsigVerifier {
         }
 
         if (certificateChain == null) {
-            KeyInfo ki = signature.getKeyInfo();
-    
-            // Only work with X509Data sections
-            if (!ki.containsX509Data()) {
-                throw new UnsupportedOperationException("Signature contains no X509Data");
-            }
-            
-            try {
-                // Build the certificate chain
-                X509Data x509Data = ki.itemX509Data(0);
-                certificateChain = new X509Certificate[x509Data.lengthCertificate()];
-                
-                for (int i=0; i<x509Data.lengthCertificate(); i++) {
-                    certificateChain[i] = x509Data.itemCertificate(i).getX509Certificate();
-                }
-            } catch (XMLSecurityException e) {
-                throw new VerificationException("Error while reading X.509 data from XMLDSig", e);
-            }
+            certificateChain = getEngine().getCertificateChain(signature);
         }
         
         return certificateChain;
     }
     
     public boolean verify() throws VerificationException {
-        try {
-            return signature.checkSignatureValue(getCertificateChain()[0]);
-        } catch (XMLSignatureException e) {
-            throw new VerificationException("XML signature algorithm failed");
-        }
+        return getEngine().isSignatureValid(signature, getCertificateChain()[0]);
     }
 
-    private X509CRLHelper crlHelper;
-    
     public void setCrlHelper(X509CRLHelper crlHelper) {
-        this.crlHelper = crlHelper;
+        policy.setCrlHelper(crlHelper);
+        engine = null;
     }
     
-    private OCSPHelper ocspHelper;
-    
     public void setOcspHelper(OCSPHelper ocspHelper) {
-        this.ocspHelper = ocspHelper;
+        policy.setOcspHelper(ocspHelper);
+        engine = null;
     }
 
-    private String keyUsageRestrictions;
-    
     public void setKeyUsageRestrictions(String keyUsageRestrictions) {
-        this.keyUsageRestrictions = keyUsageRestrictions;
+        policy.setKeyUsageRestrictions(keyUsageRestrictions);
+        engine = null;
     }
     
+    public void setRevocationChecker(RevocationChecker revocationChecker) {
+        policy.setRevocationChecker(revocationChecker);
+        engine = null;
+    }
+
+    /**
+     * @param revocationPolicy how the CRL and OCSP answers are combined; one
+     * of the policies of {@link AsyncRevocationChecker}
+     */
+    public void setRevocationPolicy(int revocationPolicy) {
+        policy.setRevocationPolicy(revocationPolicy);
+        engine = null;
+    }
+
+    public void setRevocationExecutor(ExecutorService revocationExecutor) {
+        policy.setRevocationExecutor(revocationExecutor);
+        engine = null;
+    }
+
+    /**
+     * @param chainRevocationChecking whether the intermediate certificates
+     * are checked for revocation as well
+     */
+    public void setChainRevocationChecking(boolean chainRevocationChecking) {
+        policy.setChainRevocationChecking(chainRevocationChecking);
+        engine = null;
+    }
+
+    public void setChainRevocationTimeoutMillis(long chainRevocationTimeoutMillis) {
+        policy.setChainRevocationTimeoutMillis(chainRevocationTimeoutMillis);
+        engine = null;
+    }
+
     public boolean isValid() throws VerificationException, NetworkAccessException {
-        X509Certificate certificate = getCertificateChain()[0];
-        String subjectName = certificate.getSubjectX500Principal().getName();
-        
-        try {
-            certificate.checkValidity();
-        } catch (CertificateExpiredException ignored) {
-            return false;
-        } catch (CertificateNotYetValidException ignored) {
-            return false;
-        }
-        
-        if (    getSubjectMatchingPattern() != null &&
-                !getSubjectMatchingPattern().matcher(subjectName).matches()) {
-            return false;
-        }
+        return getEngine().isCertificateValid(getCertificateChain());
+    }
 
-        if (    keyUsageRestrictions != null &&
-                !KeyUsageHelper.validateKeyUsage(certificate, keyUsageRestrictions)) {
-            return false;
-        }
-        
-        if (crlHelper != null && !crlHelper.isValid(certificate)) {
-            logger.warn("CRL validation failed");
-            
-            return false;
-        }
-        
-        if (ocspHelper != null && !ocspHelper.isValid(certificate)) {
-            logger.warn("OCSP validation failed");
-            
-            return false;
-        }
-        
-        return true;
+    /**
+     * Start the certificate checks of {@link #isValid()} without waiting for
+     * them; the CRL and OCSP checks run concurrently
+     *
+     * @return a {@link Future} of Boolean.TRUE if the certificate is valid,
+     * Boolean.FALSE otherwise
+     * @see AsyncRevocationChecker#await(Future)
+     */
+    public Future<Boolean> isValidAsync() throws VerificationException {
+        return getEngine().isCertificateValidAsync(getCertificateChain());
     }
     
-    private Set trustAnchors = null;
+    public void setTrustAnchors(Set<TrustAnchor> trustAnchors) {
+        policy.setTrustAnchors(trustAnchors);
+        engine = null;
+    }
     
-    public void setTrustAnchors(Set trustAnchors) {
-        this.trustAnchors = trustAnchors;
+    public void setTrustAnchorStore(TrustAnchorStore trustAnchorStore) {
+        policy.setTrustAnchorStore(trustAnchorStore);
+        engine = null;
     }
     
-    public boolean isCertificatePathValid() throws VerificationException {
-        if (trustAnchors == null) {
-            throw new ConfigurationException("TrustAnchors must be set");
-        }
-        
-        try {
-            PKIXParameters parameters = new PKIXParameters(trustAnchors);
-            parameters.setRevocationEnabled(false);
+    public void setCertPathCache(CertPathCache certPathCache) {
+        policy.setCertPathCache(certPathCache);
+        engine = null;
+    }
     
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            CertPath certPath = cf.generateCertPath(Arrays.asList(getCertificateChain()));
-            
-            CertPathValidator cpv = CertPathValidator.getInstance("PKIX");
-            PKIXCertPathValidatorResult res = (PKIXCertPathValidatorResult)
-                    cpv.validate(certPath, parameters);
-            
-            logger.debug("Certificate path validation succeeded; result=" + res.toString());
-            
-            return true;
-        } catch (CertPathValidatorException e) {
-            logger.info("Certificate path validation failed", e);
-            return false;
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new ConfigurationException("PKIX algorithm not found; should not happen");
-        } catch (CertificateException e) {
-            throw new ConfigurationException("X.509 certificate factory not found; should not happen");
-        } catch (NoSuchAlgorithmException e) {
-            throw new ConfigurationException("PKIX algorithm not found; should not happen");
-        }
+    public void setDocumentBuilderPool(DocumentBuilderPool documentBuilderPool) {
+        policy.setDocumentBuilderPool(documentBuilderPool);
+        engine = null;
+    }
+    
+    public boolean isCertificatePathValid() throws VerificationException {
+        return getEngine().isCertificatePathValid(getCertificateChain());
     }
     
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AsyncRevocationCheckerTest extends TestCase {
+
+    /** Answers after a delay, or fails when the answer is null */
+    private static class StubCrlHelper extends X509CRLHelper {
+
+        private final long delayMillis;
+
+        private final Boolean answer;
+
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private StubCrlHelper(long delayMillis, Boolean answer) {
+            this.delayMillis = delayMillis;
+            this.answer = answer;
+        }
+
+        public boolean isValid(X509Certificate certificate)
+        throws NetworkAccessException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new NetworkAccessException("Interrupted", e);
+            }
+            completed.countDown();
+            if (answer == null) {
+                throw new NetworkAccessException("CRL download failed", null);
+            }
+
+            return answer.booleanValue();
+        }
+
+    }
+
+    private static class StubOcspHelper extends OCSPHelper {
+
+        private final long delayMillis;
+
+        private final Boolean answer;
+
+        private StubOcspHelper(long delayMillis, Boolean answer) {
+            this.delayMillis = delayMillis;
+            this.answer = answer;
+        }
+
+        public int getStatus(X509Certificate certificate, X509Certificate[] chain)
+        throws NetworkAccessException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new NetworkAccessException("Interrupted", e);
+            }
+            if (answer == null) {
+                throw new NetworkAccessException("OCSP request failed", null);
+            }
+
+            return answer.booleanValue() ? RevocationChecker.GOOD : RevocationChecker.REVOKED;
+        }
+
+    }
+
+    /** Answers after a delay, recording the serials checked */
+    private static class SlowRevocationChecker implements RevocationChecker {
+
+        private final long delayMillis;
+
+        private final Set revokedSerials = Collections.synchronizedSet(new HashSet());
+
+        private final List checkedSerials = Collections.synchronizedList(new ArrayList());
+
+        private SlowRevocationChecker(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        public int check(X509Certificate certificate, X509Certificate[] chain)
+        throws NetworkAccessException {
+            checkedSerials.add(certificate.getSerialNumber());
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new NetworkAccessException("Interrupted", e);
+            }
+
+            return revokedSerials.contains(certificate.getSerialNumber()) ? REVOKED : GOOD;
+        }
+
+    }
+
+    /** Answers at once, or fails when the answer is negative */
+    private static class FixedRevocationChecker implements RevocationChecker {
+
+        private final int status;
+
+        private FixedRevocationChecker(int status) {
+            this.status = status;
+        }
+
+        public int check(X509Certificate certificate, X509Certificate[] chain)
+        throws NetworkAccessException {
+            if (status < 0) {
+                throw new NetworkAccessException("Revocation list unavailable", null);
+            }
+
+            return status;
+        }
+
+    }
+
+    private X509Certificate[] getChain(long leafSerial) throws Exception {
+        return new X509Certificate[] {
+                OCSPHelperTest.generateCertificate(BigInteger.valueOf(leafSerial), null),
+                OCSPHelperTest.getCertificate("/ca.cer"),
+                OCSPHelperTest.getCertificate("/root.cer") };
+    }
+
+    public void testChain() throws Exception {
+        final X509Certificate[] chain = getChain(501);
+        final X509Certificate[] otherChain = getChain(502);
+        X509Certificate intermediate = chain[1];
+
+        SlowRevocationChecker source = new SlowRevocationChecker(500);
+        final AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                new RevocationChecker[] { source });
+        // Two signatures by different signers under the same CA
+        final boolean[] otherValid = new boolean[1];
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    otherValid[0] = checker.isChainValid(otherChain);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        other.start();
+        assertTrue(checker.isChainValid(chain));
+        other.join();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(otherValid[0]);
+
+        // All lookups ran at once, the intermediate was checked once,
+        // and the self-signed root not at all
+        assertTrue("Took " + elapsed + "ms", elapsed < 900);
+        assertEquals(3, source.checkedSerials.size());
+        assertEquals(1, Collections.frequency(
+                source.checkedSerials, intermediate.getSerialNumber()));
+
+        // The intermediate outcome is reused by later chains
+        assertTrue(checker.isChainValid(getChain(503)));
+        assertEquals(4, source.checkedSerials.size());
+    }
+
+    public void testChainRevokedIntermediate() throws Exception {
+        X509Certificate[] chain = getChain(511);
+
+        SlowRevocationChecker source = new SlowRevocationChecker(100);
+        source.revokedSerials.add(chain[1].getSerialNumber());
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                new RevocationChecker[] { source });
+        assertFalse(checker.isChainValid(chain));
+        // The leaf alone is fine
+        assertTrue(checker.isValid(chain[0], chain));
+    }
+
+    public void testChainTimeout() throws Exception {
+        SlowRevocationChecker source = new SlowRevocationChecker(5000);
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                new RevocationChecker[] { source });
+        checker.setChainTimeoutMillis(200);
+        long start = System.currentTimeMillis();
+        try {
+            checker.isChainValid(getChain(521));
+            fail("Chain timeout ignored");
+        } catch (NetworkAccessException expected) { }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    private boolean check(
+            AsyncRevocationChecker checker, int policy, long maxMillis)
+    throws Exception {
+        checker.setPolicy(policy);
+        long start = System.currentTimeMillis();
+        try {
+            return checker.isValid(X509CRLHelperTest.getSampleCertificate(), null);
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Took " + elapsed + "ms", elapsed < maxMillis);
+        }
+    }
+
+    public void testChecksRunConcurrently() throws Exception {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                new StubCrlHelper(500, Boolean.TRUE),
+                new StubOcspHelper(500, Boolean.TRUE));
+        // Sequential checks would take 1000ms
+        assertTrue(check(checker, AsyncRevocationChecker.ALL_MUST_PASS, 900));
+    }
+
+    public void testAllMustPass() throws Exception {
+        StubCrlHelper slowCrlHelper = new StubCrlHelper(1000, Boolean.TRUE);
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                slowCrlHelper,
+                new StubOcspHelper(100, Boolean.FALSE));
+        // A negative answer settles the check without waiting for the CRL
+        assertFalse(check(checker, AsyncRevocationChecker.ALL_MUST_PASS, 800));
+        // ... and the CRL check is left to complete, uninterrupted
+        assertTrue(slowCrlHelper.completed.await(2, TimeUnit.SECONDS));
+        assertEquals(1, slowCrlHelper.interrupted.getCount());
+
+        checker = new AsyncRevocationChecker(
+                new StubCrlHelper(5000, Boolean.TRUE),
+                new StubOcspHelper(100, null));
+        try {
+            check(checker, AsyncRevocationChecker.ALL_MUST_PASS, 2000);
+            fail("OCSP failure ignored");
+        } catch (NetworkAccessException expected) { }
+    }
+
+    public void testFirstDefinitiveAnswer() throws Exception {
+        StubCrlHelper slowCrlHelper = new StubCrlHelper(1000, Boolean.FALSE);
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(
+                slowCrlHelper,
+                new StubOcspHelper(100, Boolean.TRUE));
+        assertTrue(check(checker, AsyncRevocationChecker.FIRST_DEFINITIVE_ANSWER, 800));
+        assertTrue(slowCrlHelper.completed.await(2, TimeUnit.SECONDS));
+        assertEquals(1, slowCrlHelper.interrupted.getCount());
+
+        // A failure defers to the other source
+        checker = new AsyncRevocationChecker(
+                new StubCrlHelper(300, Boolean.FALSE),
+                new StubOcspHelper(50, null));
+        assertFalse(check(checker, AsyncRevocationChecker.FIRST_DEFINITIVE_ANSWER, 2000));
+
+        // ... unless all sources fail
+        checker = new AsyncRevocationChecker(
+                new StubCrlHelper(300, null),
+                new StubOcspHelper(50, null));
+        try {
+            check(checker, AsyncRevocationChecker.FIRST_DEFINITIVE_ANSWER, 2000);
+            fail("All sources failed, yet the check succeeded");
+        } catch (NetworkAccessException expected) { }
+    }
+
+    public void testCancel() throws Exception {
+        StubCrlHelper crlHelper = new StubCrlHelper(500, Boolean.TRUE);
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(crlHelper, null);
+        Future<Boolean> future = checker.check(X509CRLHelperTest.getSampleCertificate(), null);
+        Thread.sleep(100);
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        // The source check may be shared work; it is never interrupted
+        assertTrue(crlHelper.completed.await(2, TimeUnit.SECONDS));
+        assertEquals(1, crlHelper.interrupted.getCount());
+    }
+
+    public void testPrimaryChecker() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+
+        // A definitive answer settles the check; the sources are not asked
+        StubCrlHelper crlHelper = new StubCrlHelper(100, Boolean.TRUE);
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(crlHelper, null);
+        checker.setPrimaryChecker(new FixedRevocationChecker(RevocationChecker.REVOKED));
+        assertFalse(checker.isValid(certificate, null));
+        assertFalse(crlHelper.completed.await(500, TimeUnit.MILLISECONDS));
+
+        // ... even against the policy
+        checker = new AsyncRevocationChecker(
+                new StubCrlHelper(100, Boolean.FALSE),
+                new StubOcspHelper(100, Boolean.FALSE));
+        checker.setPrimaryChecker(new FixedRevocationChecker(RevocationChecker.GOOD));
+        assertTrue(checker.isValid(certificate, null));
+
+        // An unknown status or a network failure defers to the sources
+        crlHelper = new StubCrlHelper(100, Boolean.FALSE);
+        checker = new AsyncRevocationChecker(crlHelper, null);
+        checker.setPrimaryChecker(new FixedRevocationChecker(RevocationChecker.UNKNOWN));
+        assertFalse(checker.isValid(certificate, null));
+        assertEquals(0, crlHelper.completed.getCount());
+
+        checker = new AsyncRevocationChecker(new StubCrlHelper(100, Boolean.TRUE), null);
+        checker.setPrimaryChecker(new FixedRevocationChecker(-1));
+        assertTrue(checker.isValid(certificate, null));
+
+        checker.setDeferOnNetworkError(false);
+        try {
+            checker.isValid(certificate, null);
+            fail("Primary checker failure ignored");
+        } catch (NetworkAccessException expected) { }
+
+        // With no sources to defer to, its failure is reported
+        checker = new AsyncRevocationChecker(null, null);
+        checker.setPrimaryChecker(new FixedRevocationChecker(-1));
+        try {
+            checker.isValid(certificate, null);
+            fail("Primary checker failure ignored");
+        } catch (NetworkAccessException expected) { }
+
+        checker.setPrimaryChecker(new FixedRevocationChecker(RevocationChecker.UNKNOWN));
+        assertFalse(checker.isValid(certificate, null));
+    }
+
+    public void testNoSources() throws Exception {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(null, null);
+        assertTrue(AsyncRevocationChecker.await(
+                checker.check(X509CRLHelperTest.getSampleCertificate(), null)));
+    }
+
+}
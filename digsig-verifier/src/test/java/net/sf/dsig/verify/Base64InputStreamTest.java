@@ -0,0 +1,83 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.xml.security.utils.Base64;
+
+public class Base64InputStreamTest extends TestCase {
+
+    private static byte[] readAll(InputStream is, int chunkSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+
+        return baos.toByteArray();
+    }
+
+    public void testDecode() throws Exception {
+        Random random = new Random(42);
+        for (int length=0; length<10000; length+=997) {
+            byte[] expected = new byte[length];
+            random.nextBytes(expected);
+            // Line breaks included, as in the applet output
+            String encoded = Base64.encode(expected);
+
+            assertTrue(Arrays.equals(expected, readAll(new Base64InputStream(encoded), 4096)));
+            assertTrue(Arrays.equals(expected, readAll(new Base64InputStream(new StringReader(encoded)), 7)));
+        }
+    }
+
+    public void testSingleBytes() throws Exception {
+        Base64InputStream is = new Base64InputStream("AQID\r\nBA==");
+        assertEquals(1, is.read());
+        assertEquals(2, is.read());
+        assertEquals(3, is.read());
+        assertEquals(4, is.read());
+        assertEquals(-1, is.read());
+        assertEquals(-1, is.read());
+    }
+
+    public void testUnpadded() throws Exception {
+        assertTrue(Arrays.equals(
+                new byte[] { 1, 2, 3, 4, 5 },
+                readAll(new Base64InputStream("AQIDBAU"), 16)));
+    }
+
+    public void testInvalid() throws Exception {
+        try {
+            readAll(new Base64InputStream("AQ*D"), 16);
+            fail("IOException not raised");
+        } catch (IOException ignored) { }
+
+        try {
+            readAll(new Base64InputStream("AQIDB"), 16);
+            fail("IOException not raised");
+        } catch (IOException ignored) { }
+    }
+
+}
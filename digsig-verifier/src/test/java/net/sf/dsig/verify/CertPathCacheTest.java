@@ -0,0 +1,143 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+public class CertPathCacheTest extends TestCase {
+
+    private X509Certificate intermediate;
+
+    protected void setUp() throws Exception {
+        intermediate = OCSPHelperTest.generateCertificate(BigInteger.valueOf(600), null);
+    }
+
+    private X509Certificate[] getChain(long leafSerial) throws Exception {
+        return new X509Certificate[] {
+                OCSPHelperTest.generateCertificate(
+                        BigInteger.valueOf(leafSerial), null, intermediate),
+                intermediate };
+    }
+
+    public void testCache() throws Exception {
+        X509Certificate[] chain = getChain(601);
+        X509Certificate[] otherChain = getChain(602);
+
+        CertPathCache cache = new CertPathCache();
+        assertFalse(cache.isValidated(chain, 1));
+
+        cache.putValidated(chain, 1);
+        assertTrue(cache.isValidated(chain, 1));
+        // Equal chains match, whatever the instances
+        X509Certificate copy = (X509Certificate)
+                CertificateFactory.getInstance("X.509").generateCertificate(
+                        new ByteArrayInputStream(intermediate.getEncoded()));
+        assertTrue(cache.isValidated(new X509Certificate[] { chain[0], copy }, 1));
+        // Other trust anchors, other chains, and partial chains do not
+        assertFalse(cache.isValidated(chain, 2));
+        assertFalse(cache.isValidated(otherChain, 1));
+        assertFalse(cache.isValidated(new X509Certificate[] { chain[0] }, 1));
+
+        // Revoking the shared intermediate drops both chains
+        cache.putValidated(otherChain, 1);
+        cache.invalidate(intermediate);
+        assertFalse(cache.isValidated(chain, 1));
+        assertFalse(cache.isValidated(otherChain, 1));
+
+        cache.putValidated(chain, 1);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testExpiry() throws Exception {
+        // Sample certificates have long expired
+        X509Certificate[] chain = new X509Certificate[] {
+                X509CRLHelperTest.getSampleCertificate() };
+
+        CertPathCache cache = new CertPathCache();
+        cache.putValidated(chain, 1);
+        assertFalse(cache.isValidated(chain, 1));
+        assertEquals(0, cache.size());
+    }
+
+    public void testEviction() throws Exception {
+        CertPathCache cache = new CertPathCache();
+        cache.setCacheSize(1);
+
+        X509Certificate[] chain = getChain(611);
+        cache.putValidated(chain, 1);
+        cache.putValidated(getChain(612), 1);
+        assertEquals(1, cache.size());
+        assertFalse(cache.isValidated(chain, 1));
+    }
+
+    public void testEngine() throws Exception {
+        X509Certificate[] chain = getChain(621);
+
+        CertPathCache cache = new CertPathCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setCertPathCache(cache);
+        policy.setRevocationChecker(new RevocationChecker() {
+            public int check(X509Certificate certificate, X509Certificate[] chain) {
+                return REVOKED;
+            }
+        });
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        // The chain does not lead to the trust anchor; a cached entry skips
+        // PKIX validation altogether
+        assertFalse(engine.isCertificatePathValid(chain));
+        cache.putValidated(chain, TrustAnchorStore.getVersion(
+                policy.getTrustAnchors()));
+        assertTrue(engine.isCertificatePathValid(chain));
+
+        // A failed revocation check drops the entry
+        assertFalse(engine.isCertificateValid(chain));
+        assertFalse(engine.isCertificatePathValid(chain));
+    }
+
+    public void testEngineChainRevocation() throws Exception {
+        X509Certificate[] chain = getChain(631);
+        X509Certificate[] otherChain = getChain(632);
+
+        CertPathCache cache = new CertPathCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setCertPathCache(cache);
+        policy.setChainRevocationChecking(true);
+        policy.setRevocationChecker(new RevocationChecker() {
+            public int check(X509Certificate certificate, X509Certificate[] chain) {
+                return certificate.equals(intermediate) ? REVOKED : GOOD;
+            }
+        });
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        long version = TrustAnchorStore.getVersion(policy.getTrustAnchors());
+        cache.putValidated(chain, version);
+        cache.putValidated(otherChain, version);
+
+        // The revoked intermediate drops every chain through it
+        assertFalse(engine.isCertificateValid(chain));
+        assertFalse(cache.isValidated(chain, version));
+        assertFalse(cache.isValidated(otherChain, version));
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+public class CertificateCacheTest extends TestCase {
+
+    public void testIntern() throws Exception {
+        byte[] encoded = OCSPHelperTest.getCertificate("/ca.cer").getEncoded();
+        byte[] otherEncoded = OCSPHelperTest.getCertificate("/root.cer").getEncoded();
+
+        CertificateCache cache = new CertificateCache();
+        X509Certificate certificate = cache.getCertificate(encoded);
+        assertSame(certificate, cache.getCertificate(encoded.clone()));
+        assertNotSame(certificate, cache.getCertificate(otherEncoded));
+        assertEquals(2, cache.size());
+
+        CertificateCache smallCache = new CertificateCache();
+        smallCache.setCacheSize(1);
+        smallCache.getCertificate(encoded);
+        smallCache.getCertificate(otherEncoded);
+        assertEquals(1, smallCache.size());
+
+        try {
+            cache.getCertificate(new byte[] { 0x30, 0x03, 0x02, 0x01, 0x01 });
+            fail("Malformed certificate decoded");
+        } catch (CertificateException expected) { }
+    }
+
+    public void testEngine() throws Exception {
+        CertificateCache cache = new CertificateCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setCertificateCache(cache);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        X509Certificate[] chain = engine.verify(
+                getClass().getResourceAsStream("/sample-xmldsig.xml")).getCertificateChain();
+        X509Certificate[] otherChain = engine.verify(
+                getClass().getResourceAsStream("/sample-xmldsig.xml")).getCertificateChain();
+
+        assertEquals(3, cache.size());
+        for (int i=0; i<chain.length; i++) {
+            assertSame(chain[i], otherChain[i]);
+        }
+    }
+
+}
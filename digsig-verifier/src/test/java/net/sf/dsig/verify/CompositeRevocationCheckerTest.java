@@ -0,0 +1,186 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class CompositeRevocationCheckerTest extends TestCase {
+
+    /** Answers with a fixed status, or fails when given an exception */
+    private static class FixedRevocationChecker implements RevocationChecker {
+
+        private final int status;
+
+        private final Exception failure;
+
+        private int count = 0;
+
+        private FixedRevocationChecker(int status) {
+            this.status = status;
+            this.failure = null;
+        }
+
+        private FixedRevocationChecker(Exception failure) {
+            this.status = UNKNOWN;
+            this.failure = failure;
+        }
+
+        public synchronized int check(X509Certificate certificate, X509Certificate[] chain)
+        throws NetworkAccessException, VerificationException {
+            count++;
+            if (failure instanceof NetworkAccessException) {
+                throw (NetworkAccessException) failure;
+            } else if (failure instanceof VerificationException) {
+                throw (VerificationException) failure;
+            }
+
+            return status;
+        }
+
+    }
+
+    public void testOrderedFallback() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+
+        FixedRevocationChecker unknown = new FixedRevocationChecker(RevocationChecker.UNKNOWN);
+        FixedRevocationChecker revoked = new FixedRevocationChecker(RevocationChecker.REVOKED);
+        FixedRevocationChecker good = new FixedRevocationChecker(RevocationChecker.GOOD);
+        CompositeRevocationChecker checker = new CompositeRevocationChecker(
+                new RevocationChecker[] { unknown, revoked, good });
+
+        // The first definitive answer wins; later checkers are not asked
+        assertEquals(RevocationChecker.REVOKED, checker.check(certificate, null));
+        assertEquals(1, unknown.count);
+        assertEquals(1, revoked.count);
+        assertEquals(0, good.count);
+
+        assertEquals(RevocationChecker.UNKNOWN, new CompositeRevocationChecker(
+                new RevocationChecker[] { unknown }).check(certificate, null));
+    }
+
+    public void testFailures() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+
+        FixedRevocationChecker unreachable = new FixedRevocationChecker(
+                new NetworkAccessException("Unreachable", null));
+        FixedRevocationChecker broken = new FixedRevocationChecker(
+                new VerificationException("Broken", null));
+        FixedRevocationChecker good = new FixedRevocationChecker(RevocationChecker.GOOD);
+
+        // Network failures defer...
+        CompositeRevocationChecker checker = new CompositeRevocationChecker(
+                new RevocationChecker[] { unreachable, good });
+        assertEquals(RevocationChecker.GOOD, checker.check(certificate, null));
+
+        // ... unless nobody else answers
+        try {
+            new CompositeRevocationChecker(new RevocationChecker[] { unreachable })
+                    .check(certificate, null);
+            fail("Network failure ignored");
+        } catch (NetworkAccessException expected) { }
+
+        // ... or they are set to fail fast
+        checker.setDeferOnNetworkError(false);
+        try {
+            checker.check(certificate, null);
+            fail("Network failure ignored");
+        } catch (NetworkAccessException expected) { }
+
+        // Other failures always fail fast
+        try {
+            new CompositeRevocationChecker(new RevocationChecker[] { broken, good })
+                    .check(certificate, null);
+            fail("Verification failure ignored");
+        } catch (VerificationException expected) { }
+        assertEquals(1, good.count);
+    }
+
+    public void testCaching() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+        X509Certificate otherCertificate = OCSPHelperTest.generateCertificate(
+                BigInteger.valueOf(401), null);
+
+        FixedRevocationChecker good = new FixedRevocationChecker(RevocationChecker.GOOD);
+        CachingRevocationChecker checker = new CachingRevocationChecker(good);
+        checker.setCacheSize(1);
+
+        assertEquals(RevocationChecker.GOOD, checker.check(certificate, null));
+        assertEquals(RevocationChecker.GOOD, checker.check(certificate, null));
+        assertEquals(1, good.count);
+
+        // Evicts the first certificate
+        checker.check(otherCertificate, null);
+        checker.check(certificate, null);
+        assertEquals(3, good.count);
+
+        checker.clear();
+        checker.check(certificate, null);
+        assertEquals(4, good.count);
+
+        // Deferrals are not cached
+        FixedRevocationChecker unknown = new FixedRevocationChecker(RevocationChecker.UNKNOWN);
+        checker = new CachingRevocationChecker(unknown);
+        checker.check(certificate, null);
+        checker.check(certificate, null);
+        assertEquals(2, unknown.count);
+    }
+
+    public void testCacheOcspCrlLayers() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+        final byte[] crlBytes = X509CRLHelperTest.generateCrl(
+                new BigInteger[] { certificate.getSerialNumber() },
+                new Date(System.currentTimeMillis() + 3600*1000L));
+        final OCSPHelperTest.Responder responder = new OCSPHelperTest.Responder(3600*1000L);
+        responder.forget(certificate.getSerialNumber());
+
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body)
+            throws Exception {
+                if (path.equals("/test.crl")) {
+                    return new LocalHttpServer.Response(200, crlBytes);
+                }
+                return responder.handle(method, path, headers, body);
+            }
+        });
+        try {
+            X509CRLHelper crlHelper = new X509CRLHelper();
+            crlHelper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+
+            RevocationChecker checker = new CachingRevocationChecker(
+                    new CompositeRevocationChecker(new RevocationChecker[] {
+                            new OCSPRevocationChecker(OCSPHelperTest.getLocalOcspHelper(server)),
+                            new CRLRevocationChecker(crlHelper) }));
+
+            // OCSP does not know the certificate; the CRL does
+            assertEquals(RevocationChecker.REVOKED, checker.check(certificate, null));
+            assertEquals(2, server.getRequestCount());
+
+            // Answered from memory, without hitting either source
+            assertEquals(RevocationChecker.REVOKED, checker.check(certificate, null));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+public class DocumentBuilderPoolTest extends TestCase {
+
+    public void testReused() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool();
+
+        DocumentBuilder builder = pool.borrow();
+        assertTrue(builder.isNamespaceAware());
+        pool.release(builder);
+        assertEquals(1, pool.getIdleCount());
+        assertSame(builder, pool.borrow());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    public void testBounded() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool();
+        pool.setMaxIdle(1);
+
+        DocumentBuilder first = pool.borrow();
+        DocumentBuilder second = pool.borrow();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testParse() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool();
+
+        Document d = pool.parse(getClass().getResourceAsStream("/sample-xmldsig.xml"));
+        assertEquals("Signature", d.getDocumentElement().getLocalName());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testDoctypeRefused() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool();
+
+        String xml =
+                "<?xml version=\"1.0\"?>" +
+                "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" +
+                "<foo>&xxe;</foo>";
+        try {
+            pool.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            fail("DOCTYPE declaration accepted");
+        } catch (SAXException expected) {
+        }
+
+        // The builder is still returned to the pool
+        assertEquals(1, pool.getIdleCount());
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class ExclusiveCanonicalizerTest extends TestCase {
+
+    static {
+        org.apache.xml.security.Init.init();
+    }
+
+    private static final String XML =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
+        "<root xmlns=\"urn:default\" xmlns:a=\"urn:a\" xmlns:unused=\"urn:unused\">" +
+        "<a:item b=\"2\" a:z=\"1\" xml:lang=\"en\" Id=\"target\" c=\"&quot;&#9;&#10;&#13;&lt;&amp;&gt;\">\r\n" +
+        "  text &amp; &lt;escaped&gt; &#13; \u00e9\u20ac" +
+        "<!-- dropped -->" +
+        "<?pi  some data?>" +
+        "<child xmlns=\"\" attr=\"v\"><a:leaf xmlns:a=\"urn:other\"/><![CDATA[<cdata>]]></child>" +
+        "<child><nested xmlns=\"urn:default\"/></child>" +
+        "</a:item>" +
+        "</root>";
+
+    private static byte[] canonicalizeStreaming(String xml, final String id) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ExclusiveCanonicalizer canonicalizer = new ExclusiveCanonicalizer(baos);
+
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.newSAXParser().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new DefaultHandler() {
+            private int depth = 0;
+
+            public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+                if (depth > 0 || id.equals(attributes.getValue("Id"))) {
+                    depth++;
+                    try {
+                        canonicalizer.startElement(uri, qName, attributes);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+
+            public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+                if (depth > 0) {
+                    depth--;
+                    try {
+                        canonicalizer.endElement(qName);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+
+            public void characters(char[] ch, int start, int length)
+            throws SAXException {
+                if (depth > 0) {
+                    try {
+                        canonicalizer.characters(ch, start, length);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+
+            public void processingInstruction(String target, String data)
+            throws SAXException {
+                if (depth > 0) {
+                    try {
+                        canonicalizer.processingInstruction(target, data);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            }
+        });
+        canonicalizer.flush();
+
+        return baos.toByteArray();
+    }
+
+    private static byte[] canonicalizeDom(String xml, String id) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document d = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+
+        Element target = findById(d.getDocumentElement(), id);
+        return Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS)
+                .canonicalizeSubtree(target);
+    }
+
+    private static Element findById(Element element, String id) {
+        if (id.equals(element.getAttribute("Id"))) {
+            return element;
+        }
+
+        for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                Element found = findById((Element) n, id);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public void testMatchesDom() throws Exception {
+        byte[] expected = canonicalizeDom(XML, "target");
+        byte[] actual = canonicalizeStreaming(XML, "target");
+
+        assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+    }
+
+    public void testMatchesDomOnSample() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        InputStream is = getClass().getResourceAsStream("/sample-xmldsig.xml");
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        is.close();
+        String xml = new String(baos.toByteArray(), "UTF-8");
+
+        assertEquals(
+                new String(canonicalizeDom(xml, "formData"), "UTF-8"),
+                new String(canonicalizeStreaming(xml, "formData"), "UTF-8"));
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.0 server on the loopback interface, so that the
+ * revocation helpers can be tested without access to a real CA
+ */
+public class LocalHttpServer implements Runnable {
+
+    public interface Handler {
+
+        /**
+         * @param method the request method
+         * @param path the request path, including any query string
+         * @param headers request headers, keyed by lower-case name
+         * @param body the request body; empty if none
+         * @return the response
+         */
+        Response handle(String method, String path, Map headers, byte[] body)
+        throws Exception;
+
+    }
+
+    public static class Response {
+
+        private final int status;
+
+        private final byte[] body;
+
+        private final Map headers = new HashMap();
+
+        public Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body != null ? body : new byte[0];
+        }
+
+        public Response setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+    }
+
+    private final Handler handler;
+
+    private final ServerSocket serverSocket;
+
+    private final Thread acceptor;
+
+    private int requestCount = 0;
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        acceptor = new Thread(this, "LocalHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getUri(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+
+        // The listening socket may only be released once accept() returns;
+        // until then a connection made right after stop() could still be
+        // accepted and served, and tests expecting the source to be down
+        // would pass or fail by chance
+        try {
+            acceptor.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread t = new Thread() {
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ignored) {
+                // Server socket closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String[] requestLine = readLine(in).split(" ");
+
+            Map headers = new HashMap();
+            for (String line = readLine(in); line.length() > 0; line = readLine(in)) {
+                int colon = line.indexOf(':');
+                headers.put(
+                        line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+
+            byte[] body = new byte[headers.containsKey("content-length") ?
+                    Integer.parseInt((String) headers.get("content-length")) : 0];
+            in.readFully(body);
+
+            synchronized (this) {
+                requestCount++;
+            }
+
+            Response response = handler.handle(requestLine[0], requestLine[1], headers, body);
+
+            OutputStream out = socket.getOutputStream();
+            StringBuffer sb = new StringBuffer();
+            sb.append("HTTP/1.0 " + response.status + " Status\r\n");
+            sb.append("Connection: close\r\n");
+            sb.append("Content-Length: " + response.body.length + "\r\n");
+            for (java.util.Iterator it = response.headers.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry each = (Map.Entry) it.next();
+                sb.append(each.getKey() + ": " + each.getValue() + "\r\n");
+            }
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes("ISO-8859-1"));
+            out.write(response.body);
+            out.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+            if (b != '\r') {
+                baos.write(b);
+            }
+        }
+
+        return new String(baos.toByteArray(), "ISO-8859-1");
+    }
+
+}
@@ -1,12 +1,46 @@
 package net.sf.dsig.verify;
 
 import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
 
 import junit.framework.TestCase;
 
 import org.apache.xml.security.utils.Base64;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.BasicOCSPRespGenerator;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.CertificateStatus;
+import org.bouncycastle.ocsp.OCSPReq;
+import org.bouncycastle.ocsp.OCSPRespGenerator;
+import org.bouncycastle.ocsp.Req;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.bouncycastle.ocsp.UnknownStatus;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
 
 public class OCSPHelperTest extends TestCase {
 
@@ -78,6 +112,563 @@ public class OCSPHelperTest extends TestCase {
         return helper;
     }
 
+    static X509Certificate getCertificate(String resource) throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                OCSPHelperTest.class.getResourceAsStream(resource));
+    }
+    
+    /**
+     * Generate a certificate issued in the name of ca.cer, signed by a 
+     * throwaway key
+     * 
+     * @param ocspUri the OCSP access location to include; may be null
+     */
+    static X509Certificate generateCertificate(BigInteger serialNumber, String ocspUri) 
+    throws Exception {
+        return generateCertificate(serialNumber, ocspUri, getCertificate("/ca.cer"));
+    }
+    
+    /**
+     * Generate a certificate issued in the name of a CA certificate, signed by
+     * a throwaway key
+     */
+    static X509Certificate generateCertificate(
+            BigInteger serialNumber, String ocspUri, X509Certificate caCertificate) 
+    throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        
+        X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(serialNumber);
+        gen.setIssuerDN(caCertificate.getSubjectX500Principal());
+        gen.setSubjectDN(new X500Principal("CN=Test " + serialNumber));
+        gen.setNotBefore(new Date(System.currentTimeMillis() - 3600*1000L));
+        gen.setNotAfter(new Date(System.currentTimeMillis() + 3600*1000L));
+        gen.setPublicKey(X509CRLHelperTest.getCaKeyPair().getPublic());
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        if (ocspUri != null) {
+            gen.addExtension(
+                    X509Extensions.AuthorityInfoAccess, 
+                    false, 
+                    new AuthorityInformationAccess(
+                            AccessDescription.id_ad_ocsp, 
+                            new GeneralName(GeneralName.uniformResourceIdentifier, ocspUri)));
+        }
+        
+        return gen.generate(X509CRLHelperTest.getCaKeyPair().getPrivate(), "BC");
+    }
+    
+    /**
+     * An OCSP responder answering every request with GOOD, or REVOKED and 
+     * UNKNOWN for the listed serials, signed by a throwaway key
+     */
+    static class Responder implements LocalHttpServer.Handler {
+        
+        private final Set revokedSerials = Collections.synchronizedSet(new HashSet());
+        
+        private final Set unknownSerials = Collections.synchronizedSet(new HashSet());
+        
+        private volatile long validityMillis;
+        
+        /** The distance of ThisUpdate from now */
+        volatile long thisUpdateOffsetMillis;
+        
+        /** The key signing responses; the throwaway CA key if null */
+        volatile KeyPair signingKeyPair;
+        
+        /** The certificates included in responses; none if null */
+        volatile X509Certificate[] signerCertificates;
+        
+        /** The path and number of certificates of each request received */
+        final List requests = Collections.synchronizedList(new ArrayList());
+        
+        /** The HTTP method of each request received */
+        final List methods = Collections.synchronizedList(new ArrayList());
+        
+        /** The CertificateID of each certificate requested */
+        final List certIds = Collections.synchronizedList(new ArrayList());
+        
+        /**
+         * @param validityMillis the distance of NextUpdate from now; 0 for 
+         * none, negative for past
+         */
+        Responder(long validityMillis) {
+            this.validityMillis = validityMillis;
+        }
+        
+        void revoke(BigInteger serialNumber) {
+            revokedSerials.add(serialNumber);
+        }
+        
+        void forget(BigInteger serialNumber) {
+            unknownSerials.add(serialNumber);
+        }
+        
+        public LocalHttpServer.Response handle(String method, String path, Map headers, byte[] body) 
+        throws Exception {
+            if (method.equals("GET")) {
+                // RFC 5019; the request follows the access location path
+                int slash = path.indexOf('/', 1);
+                body = org.bouncycastle.util.encoders.Base64.decode(
+                        URLDecoder.decode(path.substring(slash + 1), "US-ASCII"));
+                path = path.substring(0, slash);
+            }
+            methods.add(method);
+            
+            return new LocalHttpServer.Response(200, generateResponse(path, new OCSPReq(body)));
+        }
+        
+        byte[] generateResponse(String path, OCSPReq req) throws Exception {
+            BasicOCSPRespGenerator gen = new BasicOCSPRespGenerator(
+                    X509CRLHelperTest.getCaKeyPair().getPublic());
+            Date nextUpdate = validityMillis != 0 ? 
+                    new Date(System.currentTimeMillis() + validityMillis) : null;
+            Date thisUpdate = new Date(System.currentTimeMillis() + thisUpdateOffsetMillis);
+            
+            Req[] requests = req.getRequestList();
+            this.requests.add(path + ":" + requests.length);
+            for (int i=0; i<requests.length; i++) {
+                certIds.add(requests[i].getCertID());
+                BigInteger serialNumber = requests[i].getCertID().getSerialNumber();
+                CertificateStatus status = 
+                        revokedSerials.contains(serialNumber) ?
+                        new RevokedStatus(new Date(), 1) : 
+                        unknownSerials.contains(serialNumber) ?
+                        (CertificateStatus) new UnknownStatus() :
+                        CertificateStatus.GOOD;
+                gen.addResponse(requests[i].getCertID(), status, thisUpdate, nextUpdate, null);
+            }
+            
+            KeyPair keyPair = signingKeyPair != null ? signingKeyPair : X509CRLHelperTest.getCaKeyPair();
+            BasicOCSPResp basic = gen.generate(
+                    "SHA1WITHRSA", keyPair.getPrivate(), signerCertificates, new Date(), "BC");
+            
+            return new OCSPRespGenerator().generate(OCSPRespGenerator.SUCCESSFUL, basic).getEncoded();
+        }
+        
+    }
+    
+    /**
+     * Generate a certificate for the throwaway key signing the responses of
+     * {@link Responder}, to be trusted locally
+     */
+    static X509Certificate getResponderCertificate() throws Exception {
+        KeyPair keyPair = X509CRLHelperTest.getCaKeyPair();
+        return generateCertificate(
+                new X500Principal("CN=Test Responder"), keyPair.getPublic(), 
+                new X500Principal("CN=Test Responder"), keyPair.getPrivate(), 
+                false);
+    }
+    
+    static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        
+        return kpg.generateKeyPair();
+    }
+    
+    static X509Certificate generateCertificate(
+            X500Principal subject, PublicKey publicKey, 
+            X500Principal issuer, PrivateKey signingKey, 
+            boolean ocspSigning) 
+    throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        
+        X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+        gen.setIssuerDN(issuer);
+        gen.setSubjectDN(subject);
+        gen.setNotBefore(new Date(System.currentTimeMillis() - 3600*1000L));
+        gen.setNotAfter(new Date(System.currentTimeMillis() + 3600*1000L));
+        gen.setPublicKey(publicKey);
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        if (ocspSigning) {
+            gen.addExtension(
+                    X509Extensions.ExtendedKeyUsage, 
+                    false, 
+                    new ExtendedKeyUsage(KeyPurposeId.id_kp_OCSPSigning));
+        }
+        
+        return gen.generate(signingKey, "BC");
+    }
+    
+    static OCSPHelper getLocalOcspHelper(LocalHttpServer server) throws Exception {
+        OCSPHelper helper = new OCSPHelper();
+        helper.setCaCertificate(getCertificate("/ca.cer"));
+        helper.setResponderCertificate(getResponderCertificate());
+        helper.setDefaultOcspAccessLocation(server.getUri("/ocsp"));
+        
+        return helper;
+    }
+    
+    public void testResponseCache() throws Exception {
+        X509Certificate certificate = getCertificate("/sample_nopurposes.cer");
+        X509Certificate revokedCertificate = getCertificate("/root.cer");
+        
+        Responder responder = new Responder(3600*1000L);
+        responder.revoke(revokedCertificate.getSerialNumber());
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            
+            assertTrue(helper.isValid(certificate));
+            assertTrue(helper.isValid(certificate));
+            assertEquals(1, server.getRequestCount());
+            
+            assertFalse(helper.isValid(revokedCertificate));
+            assertFalse(helper.isValid(revokedCertificate));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testGetStatus() throws Exception {
+        X509Certificate certificate = getCertificate("/sample_nopurposes.cer");
+        X509Certificate revokedCertificate = getCertificate("/root.cer");
+        X509Certificate unknownCertificate = generateCertificate(BigInteger.valueOf(301), null);
+        
+        Responder responder = new Responder(3600*1000L);
+        responder.revoke(revokedCertificate.getSerialNumber());
+        responder.forget(unknownCertificate.getSerialNumber());
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            
+            assertEquals(RevocationChecker.GOOD, helper.getStatus(certificate, null));
+            assertEquals(RevocationChecker.REVOKED, helper.getStatus(revokedCertificate, null));
+            assertEquals(RevocationChecker.UNKNOWN, helper.getStatus(unknownCertificate, null));
+            
+            // Unknown is not valid, and cached as any other status
+            assertFalse(helper.isValid(unknownCertificate));
+            assertEquals(3, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testResponseCacheTtlAndEviction() throws Exception {
+        X509Certificate certificate = getCertificate("/sample_nopurposes.cer");
+        X509Certificate otherCertificate = getCertificate("/root.cer");
+        
+        // No NextUpdate; the TTL applies
+        LocalHttpServer server = new LocalHttpServer(new Responder(0));
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            helper.setCacheTtlMillis(50);
+            
+            assertTrue(helper.isValid(certificate));
+            assertTrue(helper.isValid(certificate));
+            assertEquals(1, server.getRequestCount());
+            
+            Thread.sleep(100);
+            assertTrue(helper.isValid(certificate));
+            assertEquals(2, server.getRequestCount());
+            
+            // A single entry; checking another certificate evicts the first
+            helper = getLocalOcspHelper(server);
+            helper.setCacheSize(1);
+            
+            helper.isValid(certificate);
+            helper.isValid(otherCertificate);
+            helper.isValid(otherCertificate);
+            assertEquals(4, server.getRequestCount());
+            
+            helper.isValid(certificate);
+            assertEquals(5, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testBatch() throws Exception {
+        Responder responder = new Responder(3600*1000L);
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            X509Certificate[] certificates = new X509Certificate[7];
+            for (int i=0; i<5; i++) {
+                certificates[i] = generateCertificate(BigInteger.valueOf(100 + i), null);
+            }
+            certificates[5] = generateCertificate(BigInteger.valueOf(200), server.getUri("/other"));
+            certificates[6] = generateCertificate(BigInteger.valueOf(201), server.getUri("/other"));
+            responder.revoke(BigInteger.valueOf(102));
+            responder.revoke(BigInteger.valueOf(201));
+            
+            OCSPHelper helper = getLocalOcspHelper(server);
+            helper.setMaxBatchSize(2);
+            
+            // One certificate already cached
+            assertTrue(helper.isValid(certificates[0]));
+            responder.requests.clear();
+            
+            Map results = helper.isValid(certificates);
+            
+            assertEquals(7, results.size());
+            for (int i=0; i<certificates.length; i++) {
+                BigInteger serialNumber = certificates[i].getSerialNumber();
+                assertEquals(
+                        !serialNumber.equals(BigInteger.valueOf(102)) && 
+                        !serialNumber.equals(BigInteger.valueOf(201)), 
+                        ((Boolean) results.get(certificates[i])).booleanValue());
+            }
+            
+            // Four pending for the default location, two for the other
+            assertEquals(3, responder.requests.size());
+            assertEquals("/ocsp:2", responder.requests.get(0));
+            assertEquals("/ocsp:2", responder.requests.get(1));
+            assertEquals("/other:2", responder.requests.get(2));
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testLightweightProfile() throws Exception {
+        Responder responder = new Responder(3600*1000L);
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            X509Certificate certificate = generateCertificate(BigInteger.valueOf(300), null);
+            X509Certificate otherCertificate = generateCertificate(BigInteger.valueOf(301), null);
+            
+            OCSPHelper helper = getLocalOcspHelper(server);
+            helper.setLightweightProfile(true);
+            
+            assertTrue(helper.isValid(certificate));
+            assertEquals("GET", responder.methods.get(0));
+            assertEquals("/ocsp:1", responder.requests.get(0));
+            
+            // More than one certificate does not fit the GET profile
+            Map results = helper.isValid(new X509Certificate[] { 
+                    generateCertificate(BigInteger.valueOf(302), null), otherCertificate });
+            assertEquals(2, results.size());
+            assertEquals("POST", responder.methods.get(1));
+            assertEquals("/ocsp:2", responder.requests.get(1));
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testResponseFreshness() throws Exception {
+        Responder responder = new Responder(3600*1000L);
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            helper.setLightweightProfile(true);
+            helper.setClockSkewMillis(60*1000L);
+            helper.setMaxResponseAgeMillis(3600*1000L);
+            
+            // Within the clock skew
+            responder.thisUpdateOffsetMillis = 30*1000L;
+            assertTrue(helper.isValid(generateCertificate(BigInteger.valueOf(600), null)));
+            
+            responder.thisUpdateOffsetMillis = 10*60*1000L;
+            try {
+                helper.isValid(generateCertificate(BigInteger.valueOf(601), null));
+                fail("Response from the future accepted");
+            } catch (VerificationException expected) { }
+            
+            // Older than the maximum age, though NextUpdate is yet to come
+            responder.thisUpdateOffsetMillis = -2*3600*1000L;
+            try {
+                helper.isValid(generateCertificate(BigInteger.valueOf(602), null));
+                fail("Stale response accepted");
+            } catch (VerificationException expected) { }
+        } finally {
+            server.stop();
+        }
+        
+        server = new LocalHttpServer(new Responder(-10*60*1000L));
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            try {
+                helper.isValid(generateCertificate(BigInteger.valueOf(603), null));
+                fail("Response past NextUpdate accepted");
+            } catch (VerificationException expected) { }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testMultipleIssuers() throws Exception {
+        X509Certificate ca = getCertificate("/ca.cer");
+        X509Certificate root = getCertificate("/root.cer");
+        
+        Responder responder = new Responder(3600*1000L);
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            X509Certificate certificate = generateCertificate(BigInteger.valueOf(400), null, ca);
+            X509Certificate otherCertificate = generateCertificate(BigInteger.valueOf(401), null, root);
+            
+            OCSPHelper helper = new OCSPHelper();
+            helper.setDefaultOcspAccessLocation(server.getUri("/ocsp"));
+            helper.setResponderCertificate(getResponderCertificate());
+            helper.setCaCertificates(Arrays.asList(new X509Certificate[] { ca, root }));
+            
+            helper.isValid(new X509Certificate[] { certificate, otherCertificate });
+            
+            // Precomputed hashes match the ones computed by the OCSP library
+            assertEquals(
+                    new CertificateID(CertificateID.HASH_SHA1, ca, BigInteger.valueOf(400)),
+                    responder.certIds.get(0));
+            assertEquals(
+                    new CertificateID(CertificateID.HASH_SHA1, root, BigInteger.valueOf(401)),
+                    responder.certIds.get(1));
+            
+            // Issuers are also found in the chain
+            helper = new OCSPHelper();
+            helper.setDefaultOcspAccessLocation(server.getUri("/ocsp"));
+            helper.setResponderCertificate(getResponderCertificate());
+            try {
+                helper.isValid(certificate);
+                fail("Certificate checked without issuer");
+            } catch (ConfigurationException expected) { }
+            
+            assertTrue(helper.isValid(certificate, new X509Certificate[] { certificate, ca, root }));
+            assertEquals(
+                    new CertificateID(CertificateID.HASH_SHA1, ca, BigInteger.valueOf(400)),
+                    responder.certIds.get(2));
+            
+            // The configured issuer is preferred over one of the same name 
+            // in the chain
+            KeyPair otherKeyPair = generateKeyPair();
+            X509Certificate otherCa = generateCertificate(
+                    ca.getSubjectX500Principal(), otherKeyPair.getPublic(), 
+                    ca.getSubjectX500Principal(), otherKeyPair.getPrivate(), false);
+            X509Certificate thirdCertificate = generateCertificate(BigInteger.valueOf(402), null, ca);
+            helper.setCaCertificate(ca);
+            assertTrue(helper.isValid(thirdCertificate, new X509Certificate[] { thirdCertificate, otherCa }));
+            assertEquals(
+                    new CertificateID(CertificateID.HASH_SHA1, ca, BigInteger.valueOf(402)),
+                    responder.certIds.get(3));
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testResponseSignature() throws Exception {
+        KeyPair issuerKeyPair = generateKeyPair();
+        X500Principal issuerName = new X500Principal("CN=Test CA");
+        X509Certificate issuer = generateCertificate(
+                issuerName, issuerKeyPair.getPublic(), issuerName, issuerKeyPair.getPrivate(), false);
+        
+        Responder responder = new Responder(3600*1000L);
+        LocalHttpServer server = new LocalHttpServer(responder);
+        try {
+            OCSPHelper helper = new OCSPHelper();
+            helper.setCaCertificate(issuer);
+            helper.setDefaultOcspAccessLocation(server.getUri("/ocsp"));
+            
+            // Signed by a key the issuer knows nothing of
+            try {
+                helper.isValid(generateCertificate(BigInteger.valueOf(500), null, issuer));
+                fail("Response of an unauthorised responder accepted");
+            } catch (VerificationException expected) { }
+            
+            // Signed by the issuer itself
+            responder.signingKeyPair = issuerKeyPair;
+            assertTrue(helper.isValid(generateCertificate(BigInteger.valueOf(501), null, issuer)));
+            
+            // Signed by a responder the issuer has delegated OCSP signing to
+            responder.signingKeyPair = null;
+            responder.signerCertificates = new X509Certificate[] { generateCertificate(
+                    new X500Principal("CN=Test Delegate"), X509CRLHelperTest.getCaKeyPair().getPublic(),
+                    issuerName, issuerKeyPair.getPrivate(), true) };
+            assertTrue(helper.isValid(generateCertificate(BigInteger.valueOf(502), null, issuer)));
+            
+            // The delegate must be issued for OCSP signing
+            responder.signerCertificates = new X509Certificate[] { generateCertificate(
+                    new X500Principal("CN=Test Delegate"), X509CRLHelperTest.getCaKeyPair().getPublic(),
+                    issuerName, issuerKeyPair.getPrivate(), false) };
+            try {
+                helper.isValid(generateCertificate(BigInteger.valueOf(503), null, issuer));
+                fail("Response of an unauthorised delegate accepted");
+            } catch (VerificationException expected) { }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testResponseCacheTtlCapsNextUpdate() throws Exception {
+        X509Certificate certificate = getCertificate("/sample_nopurposes.cer");
+        
+        LocalHttpServer server = new LocalHttpServer(new Responder(3600*1000L));
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            helper.setCacheTtlMillis(50);
+            
+            assertTrue(helper.isValid(certificate));
+            Thread.sleep(100);
+            assertTrue(helper.isValid(certificate));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private Object[] checkConcurrently(final OCSPHelper helper, final X509Certificate certificate) 
+    throws Exception {
+        final Object[] outcomes = new Object[8];
+        Thread[] threads = new Thread[outcomes.length];
+        for (int i=0; i<threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        outcomes[index] = Boolean.valueOf(helper.isValid(certificate));
+                    } catch (Exception e) {
+                        outcomes[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        
+        for (int i=0; i<threads.length; i++) {
+            threads[i].join();
+        }
+        
+        return outcomes;
+    }
+    
+    public void testCoalescing() throws Exception {
+        final Responder responder = new Responder(3600*1000L);
+        final boolean[] failing = new boolean[1];
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) 
+            throws Exception {
+                // Slow responder
+                Thread.sleep(300);
+                if (failing[0]) {
+                    return new LocalHttpServer.Response(503, null);
+                }
+                return responder.handle(method, path, headers, body);
+            }
+        });
+        
+        try {
+            OCSPHelper helper = getLocalOcspHelper(server);
+            
+            Object[] outcomes = checkConcurrently(helper, getCertificate("/sample_nopurposes.cer"));
+            for (int i=0; i<outcomes.length; i++) {
+                assertEquals(Boolean.TRUE, outcomes[i]);
+            }
+            assertEquals(1, server.getRequestCount());
+            
+            // A failure reaches every waiting call
+            failing[0] = true;
+            outcomes = checkConcurrently(helper, getCertificate("/root.cer"));
+            for (int i=0; i<outcomes.length; i++) {
+                assertTrue(outcomes[i] instanceof NetworkAccessException);
+            }
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
     /*
     public void testHelper() throws Exception {
         X509Certificate certificate = (X509Certificate) 
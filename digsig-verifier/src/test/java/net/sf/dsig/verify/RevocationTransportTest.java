@@ -0,0 +1,82 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class RevocationTransportTest extends TestCase {
+
+    public void testSharedTransport() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+        final byte[] crlBytes = X509CRLHelperTest.generateCrl(
+                new BigInteger[0], new Date(System.currentTimeMillis() + 3600*1000L));
+        final OCSPHelperTest.Responder responder = new OCSPHelperTest.Responder(3600*1000L);
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) 
+            throws Exception {
+                if (path.equals("/test.crl")) {
+                    return new LocalHttpServer.Response(200, crlBytes);
+                }
+                return responder.handle(method, path, headers, body);
+            }
+        });
+        
+        RevocationTransport transport = new RevocationTransport();
+        transport.setMaxConnectionsPerHost(4);
+        transport.setMaxTotalConnections(8);
+        try {
+            X509CRLHelper crlHelper = new X509CRLHelper();
+            crlHelper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+            crlHelper.setTransport(transport);
+            
+            OCSPHelper ocspHelper = OCSPHelperTest.getLocalOcspHelper(server);
+            ocspHelper.setTransport(transport);
+            
+            assertTrue(crlHelper.isValid(certificate));
+            assertTrue(ocspHelper.isValid(certificate));
+            
+            assertEquals(2, transport.getRequestCount());
+            assertEquals(0, transport.getFailureCount());
+            // Both helpers went through the one pool, to the one host
+            assertTrue(transport.getConnectionsInPool() <= 1);
+            assertEquals(
+                    transport.getConnectionsInPool(), 
+                    transport.getConnectionsInPool(server.getUri("/ocsp")));
+            
+            // Failed requests are counted too
+            server.stop();
+            try {
+                ocspHelper.isValid(OCSPHelperTest.getCertificate("/root.cer"));
+                fail("Request to stopped server succeeded");
+            } catch (NetworkAccessException expected) { }
+            
+            assertEquals(3, transport.getRequestCount());
+            assertEquals(1, transport.getFailureCount());
+        } finally {
+            server.stop();
+            transport.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RevokedSerialIndexTest extends TestCase {
+
+    private BigInteger[] getSerials(int count, long seed) {
+        Random random = new Random(seed);
+        BigInteger[] serials = new BigInteger[count];
+        for (int i=0; i<count; i++) {
+            // Mix of short and long (16 byte) serials
+            serials[i] = new BigInteger(i % 3 == 0 ? 24 : 128, random);
+        }
+
+        return serials;
+    }
+
+    private void assertIndex(RevokedSerialIndex index, BigInteger[] revoked, BigInteger[] notRevoked) {
+        for (int i=0; i<revoked.length; i++) {
+            assertTrue(index.isRevoked(revoked[i]));
+        }
+        for (int i=0; i<notRevoked.length; i++) {
+            assertFalse(index.isRevoked(notRevoked[i]));
+        }
+    }
+
+    public void testBuilder() {
+        BigInteger[] revoked = getSerials(5000, 1);
+        BigInteger[] notRevoked = getSerials(5000, 2);
+
+        RevokedSerialIndex.Builder builder = new RevokedSerialIndex.Builder();
+        for (int i=0; i<revoked.length; i++) {
+            byte[] serial = revoked[i].toByteArray();
+            builder.addSerial(serial, 0, serial.length);
+        }
+        // Duplicates and padded encodings are normalized
+        builder.addSerial(revoked[0].toByteArray(), 0, revoked[0].toByteArray().length);
+        builder.addSerial(new byte[] { 0, 0, 0x7f }, 0, 3);
+
+        RevokedSerialIndex index = builder.build(10);
+
+        assertEquals(5001, index.size());
+        assertIndex(index, revoked, notRevoked);
+        assertTrue(index.isRevoked(BigInteger.valueOf(0x7f)));
+        assertFalse(index.isRevoked(BigInteger.valueOf(0x7e)));
+    }
+
+    public void testWithoutBloomFilter() {
+        BigInteger[] revoked = getSerials(1000, 3);
+        BigInteger[] notRevoked = getSerials(1000, 4);
+
+        RevokedSerialIndex.Builder builder = new RevokedSerialIndex.Builder();
+        for (int i=0; i<revoked.length; i++) {
+            byte[] serial = revoked[i].toByteArray();
+            builder.addSerial(serial, 0, serial.length);
+        }
+
+        assertIndex(builder.build(0), revoked, notRevoked);
+        assertFalse(new RevokedSerialIndex.Builder().build(10).isRevoked(BigInteger.ONE));
+    }
+
+    public void testBuildFromCrl() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+        BigInteger[] revoked = getSerials(200, 5);
+        revoked[0] = certificate.getSerialNumber();
+        Date nextUpdate = new Date(System.currentTimeMillis() + 3600*1000L);
+
+        X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
+                new ByteArrayInputStream(X509CRLHelperTest.generateCrl(revoked, nextUpdate)));
+        RevokedSerialIndex index = RevokedSerialIndex.build(crl, 10);
+
+        assertEquals(crl.getIssuerX500Principal(), index.getIssuer());
+        assertEquals(crl.getNextUpdate(), index.getNextUpdate());
+        assertIndex(index, revoked, getSerials(200, 6));
+        assertTrue(index.isRevoked(certificate));
+        assertEquals(crl.isRevoked(certificate), index.isRevoked(certificate));
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.xml.security.signature.ObjectContainer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.w3c.dom.Element;
+
+public class SignatureObjectsTest extends TestCase {
+
+    static {
+        org.apache.xml.security.Init.init();
+    }
+
+    private static XMLSignature parse(String xml) throws Exception {
+        return XmldsigVerificationEngine.newSignature(DocumentBuilderPool.getDefault().parse(
+                new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+    }
+
+    public void testIndexed() throws Exception {
+        XMLSignature signature = XmldsigVerificationEngine.newSignature(
+                DocumentBuilderPool.getDefault().parse(
+                        getClass().getResourceAsStream("/sample-xmldsig.xml")));
+        SignatureObjects objects = new SignatureObjects(signature);
+
+        Element formData = objects.getObjectElement("formData");
+        assertNotNull(formData);
+        assertSame(signature.getObjectItem(0).getElement(), formData);
+        assertSame(formData, objects.getObjectElement("formData"));
+        assertNull(objects.getObjectElement("missing"));
+
+        ObjectContainer[] objectContainers = objects.getObjectContainers();
+        assertEquals(signature.getObjectLength(), objectContainers.length);
+        assertSame(formData, objectContainers[0].getElement());
+        assertSame(objectContainers, objects.getObjectContainers());
+    }
+
+    public void testFirstIdWins() throws Exception {
+        String ds = "http://www.w3.org/2000/09/xmldsig#";
+        XMLSignature signature = parse(
+                "<ds:Signature xmlns:ds=\"" + ds + "\">" +
+                "<ds:SignedInfo><ds:CanonicalizationMethod Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\"/>" +
+                "<ds:SignatureMethod Algorithm=\"http://www.w3.org/2000/09/xmldsig#rsa-sha1\"/>" +
+                "<ds:Reference URI=\"#nonce\"><ds:DigestMethod Algorithm=\"http://www.w3.org/2000/09/xmldsig#sha1\"/>" +
+                "<ds:DigestValue>AA==</ds:DigestValue></ds:Reference></ds:SignedInfo>" +
+                "<ds:SignatureValue>AA==</ds:SignatureValue>" +
+                "<ds:Object Id=\"nonce\">1</ds:Object>" +
+                "<ds:Object Id=\"plaintext\"><ds:Object Id=\"nested\"/></ds:Object>" +
+                "<ds:Object Id=\"nonce\">2</ds:Object>" +
+                "</ds:Signature>");
+        SignatureObjects objects = new SignatureObjects(signature);
+
+        assertEquals("1", objects.getObjectElement("nonce").getTextContent());
+        assertNotNull(objects.getObjectElement("plaintext"));
+        // Only ds:Object children of the signature are indexed
+        assertNull(objects.getObjectElement("nested"));
+        assertEquals(3, objects.getObjectContainers().length);
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyStore;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TrustAnchorStoreTest extends TestCase {
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = new File(
+                System.getProperty("java.io.tmpdir"),
+                "trustanchors-" + System.currentTimeMillis());
+        directory.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        for (int i=0; files != null && i<files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    private File write(String name, byte[] bytes) throws Exception {
+        File file = new File(directory, name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+
+        return file;
+    }
+
+    public void testDirectory() throws Exception {
+        X509Certificate root = OCSPHelperTest.getCertificate("/root.cer");
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+        write("root.cer", root.getEncoded());
+        write("readme.txt", "Not a certificate".getBytes());
+
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setDirectory(directory);
+
+        TrustAnchorStore.Snapshot snapshot = store.getSnapshot();
+        assertEquals(1, snapshot.getTrustAnchors().size());
+        assertEquals(1, snapshot.getBySubject(root.getSubjectX500Principal()).size());
+        assertEquals(0, snapshot.getBySubject(ca.getSubjectX500Principal()).size());
+        assertNotNull(snapshot.newPKIXParameters());
+
+        // Nothing changed
+        assertFalse(store.reload());
+        assertSame(snapshot, store.getSnapshot());
+
+        File caFile = write("ca.cer", ca.getEncoded());
+        assertTrue(store.reload());
+        TrustAnchorStore.Snapshot reloaded = store.getSnapshot();
+        assertEquals(2, reloaded.getTrustAnchors().size());
+        assertEquals(1, reloaded.getBySubject(ca.getSubjectX500Principal()).size());
+        assertTrue(reloaded.getVersion() != snapshot.getVersion());
+
+        // Snapshots handed out are never modified
+        assertEquals(1, snapshot.getTrustAnchors().size());
+
+        // A broken file keeps the current snapshot
+        write("broken.cer", "Not a certificate".getBytes());
+        try {
+            store.reload();
+            fail("Broken certificate loaded");
+        } catch (ConfigurationException expected) { }
+        assertSame(reloaded, store.getSnapshot());
+
+        new File(directory, "broken.cer").delete();
+        caFile.delete();
+        assertTrue(store.reload());
+        assertEquals(snapshot.getVersion(), store.getSnapshot().getVersion());
+    }
+
+    public void testVersion() throws Exception {
+        X509Certificate root = OCSPHelperTest.getCertificate("/root.cer");
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+
+        Set single = new HashSet();
+        single.add(new TrustAnchor(root, null));
+        Set duplicate = new HashSet();
+        duplicate.add(new TrustAnchor(root, null));
+        duplicate.add(new TrustAnchor(root, null));
+        assertEquals(2, duplicate.size());
+
+        // The same anchor twice counts once, and does not cancel out
+        assertEquals(TrustAnchorStore.getVersion(single), TrustAnchorStore.getVersion(duplicate));
+        assertTrue(TrustAnchorStore.getVersion(duplicate) != TrustAnchorStore.getVersion(new HashSet()));
+
+        Set both = new HashSet(single);
+        both.add(new TrustAnchor(ca, null));
+        assertTrue(TrustAnchorStore.getVersion(both) != TrustAnchorStore.getVersion(single));
+    }
+
+    public void testSetterOrder() throws Exception {
+        X509Certificate root = OCSPHelperTest.getCertificate("/root.cer");
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+        write("root.cer", root.getEncoded());
+
+        // Anchors set before the directory are loaded along with it
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setTrustAnchors(Collections.singleton(new TrustAnchor(ca, null)));
+        store.setDirectory(directory);
+        TrustAnchorStore.Snapshot snapshot = store.getSnapshot();
+        assertEquals(2, snapshot.getTrustAnchors().size());
+
+        // Replacing them takes effect on next use
+        store.setTrustAnchors(null);
+        assertEquals(1, store.getSnapshot().getTrustAnchors().size());
+        assertFalse(store.reload());
+    }
+
+    public void testFailedReloadKeepsSnapshot() throws Exception {
+        X509Certificate root = OCSPHelperTest.getCertificate("/root.cer");
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+        write("root.cer", root.getEncoded());
+
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setDirectory(directory);
+        TrustAnchorStore.Snapshot snapshot = store.getSnapshot();
+
+        // The reload on the setter fails; verifications go on with the
+        // last good snapshot, without waiting or failing
+        write("broken.cer", "Not a certificate".getBytes());
+        store.setTrustAnchors(Collections.singleton(new TrustAnchor(ca, null)));
+        assertSame(snapshot, store.getSnapshot());
+
+        new File(directory, "broken.cer").delete();
+        assertTrue(store.reload());
+        assertEquals(2, store.getSnapshot().getTrustAnchors().size());
+    }
+
+    public void testAnchorSelection() throws Exception {
+        X509Certificate root = OCSPHelperTest.getCertificate("/root.cer");
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+
+        Set trustAnchors = new HashSet();
+        trustAnchors.add(new TrustAnchor(root, null));
+        trustAnchors.add(new TrustAnchor(ca, null));
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setTrustAnchors(trustAnchors);
+        TrustAnchorStore.Snapshot snapshot = store.getSnapshot();
+
+        // Only the anchor named as issuer of the last certificate is tried
+        X509Certificate[] chain = new X509Certificate[] {
+                OCSPHelperTest.generateCertificate(BigInteger.valueOf(711), null, ca) };
+        Set selected = snapshot.newPKIXParameters(chain).getTrustAnchors();
+        assertEquals(1, selected.size());
+        assertEquals(ca, ((TrustAnchor) selected.iterator().next()).getTrustedCert());
+
+        X509Certificate unknown = OCSPHelperTest.generateCertificate(BigInteger.valueOf(712), null);
+        chain = new X509Certificate[] {
+                OCSPHelperTest.generateCertificate(BigInteger.valueOf(713), null, unknown) };
+        assertNull(snapshot.newPKIXParameters(chain));
+    }
+
+    public void testSubjectKeyIdentifierIndex() throws Exception {
+        X509Certificate generated = OCSPHelperTest.generateCertificate(BigInteger.valueOf(701), null);
+        X509Certificate ca = OCSPHelperTest.getCertificate("/ca.cer");
+
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setTrustAnchors(Collections.singleton(new TrustAnchor(ca, null)));
+
+        byte[] keyIdentifier = OCSPHelper.getSubjectKeyIdentifier(ca);
+        if (keyIdentifier != null) {
+            assertEquals(1, store.getSnapshot().getBySubjectKeyIdentifier(keyIdentifier).size());
+        }
+        assertEquals(0, store.getSnapshot().getBySubjectKeyIdentifier(new byte[] { 1, 2, 3 }).size());
+        assertEquals(0, store.getSnapshot().getBySubject(generated.getSubjectX500Principal()).size());
+    }
+
+    public void testKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setCertificateEntry("root", OCSPHelperTest.getCertificate("/root.cer"));
+        keyStore.setCertificateEntry("ca", OCSPHelperTest.getCertificate("/ca.cer"));
+
+        File keyStoreFile = new File(directory, "trust.jks");
+        OutputStream os = new FileOutputStream(keyStoreFile);
+        try {
+            keyStore.store(os, "changeit".toCharArray());
+        } finally {
+            os.close();
+        }
+
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setKeyStoreFile(keyStoreFile);
+        store.setKeyStoreType("JKS");
+        store.setKeyStorePassword("changeit");
+
+        assertEquals(2, store.getSnapshot().getTrustAnchors().size());
+    }
+
+    public void testPolling() throws Exception {
+        write("root.cer", OCSPHelperTest.getCertificate("/root.cer").getEncoded());
+
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setDirectory(directory);
+        store.setReloadIntervalMillis(50);
+        store.start();
+        try {
+            assertEquals(1, store.getSnapshot().getTrustAnchors().size());
+
+            write("ca.cer", OCSPHelperTest.getCertificate("/ca.cer").getEncoded());
+            for (int i=0; i<100 && store.getSnapshot().getTrustAnchors().size() < 2; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(2, store.getSnapshot().getTrustAnchors().size());
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    public void testEngine() throws Exception {
+        TrustAnchorStore store = new TrustAnchorStore();
+        store.setDirectory(directory);
+
+        VerificationPolicy policy = new VerificationPolicy();
+        policy.setTrustAnchorStore(store);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        // No anchors yet
+        try {
+            engine.verify(getClass().getResourceAsStream("/sample-xmldsig.xml"));
+            fail("ConfigurationException not raised");
+        } catch (ConfigurationException expected) { }
+
+        write("root.cer", OCSPHelperTest.getCertificate("/root.cer").getEncoded());
+        store.reload();
+
+        VerificationResult result = engine.verify(
+                getClass().getResourceAsStream("/sample-xmldsig.xml"));
+        assertTrue(result.isSignatureValid());
+    }
+
+}
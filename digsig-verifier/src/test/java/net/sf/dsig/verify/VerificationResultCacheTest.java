@@ -0,0 +1,187 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+public class VerificationResultCacheTest extends TestCase {
+
+    static byte[] getSampleBytes() throws Exception {
+        InputStream is = VerificationResultCacheTest.class.getResourceAsStream("/sample-xmldsig.xml");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        is.close();
+
+        return baos.toByteArray();
+    }
+
+    public void testReused() throws Exception {
+        VerificationResultCache cache = new VerificationResultCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(cache);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        byte[] signedBytes = getSampleBytes();
+        VerificationResult first = engine.verify(signedBytes);
+        assertEquals(1, cache.size());
+
+        VerificationResult second = engine.verify(new ByteArrayInputStream(signedBytes));
+        assertEquals(1, cache.size());
+        assertEquals(first.isSignatureValid(), second.isSignatureValid());
+        assertEquals(first.isCertificatePathValid(), second.isCertificatePathValid());
+        assertEquals(first.isCertificateValid(), second.isCertificateValid());
+        assertEquals(first.getSigningCertificate(), second.getSigningCertificate());
+        // Each result comes with its own document
+        assertNotNull(second.getObjectElement("formData"));
+        assertNotSame(first.getObjectElement("formData"), second.getObjectElement("formData"));
+    }
+
+    /** Counts the documents parsed */
+    private static class CountingDocumentBuilderPool extends DocumentBuilderPool {
+
+        private int count = 0;
+
+        public synchronized Document parse(InputStream is) throws SAXException, IOException {
+            count++;
+            return super.parse(is);
+        }
+
+    }
+
+    public void testHitSkipsParsing() throws Exception {
+        CountingDocumentBuilderPool pool = new CountingDocumentBuilderPool();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(new VerificationResultCache());
+        policy.setDocumentBuilderPool(pool);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        byte[] signedBytes = getSampleBytes();
+        engine.verify(signedBytes);
+        assertEquals(1, pool.count);
+
+        VerificationResult result = engine.verify(signedBytes);
+        assertEquals(1, pool.count);
+        // ... until the objects are asked for
+        assertNotNull(result.getObjectElement("formData"));
+        assertEquals(2, pool.count);
+
+        // Bytes changed since verified are not handed out as verified
+        result = engine.verify(signedBytes);
+        int value = new String(signedBytes, "UTF-8").indexOf("value=\"1.23\"");
+        signedBytes[value + "value=\"".length()] = '9';
+        try {
+            result.getObjectElement("formData");
+            fail("Changed document handed out");
+        } catch (IllegalStateException expected) { }
+    }
+
+    public void testReusedAcrossInputs() throws Exception {
+        VerificationResultCache cache = new VerificationResultCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(cache);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+
+        byte[] signedBytes = getSampleBytes();
+        File file = File.createTempFile("sample-xmldsig", ".xml");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(signedBytes);
+            fos.close();
+
+            engine.verify(file);
+            engine.verify(signedBytes);
+            assertEquals(1, cache.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testKeyedByBytesAndPolicy() throws Exception {
+        VerificationResultCache cache = new VerificationResultCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(cache);
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+
+        // Same document, different policy
+        policy.setSubjectMatchingRegex(".*");
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        assertEquals(2, cache.size());
+
+        // Same policy, different bytes
+        byte[] signedBytes = getSampleBytes();
+        byte[] padded = new byte[signedBytes.length + 1];
+        System.arraycopy(signedBytes, 0, padded, 0, signedBytes.length);
+        padded[signedBytes.length] = '\n';
+        new XmldsigVerificationEngine(policy).verify(padded);
+        assertEquals(3, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testKeyedByRevocationSources() throws Exception {
+        VerificationResultCache cache = new VerificationResultCache();
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(cache);
+        X509CRLHelper crlHelper = new X509CRLHelper();
+        policy.setCrlHelper(crlHelper);
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        assertEquals(1, cache.size());
+
+        // Other helper, same settings
+        policy.setCrlHelper(new X509CRLHelper());
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        assertEquals(2, cache.size());
+
+        // Same helper, other default distribution point
+        policy.setCrlHelper(crlHelper);
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(policy);
+        crlHelper.setDefaultCrlDistributionPoint("http://localhost/test.crl");
+        engine.verify(getSampleBytes());
+        assertEquals(3, cache.size());
+
+        policy.setRevocationChecker(new CompositeRevocationChecker(new RevocationChecker[0]));
+        new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        assertEquals(4, cache.size());
+    }
+
+    public void testDisabled() throws Exception {
+        VerificationResultCache cache = new VerificationResultCache();
+        cache.setCacheSize(0);
+        VerificationPolicy policy = XmldsigVerificationEngineTest.getPolicy();
+        policy.setResultCache(cache);
+
+        VerificationResult result = new XmldsigVerificationEngine(policy).verify(getSampleBytes());
+        assertTrue(result.isSignatureValid());
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -1,12 +1,23 @@
 package net.sf.dsig.verify;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.apache.xml.security.utils.Base64;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.jce.X509Principal;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V2CRLGenerator;
 
 public class X509CRLHelperTest extends TestCase {
 
@@ -46,6 +57,276 @@ public class X509CRLHelperTest extends TestCase {
         return helper;
     }
     
+    private static KeyPair caKeyPair;
+    
+    static synchronized KeyPair getCaKeyPair() throws Exception {
+        if (caKeyPair == null) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(1024);
+            caKeyPair = kpg.generateKeyPair();
+        }
+        
+        return caKeyPair;
+    }
+    
+    /**
+     * Generate a DER-encoded CRL for the issuer of the sample certificate, 
+     * signed by a throwaway key
+     */
+    static byte[] generateCrl(BigInteger[] revokedSerials, Date nextUpdate) throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        
+        X509V2CRLGenerator gen = new X509V2CRLGenerator();
+        gen.setIssuerDN(new X509Principal(
+                getSampleCertificate().getIssuerX500Principal().getEncoded()));
+        gen.setThisUpdate(new Date());
+        gen.setNextUpdate(nextUpdate);
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        for (int i=0; i<revokedSerials.length; i++) {
+            gen.addCRLEntry(revokedSerials[i], new Date(), CRLReason.keyCompromise);
+        }
+        
+        return gen.generate(getCaKeyPair().getPrivate(), "BC").getEncoded();
+    }
+    
+    static X509Certificate getSampleCertificate() throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                X509CRLHelperTest.class.getResourceAsStream("/sample_nopurposes.cer"));
+    }
+    
+    public void testSingleFlight() throws Exception {
+        final X509Certificate certificate = getSampleCertificate();
+        final byte[] crlBytes = generateCrl(
+                new BigInteger[] { certificate.getSerialNumber() },
+                new Date(System.currentTimeMillis() + 3600*1000L));
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) 
+            throws Exception {
+                // Slow distribution point
+                Thread.sleep(300);
+                return new LocalHttpServer.Response(200, crlBytes);
+            }
+        });
+        
+        try {
+            final X509CRLHelper helper = new X509CRLHelper();
+            helper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+            
+            final Object[] outcomes = new Object[8];
+            Thread[] threads = new Thread[outcomes.length];
+            for (int i=0; i<threads.length; i++) {
+                final int index = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            outcomes[index] = Boolean.valueOf(helper.isValid(certificate));
+                        } catch (Exception e) {
+                            outcomes[index] = e;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            
+            for (int i=0; i<threads.length; i++) {
+                threads[i].join();
+                assertEquals(Boolean.FALSE, outcomes[i]);
+            }
+            
+            assertEquals(1, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testBackgroundRefresh() throws Exception {
+        X509Certificate certificate = getSampleCertificate();
+        final byte[] crlBytes = generateCrl(
+                new BigInteger[0],
+                new Date(System.currentTimeMillis() + 3000));
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) {
+                return new LocalHttpServer.Response(200, crlBytes);
+            }
+        });
+        
+        X509CRLHelper helper = new X509CRLHelper();
+        helper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+        helper.setRefreshMarginMillis(2500);
+        helper.setRefreshRetryMillis(100);
+        
+        try {
+            assertTrue(helper.isValid(certificate));
+            assertEquals(1, server.getRequestCount());
+            
+            // Refreshed in the background, ahead of NextUpdate
+            Thread.sleep(1500);
+            assertTrue(server.getRequestCount() >= 2);
+        } finally {
+            helper.shutdown();
+            server.stop();
+        }
+    }
+    
+    public void testStaleGrace() throws Exception {
+        X509Certificate certificate = getSampleCertificate();
+        final byte[] crlBytes = generateCrl(
+                new BigInteger[0],
+                new Date(System.currentTimeMillis() + 1000));
+        final boolean[] unavailable = new boolean[] { false };
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) {
+                return unavailable[0] ?
+                        new LocalHttpServer.Response(503, null) :
+                        new LocalHttpServer.Response(200, crlBytes);
+            }
+        });
+        
+        try {
+            X509CRLHelper helper = new X509CRLHelper();
+            helper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+            helper.setStaleGraceMillis(60*1000);
+            
+            X509CRLHelper strictHelper = new X509CRLHelper();
+            strictHelper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+            
+            assertTrue(helper.isValid(certificate));
+            assertTrue(strictHelper.isValid(certificate));
+            
+            unavailable[0] = true;
+            Thread.sleep(2100);
+            
+            // Past NextUpdate, and the distribution point is down
+            assertTrue(helper.isValid(certificate));
+            try {
+                strictHelper.isValid(certificate);
+                fail("NetworkAccessException not raised");
+            } catch (NetworkAccessException ignored) { }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    public void testStaleWhileRefreshing() throws Exception {
+        X509Certificate certificate = getSampleCertificate();
+        final byte[] crlBytes = generateCrl(
+                new BigInteger[0],
+                new Date(System.currentTimeMillis() + 1000));
+        final byte[] freshCrlBytes = generateCrl(
+                new BigInteger[0],
+                new Date(System.currentTimeMillis() + 3600*1000L));
+        final int[] requestCount = new int[] { 0 };
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) 
+            throws Exception {
+                synchronized (requestCount) {
+                    if (requestCount[0]++ == 0) {
+                        return new LocalHttpServer.Response(200, crlBytes);
+                    }
+                }
+                
+                // Slow refresh
+                Thread.sleep(2500);
+                return new LocalHttpServer.Response(200, freshCrlBytes);
+            }
+        });
+        
+        X509CRLHelper helper = new X509CRLHelper();
+        helper.setDefaultCrlDistributionPoint(server.getUri("/test.crl"));
+        helper.setRefreshMarginMillis(500);
+        helper.setRefreshRetryMillis(100);
+        helper.setStaleGraceMillis(60*1000);
+        
+        try {
+            assertTrue(helper.isValid(certificate));
+            
+            // Past NextUpdate, with the refresh still in progress
+            Thread.sleep(1100);
+            long start = System.currentTimeMillis();
+            assertTrue(helper.isValid(certificate));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Took " + elapsed + "ms", elapsed < 500);
+            
+            // ... which completes in the background
+            Thread.sleep(2500);
+            assertTrue(helper.isValid(certificate));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            helper.shutdown();
+            server.stop();
+        }
+    }
+    
+    public void testCacheDirectory() throws Exception {
+        X509Certificate certificate = getSampleCertificate();
+        final byte[] freshCrlBytes = generateCrl(
+                new BigInteger[] { certificate.getSerialNumber() },
+                new Date(System.currentTimeMillis() + 3600*1000L));
+        // CA has not published a newer CRL past NextUpdate
+        final byte[] expiredCrlBytes = generateCrl(
+                new BigInteger[] { certificate.getSerialNumber() },
+                new Date(System.currentTimeMillis() - 3600*1000L));
+        
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            public LocalHttpServer.Response handle(
+                    String method, String path, Map headers, byte[] body) {
+                String eTag = "\"" + path.hashCode() + "\"";
+                if (eTag.equals(headers.get("if-none-match"))) {
+                    return new LocalHttpServer.Response(304, null);
+                }
+                
+                return new LocalHttpServer.Response(
+                        200, 
+                        path.startsWith("/fresh") ? freshCrlBytes : expiredCrlBytes)
+                        .setHeader("ETag", eTag);
+            }
+        });
+        
+        File cacheDirectory = new File(
+                System.getProperty("java.io.tmpdir"), 
+                "crlcache-" + System.currentTimeMillis());
+        
+        try {
+            X509CRLHelper helper = new X509CRLHelper();
+            helper.setCacheDirectory(cacheDirectory);
+            
+            assertNotNull(helper.getRevokedSerialIndex(server.getUri("/fresh.crl")));
+            assertNotNull(helper.getRevokedSerialIndex(server.getUri("/expired.crl")));
+            assertEquals(2, server.getRequestCount());
+            assertEquals(4, cacheDirectory.listFiles().length);
+            
+            // A restarted helper loads fresh CRLs straight from disk...
+            X509CRLHelper restartedHelper = new X509CRLHelper();
+            restartedHelper.setCacheDirectory(cacheDirectory);
+            
+            restartedHelper.setDefaultCrlDistributionPoint(server.getUri("/fresh.crl"));
+            assertFalse(restartedHelper.isValid(certificate));
+            assertEquals(2, server.getRequestCount());
+            
+            // ...and revalidates expired ones, which costs a 304
+            assertNotNull(restartedHelper.getRevokedSerialIndex(server.getUri("/expired.crl")));
+            assertEquals(3, server.getRequestCount());
+        } finally {
+            server.stop();
+            
+            File[] files = cacheDirectory.listFiles();
+            for (int i=0; files != null && i<files.length; i++) {
+                files[i].delete();
+            }
+            cacheDirectory.delete();
+        }
+    }
+    
     public void testHelper() throws Exception {
         X509Certificate certificate = (X509Certificate) 
                 CertificateFactory.getInstance("X.509").generateCertificate(
@@ -63,10 +344,10 @@ public class X509CRLHelperTest extends TestCase {
         
         X509CRLHelper helper = getCrlHelper();
         
-        assertNotNull(helper.getX509CRL(distributionPointUriAsString));
+        assertNotNull(helper.getRevokedSerialIndex(distributionPointUriAsString));
         
         assertFalse(helper.uriNextUpdateMap.isEmpty());
-        assertFalse(helper.uriX509CrlMap.isEmpty());
+        assertFalse(helper.uriRevokedSerialIndexMap.isEmpty());
         
         assertTrue(helper.isValid(certificate));
     }
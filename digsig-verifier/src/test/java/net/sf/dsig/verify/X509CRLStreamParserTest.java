@@ -0,0 +1,200 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.DERBoolean;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.X509Principal;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+
+public class X509CRLStreamParserTest extends TestCase {
+
+    /** Hands out one byte per read and never skips, like a slow network */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        private TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+
+        public synchronized long skip(long n) {
+            return 0;
+        }
+
+    }
+
+    public void testParse() throws Exception {
+        X509Certificate certificate = X509CRLHelperTest.getSampleCertificate();
+        BigInteger[] revoked = new BigInteger[300];
+        for (int i=0; i<revoked.length; i++) {
+            revoked[i] = BigInteger.valueOf(1000 + i).shiftLeft(i % 100);
+        }
+        revoked[0] = certificate.getSerialNumber();
+        Date nextUpdate = new Date(System.currentTimeMillis() + 3600*1000L);
+
+        byte[] crlBytes = X509CRLHelperTest.generateCrl(revoked, nextUpdate);
+        X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
+                new ByteArrayInputStream(crlBytes));
+
+        InputStream is = new TrickleInputStream(crlBytes);
+        RevokedSerialIndex index = X509CRLStreamParser.parse(is, 10);
+
+        assertEquals(-1, is.read());
+        assertEquals(crl.getIssuerX500Principal(), index.getIssuer());
+        assertEquals(crl.getThisUpdate(), index.getThisUpdate());
+        assertEquals(crl.getNextUpdate(), index.getNextUpdate());
+        assertEquals(revoked.length, index.size());
+        for (int i=0; i<revoked.length; i++) {
+            assertTrue(index.isRevoked(revoked[i]));
+        }
+        assertFalse(index.isRevoked(BigInteger.valueOf(999)));
+        assertTrue(index.isRevoked(certificate));
+    }
+
+    public void testEmptyCrl() throws Exception {
+        Date nextUpdate = new Date(System.currentTimeMillis() + 3600*1000L);
+        byte[] crlBytes = X509CRLHelperTest.generateCrl(new BigInteger[0], nextUpdate);
+
+        RevokedSerialIndex index = X509CRLStreamParser.parse(new ByteArrayInputStream(crlBytes), 10);
+
+        assertEquals(0, index.size());
+        assertEquals(nextUpdate.getTime() / 1000, index.getNextUpdate().getTime() / 1000);
+        assertFalse(index.isRevoked(X509CRLHelperTest.getSampleCertificate()));
+    }
+
+    public void testPem() throws Exception {
+        BigInteger serial = X509CRLHelperTest.getSampleCertificate().getSerialNumber();
+        byte[] crlBytes = X509CRLHelperTest.generateCrl(
+                new BigInteger[] { serial }, new Date(System.currentTimeMillis() + 3600*1000L));
+
+        String base64 = new String(Base64.encode(crlBytes), "US-ASCII");
+        StringBuffer pem = new StringBuffer("-----BEGIN X509 CRL-----\r\n");
+        for (int i=0; i<base64.length(); i+=64) {
+            pem.append(base64.substring(i, Math.min(base64.length(), i + 64))).append("\r\n");
+        }
+        pem.append("-----END X509 CRL-----\r\n");
+
+        InputStream is = new TrickleInputStream(pem.toString().getBytes("US-ASCII"));
+        RevokedSerialIndex index = X509CRLStreamParser.parse(is, 10);
+
+        assertEquals(-1, is.read());
+        assertEquals(1, index.size());
+        assertTrue(index.isRevoked(serial));
+    }
+
+    private static X509V2CRLGenerator newCrlGenerator() throws Exception {
+        X509V2CRLGenerator gen = new X509V2CRLGenerator();
+        gen.setIssuerDN(new X509Principal("CN=Test CA"));
+        gen.setThisUpdate(new Date());
+        gen.setNextUpdate(new Date(System.currentTimeMillis() + 3600*1000L));
+        gen.setSignatureAlgorithm("SHA1withRSA");
+
+        return gen;
+    }
+
+    /** An issuingDistributionPoint with a single BOOLEAN field set */
+    private static DERSequence newIssuingDistributionPoint(int tagNo) {
+        return new DERSequence(new DERTaggedObject(false, tagNo, new DERBoolean(true)));
+    }
+
+    public void testIndirectCrl() throws Exception {
+        X509V2CRLGenerator gen = newCrlGenerator();
+        gen.addCRLEntry(BigInteger.ONE, new Date(), CRLReason.keyCompromise);
+        gen.addExtension(
+                X509Extensions.IssuingDistributionPoint,
+                true,
+                newIssuingDistributionPoint(4));
+        byte[] crlBytes = gen.generate(X509CRLHelperTest.getCaKeyPair().getPrivate(), "BC").getEncoded();
+
+        try {
+            X509CRLStreamParser.parse(new ByteArrayInputStream(crlBytes), 10);
+            fail("Indirect CRL parsed");
+        } catch (CRLException expected) { }
+
+        // Not indirect
+        gen = newCrlGenerator();
+        gen.addCRLEntry(BigInteger.ONE, new Date(), CRLReason.keyCompromise);
+        gen.addExtension(
+                X509Extensions.IssuingDistributionPoint,
+                true,
+                newIssuingDistributionPoint(1));
+        crlBytes = gen.generate(X509CRLHelperTest.getCaKeyPair().getPrivate(), "BC").getEncoded();
+        assertTrue(X509CRLStreamParser.parse(new ByteArrayInputStream(crlBytes), 10)
+                .isRevoked(BigInteger.ONE));
+    }
+
+    public void testCertificateIssuerEntry() throws Exception {
+        Vector oids = new Vector();
+        Vector values = new Vector();
+        oids.add(X509Extensions.CertificateIssuer);
+        values.add(new X509Extension(true, new DEROctetString(
+                new GeneralNames(new GeneralName(new X509Name("CN=Other CA"))))));
+
+        X509V2CRLGenerator gen = newCrlGenerator();
+        gen.addCRLEntry(BigInteger.ONE, new Date(), CRLReason.keyCompromise);
+        gen.addCRLEntry(BigInteger.valueOf(2), new Date(), new X509Extensions(oids, values));
+        byte[] crlBytes = gen.generate(X509CRLHelperTest.getCaKeyPair().getPrivate(), "BC").getEncoded();
+
+        try {
+            X509CRLStreamParser.parse(new ByteArrayInputStream(crlBytes), 10);
+            fail("CRL entry of another issuer parsed");
+        } catch (CRLException expected) { }
+    }
+
+    public void testMalformed() throws Exception {
+        byte[] crlBytes = X509CRLHelperTest.generateCrl(
+                new BigInteger[] { BigInteger.ONE }, new Date());
+
+        byte[] truncated = new byte[crlBytes.length / 2];
+        System.arraycopy(crlBytes, 0, truncated, 0, truncated.length);
+        try {
+            X509CRLStreamParser.parse(new ByteArrayInputStream(truncated), 10);
+            fail("Truncated CRL parsed");
+        } catch (IOException expected) { }
+
+        try {
+            X509CRLStreamParser.parse(new ByteArrayInputStream("<html/>".getBytes()), 10);
+            fail("Garbage parsed as CRL");
+        } catch (CRLException expected) { }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class XmldsigBatchVerifierTest extends TestCase {
+
+    private List getInputs(int count, int brokenIndex) {
+        List inputs = new ArrayList();
+        for (int i=0; i<count; i++) {
+            inputs.add(i == brokenIndex ?
+                    new ByteArrayInputStream("<notASignature/>".getBytes()) :
+                    getClass().getResourceAsStream("/sample-xmldsig.xml"));
+        }
+
+        return inputs;
+    }
+
+    private static class RecordingListener implements BatchVerificationListener {
+
+        private final List indices = new ArrayList();
+
+        private final List failures = new ArrayList();
+
+        public void verified(int index, VerificationResult result) {
+            assertTrue(result.isSignatureValid());
+            indices.add(new Integer(index));
+        }
+
+        public void failed(int index, Exception e) {
+            indices.add(new Integer(index));
+            failures.add(new Integer(index));
+        }
+
+    }
+
+    public void testVerifyInOrder() throws Exception {
+        XmldsigBatchVerifier batchVerifier = new XmldsigBatchVerifier(
+                new XmldsigVerificationEngine(XmldsigVerificationEngineTest.getPolicy()));
+        batchVerifier.setThreads(4);
+        batchVerifier.setMaxInFlight(3);
+
+        RecordingListener listener = new RecordingListener();
+        try {
+            batchVerifier.verifyInOrder(getInputs(12, 5), listener);
+        } finally {
+            batchVerifier.shutdown();
+        }
+
+        assertEquals(12, listener.indices.size());
+        for (int i=0; i<12; i++) {
+            assertEquals(new Integer(i), listener.indices.get(i));
+        }
+        assertEquals(1, listener.failures.size());
+        assertEquals(new Integer(5), listener.failures.get(0));
+    }
+
+    public void testVerifyAsCompleted() throws Exception {
+        XmldsigBatchVerifier batchVerifier = new XmldsigBatchVerifier(
+                new XmldsigVerificationEngine(XmldsigVerificationEngineTest.getPolicy()));
+        batchVerifier.setThreads(4);
+        batchVerifier.setMaxInFlight(3);
+
+        RecordingListener listener = new RecordingListener();
+        try {
+            batchVerifier.verifyAsCompleted(getInputs(12, 7), listener);
+        } finally {
+            batchVerifier.shutdown();
+        }
+
+        assertEquals(12, listener.indices.size());
+        for (int i=0; i<12; i++) {
+            assertTrue(listener.indices.contains(new Integer(i)));
+        }
+        assertEquals(1, listener.failures.size());
+        assertEquals(new Integer(7), listener.failures.get(0));
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+
+        private volatile boolean closed = false;
+
+        private TrackingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+    }
+
+    private static class BrokenInputStream extends TrackingInputStream {
+
+        private BrokenInputStream() {
+            super(new byte[0]);
+        }
+
+        public synchronized int read(byte[] b, int off, int len) {
+            throw new BrokenError();
+        }
+
+        public synchronized int read() {
+            throw new BrokenError();
+        }
+
+    }
+
+    private static class BrokenError extends Error {
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    public void testAbortClosesInputs() throws Exception {
+        byte[] signedBytes = VerificationResultCacheTest.getSampleBytes();
+        List inputs = new ArrayList();
+        inputs.add(new BrokenInputStream());
+        for (int i=0; i<5; i++) {
+            inputs.add(new TrackingInputStream(signedBytes));
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        XmldsigBatchVerifier batchVerifier = new XmldsigBatchVerifier(
+                new XmldsigVerificationEngine(XmldsigVerificationEngineTest.getPolicy()));
+        batchVerifier.setExecutorService(executor);
+        batchVerifier.setMaxInFlight(4);
+        try {
+            batchVerifier.verifyInOrder(inputs, new RecordingListener());
+            fail("Error not reported");
+        } catch (BrokenError expected) {
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        // The inputs taken from the batch were verified or cancelled, and
+        // closed either way; the rest were never opened
+        for (int i=0; i<4; i++) {
+            assertTrue("Input " + i + " left open", ((TrackingInputStream) inputs.get(i)).closed);
+        }
+        assertFalse(((TrackingInputStream) inputs.get(5)).closed);
+    }
+
+    public void testVerifyFiles() throws Exception {
+        byte[] signedBytes = VerificationResultCacheTest.getSampleBytes();
+        File file = File.createTempFile("sample-xmldsig", ".xml");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(signedBytes);
+            fos.close();
+
+            List inputs = new ArrayList();
+            inputs.add(file);
+            inputs.add(new File(file.getPath() + ".missing"));
+            inputs.add(file);
+
+            XmldsigBatchVerifier batchVerifier = new XmldsigBatchVerifier(
+                    new XmldsigVerificationEngine(XmldsigVerificationEngineTest.getPolicy()));
+            RecordingListener listener = new RecordingListener();
+            try {
+                batchVerifier.verifyInOrder(inputs, listener);
+            } finally {
+                batchVerifier.shutdown();
+            }
+
+            assertEquals(3, listener.indices.size());
+            assertEquals(1, listener.failures.size());
+            assertEquals(new Integer(1), listener.failures.get(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2007-2014 Anestis Georgiadis
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.sf.dsig.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.xml.security.utils.Base64;
+
+public class XmldsigVerificationEngineTest extends TestCase {
+
+    public static VerificationPolicy getPolicy() throws Exception {
+        X509Certificate certificate = (X509Certificate)
+                CertificateFactory.getInstance("X.509").generateCertificate(
+                        XmldsigVerificationEngineTest.class.getResourceAsStream("/root.cer"));
+        Set trustAnchors = new HashSet();
+        trustAnchors.add(new TrustAnchor(certificate, null));
+
+        VerificationPolicy policy = new VerificationPolicy();
+        policy.setTrustAnchors(trustAnchors);
+
+        return policy;
+    }
+
+    public void testVerify() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        VerificationResult result = engine.verify(
+                getClass().getResourceAsStream("/sample-xmldsig.xml"));
+
+        assertTrue(result.isSignatureValid());
+        assertEquals(3, result.getCertificateChain().length);
+        assertNotNull(result.getObjectElement("formData"));
+        assertNull(result.getObjectElement("missing"));
+
+        // Sample certificates have long expired
+        assertFalse(result.isValid());
+    }
+
+    public void testSharedAcrossThreads() throws Exception {
+        final XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+        final Throwable[] failures = new Throwable[8];
+
+        Thread[] threads = new Thread[failures.length];
+        for (int i=0; i<threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j=0; j<5; j++) {
+                            VerificationResult result = engine.verify(
+                                    getClass().getResourceAsStream("/sample-xmldsig.xml"));
+                            assertTrue(result.isSignatureValid());
+                        }
+                    } catch (Throwable e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i=0; i<threads.length; i++) {
+            threads[i].join();
+            assertNull(failures[i]);
+        }
+    }
+
+    public void testMissingTrustAnchors() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(new VerificationPolicy());
+
+        try {
+            engine.verify(getClass().getResourceAsStream("/sample-xmldsig.xml"));
+            fail("ConfigurationException not raised");
+        } catch (ConfigurationException ignored) { }
+    }
+
+    private String getSample() throws Exception {
+        InputStream is = getClass().getResourceAsStream("/sample-xmldsig.xml");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        is.close();
+
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    public void testVerifyStreaming() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        VerificationResult result = engine.verifyStreaming(
+                getClass().getResourceAsStream("/sample-xmldsig.xml"));
+        VerificationResult domResult = engine.verify(
+                getClass().getResourceAsStream("/sample-xmldsig.xml"));
+
+        assertTrue(result.isSignatureValid());
+        assertEquals(domResult.isCertificatePathValid(), result.isCertificatePathValid());
+        assertEquals(domResult.getSigningCertificate(), result.getSigningCertificate());
+        assertEquals(3, result.getCertificateChain().length);
+        // Object content is digested, not kept
+        assertEquals(0, result.getObjectElement("formData").getChildNodes().getLength());
+    }
+
+    public void testVerifyStreamingContent() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        ByteArrayOutputStream formData = new ByteArrayOutputStream();
+        Map<String, OutputStream> contentStreams = new HashMap<String, OutputStream>();
+        contentStreams.put("formData", formData);
+        contentStreams.put("unreferenced", new ByteArrayOutputStream());
+
+        VerificationResult result = engine.verifyStreaming(
+                getClass().getResourceAsStream("/sample-xmldsig.xml"), contentStreams);
+
+        assertTrue(result.isSignatureValid());
+        String content = new String(formData.toByteArray(), "UTF-8");
+        assertTrue(content.startsWith("<Object"));
+        assertTrue(content.indexOf("value=\"1.23\"") != -1);
+        // The copy is exactly what was digested
+        assertTrue(MessageDigest.isEqual(
+                Base64.decode("N30ix5d4c0hPCDA+gFgfL3ozhBw="),
+                MessageDigest.getInstance("SHA-1").digest(formData.toByteArray())));
+        assertEquals(0, ((ByteArrayOutputStream) contentStreams.get("unreferenced")).size());
+    }
+
+    public void testVerifyStreamingTampered() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        String tampered = getSample().replaceFirst("value=\"1.23\"", "value=\"9.23\"");
+        VerificationResult result = engine.verifyStreaming(
+                new ByteArrayInputStream(tampered.getBytes("UTF-8")));
+        assertFalse(result.isSignatureValid());
+        assertFalse(engine.verify(
+                new ByteArrayInputStream(tampered.getBytes("UTF-8"))).isSignatureValid());
+    }
+
+    public void testVerifyStreamingMissingReference() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        String renamed = getSample().replaceFirst("Id=\"formData\"", "Id=\"other\"");
+        try {
+            engine.verifyStreaming(new ByteArrayInputStream(renamed.getBytes("UTF-8")));
+            fail("VerificationException not raised");
+        } catch (VerificationException ignored) { }
+    }
+
+    public void testVerifyStreamingInclusiveNamespaces() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        String transform = "<Transform Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\"/>";
+        String prefixList = 
+                "<Transform Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\">\n" +
+                "  <ec:InclusiveNamespaces xmlns:ec=\"http://www.w3.org/2001/10/xml-exc-c14n#\" PrefixList=\"ds\"/>\n" +
+                "</Transform>";
+        String sample = getSample();
+        assertTrue(sample.indexOf(transform) != -1);
+        String withPrefixList = sample.replace(transform, prefixList);
+        try {
+            engine.verifyStreaming(new ByteArrayInputStream(withPrefixList.getBytes("UTF-8")));
+            fail("VerificationException not raised");
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().indexOf("Transform not supported") != -1);
+        }
+    }
+
+    public void testVerifyStreamingDuplicateReference() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        String sample = getSample();
+        int start = sample.indexOf("<Reference ");
+        int end = sample.indexOf("</Reference>") + "</Reference>".length();
+        String reference = sample.substring(start, end);
+        String duplicated = sample.substring(0, end) + reference + sample.substring(end);
+        try {
+            engine.verifyStreaming(new ByteArrayInputStream(duplicated.getBytes("UTF-8")));
+            fail("VerificationException not raised");
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().indexOf("Duplicate reference") != -1);
+        }
+    }
+
+    public void testVerifyFile() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        File file = File.createTempFile("sample-xmldsig", ".xml");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(getSample().getBytes("UTF-8"));
+            fos.close();
+
+            VerificationResult result = engine.verify(file);
+            assertTrue(result.isSignatureValid());
+            assertEquals(3, result.getCertificateChain().length);
+            assertNotNull(result.getObjectElement("formData"));
+        } finally {
+            file.delete();
+        }
+
+        try {
+            engine.verify(new File(file.getPath() + ".missing"));
+            fail("VerificationException not raised");
+        } catch (VerificationException ignored) { }
+    }
+
+    public void testVerifyBase64() throws Exception {
+        XmldsigVerificationEngine engine = new XmldsigVerificationEngine(getPolicy());
+
+        String base64 = Base64.encode(getSample().getBytes("UTF-8"));
+        VerificationResult result = engine.verifyBase64(base64);
+        assertTrue(result.isSignatureValid());
+        assertNotNull(result.getObjectElement("formData"));
+
+        result = engine.verifyBase64(new StringReader(base64));
+        assertTrue(result.isSignatureValid());
+    }
+
+}
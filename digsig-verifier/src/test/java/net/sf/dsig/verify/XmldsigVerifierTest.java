@@ -101,4 +101,12 @@ public class XmldsigVerifierTest extends TestCase {
 //      assertTrue(v.verify());
     }
 
+    public void testBase64Signature() throws Exception {
+        XmldsigVerifier v = new XmldsigVerifier();
+        v.initEnvelopingSignatureBase64(utf8Signature);
+
+        assertNotNull(v.getObjectElement("formData"));
+        assertTrue(v.verify());
+    }
+
 }